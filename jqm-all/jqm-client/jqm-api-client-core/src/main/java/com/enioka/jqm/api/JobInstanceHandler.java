@@ -0,0 +1,30 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.api;
+
+/**
+ * Receives the results of a query one by one, as they are read. See {@link JqmClient#getJobs(Query, JobInstanceHandler)}.
+ */
+public interface JobInstanceHandler
+{
+    /**
+     * Called once per query result, in the query order.
+     * 
+     * @param instance
+     *            the job instance, with its parameters and messages.
+     */
+    void onJobInstance(JobInstance instance);
+}
@@ -47,6 +47,22 @@ public interface JqmClient
      */
     int enqueue(JobRequest jobRequest);
 
+    /**
+     * Will create many new job instances at once. This is the same as calling {@link #enqueue(JobRequest)} for each request, but much faster
+     * for large numbers of requests, and all requests are created inside a single transaction: either all job instances are created, or
+     * none is.<br>
+     * 
+     * @param jobRequests
+     *            the requests to enqueue. Can be empty.
+     * @return the IDs of the job instances, in the same order as the requests.
+     * 
+     * @throws JqmInvalidRequestException
+     *             when input data is invalid for at least one request. In that case, nothing is created.
+     * @throws JqmClientException
+     *             when an internal API implementation occurs. Usually linked to a configuration issue.
+     */
+    List<Integer> enqueue(List<JobRequest> jobRequests);
+
     /**
      * Will create a new job instance inside an execution queue. All parameters (JQM parameters such as queue name, etc) as well as job
      * parameters) are given inside the job request argument <br>
@@ -371,6 +387,22 @@ public interface JqmClient
      */
     List<JobInstance> getJobs(Query query);
 
+    /**
+     * Same as {@link #getJobs(Query)}, but the results are given to the handler as soon as they are read instead of being returned all at
+     * once, so that big results do not need to be held in memory. Parameters and messages are fetched by batches as the results are
+     * read. The total result count is never computed, and the Query object does not hold the results afterwards.
+     * 
+     * @param query
+     *            the query parameters.
+     * @param handler
+     *            called for each result, in the query order.
+     * @throws JqmInvalidRequestException
+     *             when query is null or inconsistent (e.g. trying to use pagination on a queue query)
+     * @throws JqmClientException
+     *             when an internal API implementation occurs. Usually linked to a configuration issue.
+     */
+    void getJobs(Query query, JobInstanceHandler handler);
+
     // /////////////////////////////////////////////////////////////////////
     // Helpers to quickly access some job instance properties
     // /////////////////////////////////////////////////////////////////////
@@ -37,7 +37,8 @@ import javax.xml.bind.annotation.XmlRootElement;
  * <br>
  * 
  * Also please note that queries get more expensive with the result count, so it is <strong>strongly recommended to use pagination</strong>
- * ({@link #setFirstRow(Integer)} and {@link #setPageSize(Integer)}).
+ * ({@link #setFirstRow(Integer)} and {@link #setPageSize(Integer)}). When browsing many pages, {@link #setAfterId(Integer)} should be
+ * preferred to {@link #setFirstRow(Integer)}, as its cost does not depend on the page number.
  * 
  */
 @XmlRootElement
@@ -57,8 +58,9 @@ public final class Query
     @XmlElement(name = "status", type = State.class)
     private List<State> status = new ArrayList<State>();
 
-    private Integer firstRow, pageSize = 50;
+    private Integer firstRow, pageSize = 50, afterId;
     private Integer resultSize;
+    private boolean computeResultSize = true;
 
     @XmlElementWrapper(name = "instances")
     @XmlElement(name = "instance", type = JobInstance.class)
@@ -200,6 +202,15 @@ public final class Query
         return JqmClientFactory.getClient().getJobs(this);
     }
 
+    /**
+     * Another end of the fluent Query API, for big results: the instances are given to the handler as soon as they are read, instead of
+     * being returned inside a list. See {@link JqmClient#getJobs(Query, JobInstanceHandler)}.
+     */
+    public void run(JobInstanceHandler handler)
+    {
+        JqmClientFactory.getClient().getJobs(this, handler);
+    }
+
     // //////////////////////////////////////////
     // Results handling
     // //////////////////////////////////////////
@@ -235,6 +246,38 @@ public final class Query
         return this;
     }
 
+    /**
+     * This sets the ID after which results start, for keyset pagination purposes: only instances with an ID greater than this one (lower
+     * if sorting by descending ID) are returned. To get the next page, simply set it to the ID of the last instance of the current page.
+     * <br>
+     * Contrary to {@link #setFirstRow(Integer)}, the cost of a page does not grow with its number. It can only be used when sorting by ID
+     * (the default sort) and cannot be combined with setFirstRow.
+     * 
+     * @param afterId
+     *            the last ID of the previous page, or null for the first page.
+     * @return the Query itself (fluent API - used to chain calls).
+     * @see #setPageSize(Integer) setPageSize for the other pagination parameter.
+     */
+    public Query setAfterId(Integer afterId)
+    {
+        this.afterId = afterId;
+        return this;
+    }
+
+    /**
+     * By default, the total result count (see {@link #getResultSize()}) is computed with an additional query when using pagination. As
+     * this query is costly on big histories, it can be disabled here - {@link #getResultSize()} then only gives the size of the page.
+     * 
+     * @param computeResultSize
+     *            false to disable the count.
+     * @return the Query itself (fluent API - used to chain calls).
+     */
+    public Query setComputeResultSize(boolean computeResultSize)
+    {
+        this.computeResultSize = computeResultSize;
+        return this;
+    }
+
     /**
      * @return the available result count of the query. Available means that it does not take into account pagination. This is mostly used
      *         when pagination is used, so as to be able to set a "total records count" or a "page 2 on 234" indicator. If pagination is not
@@ -720,6 +763,16 @@ public final class Query
         return pageSize;
     }
 
+    Integer getAfterId()
+    {
+        return afterId;
+    }
+
+    boolean isComputeResultSize()
+    {
+        return computeResultSize;
+    }
+
     String getQueueName()
     {
         return queueName;
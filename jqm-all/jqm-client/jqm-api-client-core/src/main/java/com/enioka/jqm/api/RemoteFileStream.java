@@ -0,0 +1,52 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.api;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream directly reading a file from a remote node. Closing it releases the underlying connection.<br>
+ * Contrary to the local file copies, {@link #available()} never blocks, and may therefore be 0 before the end of the file when the bytes
+ * have not arrived yet.
+ */
+class RemoteFileStream extends FilterInputStream
+{
+    String nameHint = null;
+    private Closeable connection;
+
+    RemoteFileStream(InputStream in, Closeable connection)
+    {
+        super(new BufferedInputStream(in));
+        this.connection = connection;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            super.close();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+}
@@ -35,11 +35,14 @@ import java.sql.SQLIntegrityConstraintViolationException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.net.ssl.SSLContext;
@@ -49,9 +52,11 @@ import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.conn.ssl.SSLContexts;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -87,8 +92,23 @@ final class JdbcClient implements JqmClient
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(JdbcClient.class);
     private static final int IN_CLAUSE_LIMIT = 500;
+    private static final int INSERT_BATCH_SIZE = 1000;
+    private static final int HTTP_MAX_CONNECTIONS_PER_NODE = 10;
+    private static final int HTTP_MAX_CONNECTIONS = 50;
+    private static final int HTTP_CONNECT_TIMEOUT_MS = 10000;
+    private static final int HTTP_SOCKET_TIMEOUT_MS = 60000;
+    private static final int HTTP_POOL_TIMEOUT_MS = 30000;
+
+    // States which can only be found in one of the two job instance tables (KILLED can be in both).
+    private static final Set<com.enioka.jqm.api.State> HISTORY_ONLY_STATES = EnumSet.of(com.enioka.jqm.api.State.ENDED,
+            com.enioka.jqm.api.State.CRASHED, com.enioka.jqm.api.State.CANCELLED);
+    private static final Set<com.enioka.jqm.api.State> LIVE_ONLY_STATES = EnumSet.of(com.enioka.jqm.api.State.SUBMITTED,
+            com.enioka.jqm.api.State.ATTRIBUTED, com.enioka.jqm.api.State.RUNNING, com.enioka.jqm.api.State.HOLDED,
+            com.enioka.jqm.api.State.SCHEDULED);
     private Db db = null;
     private String protocol = null;
+    private CloseableHttpClient httpClient = null;
+    private Boolean queueNotifications = null;
     Properties p;
 
     // /////////////////////////////////////////////////////////////////////
@@ -169,6 +189,11 @@ final class JdbcClient implements JqmClient
     public void dispose()
     {
         SimpleApiSecurity.dispose();
+        synchronized (this)
+        {
+            closeQuietly(httpClient);
+            httpClient = null;
+        }
         this.db = null;
         p = null;
     }
@@ -177,38 +202,128 @@ final class JdbcClient implements JqmClient
     // Enqueue functions
     // /////////////////////////////////////////////////////////////////////
 
+    /**
+     * Caches and pending inserts of a batch of job requests enqueued inside a single transaction.
+     */
+    private static class EnqueueBatch
+    {
+        private Map<String, JobDef> jobDefByName = new HashMap<String, JobDef>();
+        private Map<Integer, Map<String, String>> jobDefParameters = new HashMap<Integer, Map<String, String>>();
+        private Map<String, Integer> queueIdByName = new HashMap<String, Integer>();
+        private Map<Integer, Integer> highlanderInstances = new HashMap<Integer, Integer>(); // JD ID -> JI ID
+        private Set<Integer> queuesToNotify = new HashSet<Integer>();
+        private List<Object[]> parameters = new ArrayList<Object[]>();
+    }
+
     @Override
     public int enqueue(JobRequest runRequest)
     {
         jqmlogger.trace("BEGINING ENQUEUE - request is for application name " + runRequest.getApplicationName());
+        checkRequest(runRequest);
 
-        // Form validity.
-        if ((runRequest.getApplicationName() == null || runRequest.getApplicationName().trim().isEmpty())
-                && runRequest.getScheduleId() == null)
+        DbConn cnx = null;
+        try
         {
-            throw new JqmClientException("Invalid execution request: applicationName is empty");
+            cnx = getDbSession();
+            return enqueueWithCnx(runRequest, cnx, null);
+        }
+        finally
+        {
+            closeQuietly(cnx);
+        }
+    }
+
+    @Override
+    public List<Integer> enqueue(List<JobRequest> jobRequests)
+    {
+        jqmlogger.trace("BEGINING BATCH ENQUEUE - {} requests", jobRequests.size());
+        for (JobRequest runRequest : jobRequests)
+        {
+            checkRequest(runRequest);
         }
-        runRequest.setParameters(runRequest.getParameters()); // This will validate parameters.
 
         DbConn cnx = null;
         try
         {
             cnx = getDbSession();
-            return enqueueWithCnx(runRequest, cnx);
+            EnqueueBatch batch = new EnqueueBatch();
+            List<Integer> res = new ArrayList<Integer>(jobRequests.size());
+
+            for (JobRequest runRequest : jobRequests)
+            {
+                res.add(enqueueWithCnx(runRequest, cnx, batch));
+                if (batch.parameters.size() >= INSERT_BATCH_SIZE)
+                {
+                    cnx.runBatchUpdate("jiprm_insert", batch.parameters);
+                    batch.parameters.clear();
+                }
+            }
+            cnx.runBatchUpdate("jiprm_insert", batch.parameters);
+
+            if (isQueueNotificationEnabled(cnx))
+            {
+                for (Integer queueId : batch.queuesToNotify)
+                {
+                    cnx.notifyQueue(queueId);
+                }
+            }
+            cnx.commit();
+            jqmlogger.trace("BATCH ENQUEUE DONE - {} requests", jobRequests.size());
+            return res;
+        }
+        catch (DatabaseException e)
+        {
+            throw new JqmClientException("Could not create new JobInstances", e);
         }
         finally
         {
+            // Rollback if not committed.
             closeQuietly(cnx);
         }
     }
 
-    private int enqueueWithCnx(JobRequest runRequest, DbConn cnx)
+    private void checkRequest(JobRequest runRequest)
+    {
+        // Form validity.
+        if ((runRequest.getApplicationName() == null || runRequest.getApplicationName().trim().isEmpty())
+                && runRequest.getScheduleId() == null)
+        {
+            throw new JqmClientException("Invalid execution request: applicationName is empty");
+        }
+        runRequest.setParameters(runRequest.getParameters()); // This will validate parameters.
+    }
+
+    /**
+     * True if engines should be signaled on enqueue: the database must support it and the global parameter
+     * <code>enableQueueNotify</code> must be set. The parameter is only read once per client.
+     */
+    private boolean isQueueNotificationEnabled(DbConn cnx)
+    {
+        if (queueNotifications == null)
+        {
+            queueNotifications = cnx.isQueueNotificationCapable()
+                    && Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "enableQueueNotify", "false"));
+        }
+        return queueNotifications;
+    }
+
+    /**
+     * Creates the execution request.
+     *
+     * @param batch
+     *                  if null, the request is committed at once. Otherwise, nothing is committed, parameters are not inserted but added to the
+     *                  batch, and JobDef/queue data is cached inside the batch.
+     */
+    private int enqueueWithCnx(JobRequest runRequest, DbConn cnx, EnqueueBatch batch)
     {
         // New schedule?
         if (runRequest.getRecurrence() != null && !runRequest.getRecurrence().trim().isEmpty())
         {
             int res = createSchedule(runRequest, cnx);
-            cnx.commit();
+            if (batch == null)
+            {
+                cnx.commit();
+            }
             return res;
         }
 
@@ -216,28 +331,38 @@ final class JdbcClient implements JqmClient
         ScheduledJob sj = null;
         if (runRequest.getScheduleId() != null)
         {
-            List<ScheduledJob> sjj = ScheduledJob.select(cnx, "sj_select_by_id", runRequest.getScheduleId());
-            if (sjj.size() == 0)
+            try
             {
-                jqmlogger.error("Invalid job request: no schedule with ID " + runRequest.getScheduleId());
-                throw new JqmInvalidRequestException("Invalid job request: no schedule with ID " + runRequest.getScheduleId());
+                sj = db.getMetadataCache().getScheduledJob(cnx, runRequest.getScheduleId());
             }
-            if (sjj.size() > 1)
+            catch (NonUniqueResultException e)
             {
                 jqmlogger.error("Inconsistent metadata: multiple schedules with ID " + runRequest.getScheduleId());
                 throw new JqmClientException("Inconsistent metadata: multiple schedules with ID " + runRequest.getScheduleId());
             }
-            sj = sjj.get(0);
+            if (sj == null)
+            {
+                jqmlogger.error("Invalid job request: no schedule with ID " + runRequest.getScheduleId());
+                throw new JqmInvalidRequestException("Invalid job request: no schedule with ID " + runRequest.getScheduleId());
+            }
         }
 
         // First, get the JobDef.
         JobDef jobDef = null;
-        if (sj == null)
+        if (sj == null && batch != null && batch.jobDefByName.containsKey(runRequest.getApplicationName()))
+        {
+            jobDef = batch.jobDefByName.get(runRequest.getApplicationName());
+        }
+        else if (sj == null)
         {
             // Standard case: execution by applicationName.
             try
             {
-                jobDef = JobDef.select_key(cnx, runRequest.getApplicationName());
+                jobDef = db.getMetadataCache().getJobDef(cnx, runRequest.getApplicationName());
+                if (batch != null)
+                {
+                    batch.jobDefByName.put(runRequest.getApplicationName(), jobDef);
+                }
             }
             catch (NonUniqueResultException ex)
             {
@@ -270,12 +395,21 @@ final class JdbcClient implements JqmClient
         jqmlogger.trace("Job to enqueue is from JobDef " + jobDef.getId());
 
         // Then check Highlander.
-        Object highlanderResult = highlanderMode(jobDef, cnx); // Returns Integer if already exists, a resultset otherwise. The RS thing is
-                                                               // to allow to explicitely close it as required by some pools (against the
-                                                               // spec).
+        if (batch != null && batch.highlanderInstances.containsKey(jobDef.getId()))
+        {
+            jqmlogger.trace("JI won't actually be enqueued because a job in highlander mode is already submitted in the same batch");
+            return batch.highlanderInstances.get(jobDef.getId());
+        }
+        Object highlanderResult = highlanderMode(jobDef, cnx, batch == null); // Returns Integer if already exists, a resultset otherwise.
+                                                                              // The RS thing is to allow to explicitely close it as
+                                                                              // required by some pools (against the spec).
         if (highlanderResult != null && highlanderResult instanceof Integer)
         {
             jqmlogger.trace("JI won't actually be enqueued because a job in highlander mode is currently submitted: " + highlanderResult);
+            if (batch != null)
+            {
+                batch.highlanderInstances.put(jobDef.getId(), (Integer) highlanderResult);
+            }
             return (Integer) highlanderResult;
         }
         ResultSet highlanderRs = (ResultSet) highlanderResult;
@@ -284,7 +418,19 @@ final class JdbcClient implements JqmClient
         jqmlogger.trace("Not in highlander mode or no currently enqueued instance");
 
         // Parameters are both from the JobDef and the execution request.
-        Map<String, String> prms = JobDefParameter.select_map(cnx, "jdprm_select_all_for_jd", jobDef.getId());
+        Map<String, String> prms;
+        if (batch == null)
+        {
+            prms = db.getMetadataCache().getJobDefParameters(cnx, jobDef.getId());
+        }
+        else
+        {
+            if (!batch.jobDefParameters.containsKey(jobDef.getId()))
+            {
+                batch.jobDefParameters.put(jobDef.getId(), db.getMetadataCache().getJobDefParameters(cnx, jobDef.getId()));
+            }
+            prms = new HashMap<String, String>(batch.jobDefParameters.get(jobDef.getId()));
+        }
         if (sj != null)
         {
             prms.putAll(sj.getParameters());
@@ -293,12 +439,20 @@ final class JdbcClient implements JqmClient
 
         // On which queue?
         Integer queue_id = null;
-        if (runRequest.getQueueName() != null)
+        if (runRequest.getQueueName() != null && batch != null && batch.queueIdByName.containsKey(runRequest.getQueueName()))
+        {
+            queue_id = batch.queueIdByName.get(runRequest.getQueueName());
+        }
+        else if (runRequest.getQueueName() != null)
         {
             // use requested key if given.
             try
             {
-                queue_id = cnx.runSelectSingle("q_select_by_key", 1, Integer.class, runRequest.getQueueName());
+                queue_id = db.getMetadataCache().getQueueId(cnx, runRequest.getQueueName());
+                if (batch != null)
+                {
+                    batch.queueIdByName.put(runRequest.getQueueName(), queue_id);
+                }
             }
             catch (NoResultException e)
             {
@@ -348,9 +502,33 @@ final class JdbcClient implements JqmClient
             int id = JobInstance.enqueue(cnx, startingState, queue_id, jobDef.getId(), runRequest.getApplication(),
                     runRequest.getParentID(), runRequest.getModule(), runRequest.getKeyword1(), runRequest.getKeyword2(),
                     runRequest.getKeyword3(), runRequest.getSessionID(), runRequest.getUser(), runRequest.getEmail(), jobDef.isHighlander(),
-                    sj != null || runRequest.getRunAfter() != null, runRequest.getRunAfter(), priority, Instruction.RUN, prms);
+                    sj != null || runRequest.getRunAfter() != null, runRequest.getRunAfter(), priority, Instruction.RUN,
+                    batch == null ? prms : null);
 
             jqmlogger.trace("JI just created: " + id);
+            if (batch != null)
+            {
+                // Parameters are inserted later with JDBC batches, and everything is committed at once.
+                for (Map.Entry<String, String> prm : prms.entrySet())
+                {
+                    batch.parameters.add(new Object[] { id, prm.getKey(), prm.getValue() });
+                }
+                if (jobDef.isHighlander())
+                {
+                    batch.highlanderInstances.put(jobDef.getId(), id);
+                }
+                if (startingState == State.SUBMITTED)
+                {
+                    batch.queuesToNotify.add(queue_id);
+                }
+                return id;
+            }
+
+            if (startingState == State.SUBMITTED && isQueueNotificationEnabled(cnx))
+            {
+                // Engines polling the queue are woken up on commit.
+                cnx.notifyQueue(queue_id);
+            }
             cnx.commit();
             return id;
         }
@@ -394,7 +572,7 @@ final class JdbcClient implements JqmClient
     }
 
     // Helper. Current transaction is committed in some cases.
-    private Object highlanderMode(JobDef jd, DbConn cnx)
+    private Object highlanderMode(JobDef jd, DbConn cnx, boolean releaseLock)
     {
         if (!jd.isHighlander())
         {
@@ -420,7 +598,10 @@ final class JdbcClient implements JqmClient
         {
             Integer existing = cnx.runSelectSingle("ji_select_existing_highlander", Integer.class, jd.getId());
             rs.close();
-            cnx.commit(); // Do not keep the lock!
+            if (releaseLock)
+            {
+                cnx.commit(); // Do not keep the lock! (inside batches, it is kept until the end of the batch)
+            }
             return existing;
         }
         catch (NoResultException ex)
@@ -907,54 +1088,37 @@ final class JdbcClient implements JqmClient
                 throw new JqmInvalidRequestException("Job does not exist or is already running.");
             }
             int queue_id = rs1.getInt(1);
-            int internal_id = rs1.getInt(2);
+            double internal_position = rs1.getDouble(2);
             rs1.close();
 
-            // Step 2 : get the current rank of the JI.
-            int current = cnx.runSelectSingle("ji_select_current_pos", Integer.class, internal_id, queue_id);
-
-            // Step 3 : select target position
-            int betweenUp = 0;
-            int betweenDown = 0;
-
-            if (current == position)
+            // Step 2 : get the current rank of the JI (0-based, position is 1-based).
+            int current = cnx.runSelectSingle("ji_select_current_pos", Integer.class, internal_position, queue_id);
+            if (position < 1)
             {
-                // Nothing to do
-                return;
+                position = 1;
             }
-            else if (current < position)
+            if (current + 1 == position)
             {
-                betweenDown = position;
-                betweenUp = position + 1;
-            }
-            else
-            {
-                betweenDown = position - 1;
-                betweenUp = position;
+                // Nothing to do
+                return;
             }
 
-            // Step 4 : update the JI.
-            List<JobInstance> currentJobs = JobInstance.select(cnx, "ji_select_by_queue", queue_id);
-            if (currentJobs.isEmpty())
-            {
-                cnx.runUpdate("jj_update_rank_by_id", 0, idJob);
-            }
-            else if (currentJobs.size() < betweenUp)
+            // Step 3 : update the JI. Only its future neighbours are read, not the whole queue. A second try is made after a rebalance
+            // of the queue should the two neighbours be too close to put anything between them.
+            for (int i = 0; i < 2; i++)
             {
-                cnx.runUpdate("jj_update_rank_by_id", currentJobs.get(currentJobs.size() - 1).getInternalPosition() + 0.00001, idJob);
-            }
-            else
-            {
-                // Normal case: put the JI between the two others.
-                QueryResult qr = cnx.runUpdate("jj_update_rank_by_id",
-                        (currentJobs.get(betweenUp - 1).getInternalPosition() + currentJobs.get(betweenDown - 1).getInternalPosition()) / 2,
-                        idJob);
-                if (qr.nbUpdated != 1)
+                if (setJobQueuePosition(cnx, idJob, queue_id, current, position))
                 {
-                    throw new JqmInvalidRequestException("Job is already running.");
+                    cnx.commit();
+                    return;
                 }
+                rebalanceQueue(cnx, queue_id);
             }
-            cnx.commit();
+            throw new JqmClientException("could not find a free position inside the queue even after rebalancing it");
+        }
+        catch (JqmException e)
+        {
+            throw e;
         }
         catch (Exception e)
         {
@@ -966,6 +1130,81 @@ final class JdbcClient implements JqmClient
         }
     }
 
+    /**
+     * Puts the JI between the waiting JI currently at (1-based) rank position - 1 and the one at rank position (or position and position + 1
+     * when the JI moves towards the end of the queue).
+     *
+     * @return false if there was no room between the two neighbours.
+     */
+    private boolean setJobQueuePosition(DbConn cnx, int idJob, int queue_id, int current, int position) throws SQLException
+    {
+        // 0-based index of the neighbour before the target place.
+        int before = current < position ? position - 1 : position - 2;
+
+        List<Double> neighbours = new ArrayList<Double>(2);
+        ResultSet rs = cnx.runSelectPage("ji_select_waiting_positions_by_queue", Math.max(before, 0), before + 2, queue_id);
+        while (rs.next())
+        {
+            neighbours.add(rs.getDouble(1));
+        }
+        rs.close();
+
+        double low, high, newPosition;
+        if (before < 0)
+        {
+            // New head of the queue.
+            low = Double.NEGATIVE_INFINITY;
+            high = neighbours.get(0);
+            newPosition = high - 1;
+        }
+        else if (neighbours.size() < 2)
+        {
+            // New tail of the queue.
+            low = cnx.runSelectSingle("ji_select_waiting_max_position_by_queue", Double.class, queue_id);
+            high = Double.POSITIVE_INFINITY;
+            newPosition = low + 1;
+        }
+        else
+        {
+            // Normal case: put the JI between the two others.
+            low = neighbours.get(0);
+            high = neighbours.get(1);
+            newPosition = low + (high - low) / 2;
+        }
+
+        if (newPosition <= low || newPosition >= high)
+        {
+            // Double precision exhausted.
+            return false;
+        }
+
+        QueryResult qr = cnx.runUpdate("jj_update_rank_by_id", newPosition, idJob);
+        if (qr.nbUpdated != 1)
+        {
+            throw new JqmInvalidRequestException("Job is already running.");
+        }
+        return true;
+    }
+
+    /**
+     * Gives evenly spaced positions to all the waiting JI of a queue, keeping their order. Only needed when repeated moves have exhausted
+     * the precision of the positions. The new positions are all lower than the current maximum, so that new JI still go to the end of the
+     * queue.
+     */
+    private void rebalanceQueue(DbConn cnx, int queue_id)
+    {
+        double max = cnx.runSelectSingle("ji_select_waiting_max_position_by_queue", Double.class, queue_id);
+        List<Integer> ids = cnx.runSelectColumn("ji_select_waiting_ids_by_queue", Integer.class, queue_id);
+        jqmlogger.info("Rebalancing positions of the " + ids.size() + " waiting job instances of queue " + queue_id);
+
+        List<Object[]> prms = new ArrayList<Object[]>(ids.size());
+        for (int i = 0; i < ids.size(); i++)
+        {
+            prms.add(new Object[] { max - (ids.size() - 1 - i) * 1000.0, ids.get(i) });
+        }
+        cnx.runBatchUpdate("jj_update_rank_by_id", prms);
+    }
+
     @Override
     public void setJobPriority(int jobId, int priority)
     {
@@ -1206,6 +1445,32 @@ final class JdbcClient implements JqmClient
 
     @Override
     public List<com.enioka.jqm.api.JobInstance> getJobs(Query query)
+    {
+        final List<com.enioka.jqm.api.JobInstance> res = new ArrayList<com.enioka.jqm.api.JobInstance>();
+        runQuery(query, new JobInstanceHandler()
+        {
+            @Override
+            public void onJobInstance(com.enioka.jqm.api.JobInstance instance)
+            {
+                res.add(instance);
+            }
+        }, true);
+
+        query.setResults(res);
+        return query.getResults();
+    }
+
+    @Override
+    public void getJobs(Query query, JobInstanceHandler handler)
+    {
+        runQuery(query, handler, false);
+    }
+
+    /**
+     * Runs the query and gives its results to the handler while the result set is read. The parameters and messages of the results are
+     * fetched by batches of {@link #IN_CLAUSE_LIMIT}, each batch being handed out before the next rows are read.
+     */
+    private void runQuery(Query query, JobInstanceHandler handler, boolean fetchResultSize)
     {
         if ((query.getFirstRow() != null || query.getPageSize() != null) && query.isQueryLiveInstances() && query.isQueryHistoryInstances())
         {
@@ -1220,22 +1485,47 @@ final class JdbcClient implements JqmClient
             throw new JqmInvalidRequestException(
                     "cannot query nothing - either query live instances, historical instances or both, but not nothing");
         }
+        boolean keysetDescending = false;
+        if (query.getAfterId() != null)
+        {
+            if (query.getFirstRow() != null)
+            {
+                throw new JqmInvalidRequestException("cannot use both firstRow and afterId pagination");
+            }
+            if (query.getSorts().size() > 1 || (query.getSorts().size() == 1 && query.getSorts().get(0).col != Sort.ID))
+            {
+                throw new JqmInvalidRequestException("afterId pagination can only be used when sorting by ID");
+            }
+            keysetDescending = query.getSorts().size() == 1 && query.getSorts().get(0).order == Query.SortOrder.DESCENDING;
+        }
+
+        // Only query the tables which may contain results: ended instances are never in the queues, and waiting or running instances
+        // never in the history.
+        boolean queryLive = query.isQueryLiveInstances() && query.getEndedAfter() == null && query.getEndedBefore() == null
+                && (query.getStatus().isEmpty() || !HISTORY_ONLY_STATES.containsAll(query.getStatus()));
+        boolean queryHistory = query.isQueryHistoryInstances()
+                && (query.getStatus().isEmpty() || !LIVE_ONLY_STATES.containsAll(query.getStatus()));
+        if (!queryLive && !queryHistory)
+        {
+            query.setResultSize(0);
+            return;
+        }
 
         DbConn cnx = null;
         try
         {
             cnx = getDbSession();
-            Map<Integer, com.enioka.jqm.api.JobInstance> res = new LinkedHashMap<Integer, com.enioka.jqm.api.JobInstance>();
 
             String wh = "";
-            List<Object> prms = new ArrayList<Object>();
+            List<Object> prms = new ArrayList<Object>(); // Filters only (used by the count query)
+            List<Object> selectPrms = new ArrayList<Object>(); // Filters and keyset
 
             String q = "", q1 = "", q2 = "";
             String filterCountQuery = "SELECT ";
 
             // ////////////////////////////////////////
             // Job Instance query
-            if (query.isQueryLiveInstances())
+            if (queryLive)
             {
                 // WHERE
                 wh += getIntPredicate("ji.ID", query.getJobInstanceId(), prms);
@@ -1275,7 +1565,8 @@ final class JdbcClient implements JqmClient
                         + "ji.SESSION_KEY AS SESSION_KEY, ji.STATUS, ji.USERNAME, ji.JOBDEF, ji.NODE, ji.QUEUE, ji.INTERNAL_POSITION AS POSITION, ji.FROM_SCHEDULE, ji.PRIORITY, ji.DATE_NOT_BEFORE "
                         + "FROM __T__JOB_INSTANCE ji LEFT JOIN __T__QUEUE q ON ji.QUEUE=q.ID LEFT JOIN __T__JOB_DEFINITION jd ON ji.JOBDEF=jd.ID LEFT JOIN __T__NODE n ON ji.NODE=n.ID ";
 
-                if (wh.length() > 3)
+                boolean hasWhere = wh.length() > 3;
+                if (hasWhere)
                 {
                     wh = wh.substring(3, wh.length() - 1);
                     q1 += "WHERE " + wh;
@@ -1287,13 +1578,17 @@ final class JdbcClient implements JqmClient
                 {
                     filterCountQuery += " (SELECT COUNT(1) FROM __T__JOB_INSTANCE) ,";
                 }
+
+                selectPrms.addAll(prms);
+                q1 += getKeysetPredicate("ji.ID", query.getAfterId(), keysetDescending, hasWhere, selectPrms);
             }
 
             /////////////////////////////////////
             // HISTORY QUERY
-            if (query.isQueryHistoryInstances())
+            if (queryHistory)
             {
                 wh = "";
+                int firstHistoryPrm = prms.size();
 
                 wh += getIntPredicate("ID", query.getJobInstanceId(), prms);
                 wh += getIntPredicate("PARENT", query.getParentId(), prms);
@@ -1331,7 +1626,8 @@ final class JdbcClient implements JqmClient
                         + "JD_KEYWORD1, JD_KEYWORD2, JD_KEYWORD3, " + "JD_MODULE, NODE_NAME, PARENT, PROGRESS, QUEUE_NAME, "
                         + "RETURN_CODE, SESSION_KEY, STATUS, USERNAME, JOBDEF, NODE, QUEUE, 0 as POSITION, FROM_SCHEDULE, PRIORITY AS PRIORITY, DATE_NOT_BEFORE FROM __T__HISTORY ";
 
-                if (wh.length() > 3)
+                boolean hasWhere = wh.length() > 3;
+                if (hasWhere)
                 {
                     wh = wh.substring(3, wh.length() - 1);
                     q2 += "WHERE " + wh;
@@ -1341,6 +1637,9 @@ final class JdbcClient implements JqmClient
                 {
                     filterCountQuery += " (SELECT COUNT(1) FROM __T__HISTORY) ,";
                 }
+
+                selectPrms.addAll(prms.subList(firstHistoryPrm, prms.size()));
+                q2 += getKeysetPredicate("ID", query.getAfterId(), keysetDescending, hasWhere, selectPrms);
             }
 
             ///////////////////////////////////////////////
@@ -1383,7 +1682,7 @@ final class JdbcClient implements JqmClient
 
             ///////////////////////////////////////////////
             // Set pagination parameters
-            List<Object> paginatedParameters = new ArrayList<Object>(prms);
+            List<Object> paginatedParameters = new ArrayList<Object>(selectPrms);
             if (query.getFirstRow() != null || query.getPageSize() != null)
             {
                 int start = query.getFirstRow() != null ? query.getFirstRow() : 0;
@@ -1392,19 +1691,31 @@ final class JdbcClient implements JqmClient
             }
 
             ///////////////////////////////////////////////
-            // Run the query
-            ResultSet rs = cnx.runRawSelect(q, paginatedParameters.toArray());
+            // Run the query, and fetch messages and parameters by batches while reading it
+            int count = 0;
+            Map<Integer, com.enioka.jqm.api.JobInstance> batch = new LinkedHashMap<Integer, com.enioka.jqm.api.JobInstance>();
+            ResultSet rs = cnx.runRawSelect(IN_CLAUSE_LIMIT, q, paginatedParameters.toArray());
             while (rs.next())
             {
                 com.enioka.jqm.api.JobInstance tmp = getJob(rs, cnx);
-                res.put(tmp.getId(), tmp);
+                if (batch.put(tmp.getId(), tmp) == null)
+                {
+                    count++;
+                }
+                if (batch.size() >= IN_CLAUSE_LIMIT)
+                {
+                    handleBatch(batch, handler, cnx);
+                }
             }
             rs.close();
-            jqmlogger.debug("Free query has returned row count " + res.size());
+            handleBatch(batch, handler, cnx);
+            jqmlogger.debug("Free query has returned row count " + count);
 
             // If needed, fetch the total result count (without pagination). Note that without pagination, the Query object does not
             // need this indication.
-            if (query.getFirstRow() != null || (query.getPageSize() != null && res.size() >= query.getPageSize()))
+            boolean isPaginated = query.getFirstRow() != null || query.getAfterId() != null
+                    || (query.getPageSize() != null && count >= query.getPageSize());
+            if (fetchResultSize && query.isComputeResultSize() && isPaginated)
             {
                 ResultSet rs2 = cnx.runRawSelect(filterCountQuery.substring(0, filterCountQuery.length() - 2) + " AS D FROM (VALUES(0))",
                         prms.toArray());
@@ -1413,48 +1724,6 @@ final class JdbcClient implements JqmClient
                 query.setResultSize(rs2.getInt(1));
                 rs2.close();
             }
-
-            ///////////////////////////////////////////////
-            // Fetch messages and parameters in batch
-
-            // Optimization: fetch messages and parameters in batches of 50 (limit accepted by most databases for IN clauses).
-            List<List<Integer>> ids = new ArrayList<List<Integer>>();
-            List<Integer> currentList = null;
-            int i = 0;
-            for (com.enioka.jqm.api.JobInstance ji : res.values())
-            {
-                if (currentList == null || i % IN_CLAUSE_LIMIT == 0)
-                {
-                    currentList = new ArrayList<Integer>(IN_CLAUSE_LIMIT);
-                    ids.add(currentList);
-                }
-                currentList.add(ji.getId());
-                i++;
-            }
-            if (currentList != null && !currentList.isEmpty())
-            {
-                for (List<Integer> idsBatch : ids)
-                {
-                    ResultSet run = cnx.runSelect("jiprm_select_by_ji_list", idsBatch);
-                    while (run.next())
-                    {
-                        res.get(run.getInt(2)).getParameters().put(run.getString(3), run.getString(4));
-                    }
-                    run.close();
-
-                    ResultSet msg = cnx.runSelect("message_select_by_ji_list", idsBatch);
-                    while (msg.next())
-                    {
-                        res.get(msg.getInt(2)).getMessages().add(msg.getString(3));
-                    }
-                    msg.close();
-                }
-            }
-
-            ///////////////////////////////////////////////
-            // DONE AT LAST
-            query.setResults(new ArrayList<com.enioka.jqm.api.JobInstance>(res.values()));
-            return query.getResults();
         }
         catch (Exception e)
         {
@@ -1466,6 +1735,49 @@ final class JdbcClient implements JqmClient
         }
     }
 
+    private String getKeysetPredicate(String fieldName, Integer afterId, boolean descending, boolean hasWhere, List<Object> prms)
+    {
+        if (afterId == null)
+        {
+            return "";
+        }
+        prms.add(afterId);
+        return String.format(" %s %s %s ? ", hasWhere ? "AND" : "WHERE", fieldName, descending ? "<" : ">");
+    }
+
+    /**
+     * Fetches the parameters and messages of a batch of results, gives the results to the handler and empties the batch.
+     */
+    private void handleBatch(Map<Integer, com.enioka.jqm.api.JobInstance> batch, JobInstanceHandler handler, DbConn cnx)
+            throws SQLException
+    {
+        if (batch.isEmpty())
+        {
+            return;
+        }
+        List<Integer> ids = new ArrayList<Integer>(batch.keySet());
+
+        ResultSet run = cnx.runSelect("jiprm_select_by_ji_list", ids);
+        while (run.next())
+        {
+            batch.get(run.getInt(2)).getParameters().put(run.getString(3), run.getString(4));
+        }
+        run.close();
+
+        ResultSet msg = cnx.runSelect("message_select_by_ji_list", ids);
+        while (msg.next())
+        {
+            batch.get(msg.getInt(2)).getMessages().add(msg.getString(3));
+        }
+        msg.close();
+
+        for (com.enioka.jqm.api.JobInstance ji : batch.values())
+        {
+            handler.onJobInstance(ji);
+        }
+        batch.clear();
+    }
+
     private com.enioka.jqm.api.JobInstance getJob(ResultSet rs, DbConn cnx) throws SQLException
     {
         com.enioka.jqm.api.JobInstance res = new com.enioka.jqm.api.JobInstance();
@@ -1650,7 +1962,8 @@ final class JdbcClient implements JqmClient
             cnx = getDbSession();
             for (Deliverable del : Deliverable.select(cnx, "deliverable_select_all_for_ji", idJob))
             {
-                streams.add(getDeliverableContent(del));
+                // All the streams are open at the same time: do not hold one connection per stream.
+                streams.add(getDeliverableContent(del, true));
             }
         }
         catch (Exception e)
@@ -1695,7 +2008,7 @@ final class JdbcClient implements JqmClient
             closeQuietly(cnx);
         }
 
-        return getDeliverableContent(deliverable);
+        return getDeliverableContent(deliverable, false);
     }
 
     InputStream getEngineLog(String nodeName, int latest)
@@ -1740,11 +2053,11 @@ final class JdbcClient implements JqmClient
             closeQuietly(cnx);
         }
 
-        return getFile(url.toString());
+        return getFile(url.toString(), false);
     }
 
     // Helper
-    private InputStream getDeliverableContent(Deliverable deliverable)
+    private InputStream getDeliverableContent(Deliverable deliverable, boolean toLocalFile)
     {
         URL url = null;
         try
@@ -1758,7 +2071,7 @@ final class JdbcClient implements JqmClient
             throw new JqmClientException("URL is not valid " + url, e);
         }
 
-        return getFile(url.toString());
+        return getFile(url.toString(), toLocalFile);
     }
 
     private String getFileProtocol(DbConn cnx)
@@ -1782,33 +2095,14 @@ final class JdbcClient implements JqmClient
         return protocol;
     }
 
-    private InputStream getFile(String url)
+    /**
+     * The HTTP client used to download files from the nodes. It is created on first use and then shared by all downloads of this client, so
+     * that connections (and TLS sessions) are pooled and the trust store is only loaded once.
+     */
+    private synchronized CloseableHttpClient getHttpClient(DbConn cnx)
     {
-        DbConn cnx = getDbSession();
-        File file = null;
-        FileOutputStream fos = null;
-        CloseableHttpClient cl = null;
-        CloseableHttpResponse rs = null;
-        String nameHint = null;
-
-        File destDir = new File(System.getProperty("java.io.tmpdir"));
-        if (!destDir.isDirectory() && !destDir.mkdir())
+        if (httpClient == null)
         {
-            throw new JqmClientException("could not create temp directory " + destDir.getAbsolutePath());
-        }
-        jqmlogger.trace("File will be copied into " + destDir);
-
-        try
-        {
-            file = new File(destDir + "/" + UUID.randomUUID().toString());
-
-            CredentialsProvider credsProvider = null;
-            if (SimpleApiSecurity.getId(cnx).usr != null)
-            {
-                credsProvider = new BasicCredentialsProvider();
-                credsProvider.setCredentials(AuthScope.ANY,
-                        new UsernamePasswordCredentials(SimpleApiSecurity.getId(cnx).usr, SimpleApiSecurity.getId(cnx).pass));
-            }
             SSLContext ctx = null;
             if (getFileProtocol(cnx).equals("https://"))
             {
@@ -1872,11 +2166,43 @@ final class JdbcClient implements JqmClient
                     jqmlogger.error("An supposedly impossible error has happened. Downloading files through the API may not work.", e);
                 }
             }
-            cl = HttpClients.custom().setDefaultCredentialsProvider(credsProvider).setSslcontext(ctx).build();
+
+            // A dead node, or streams left open by the caller (which keep their connection), must not block downloads forever.
+            RequestConfig rc = RequestConfig.custom().setConnectTimeout(HTTP_CONNECT_TIMEOUT_MS).setSocketTimeout(HTTP_SOCKET_TIMEOUT_MS)
+                    .setConnectionRequestTimeout(HTTP_POOL_TIMEOUT_MS).build();
+            httpClient = HttpClients.custom().setSslcontext(ctx).setMaxConnPerRoute(HTTP_MAX_CONNECTIONS_PER_NODE)
+                    .setMaxConnTotal(HTTP_MAX_CONNECTIONS).setDefaultRequestConfig(rc).build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Returns a stream on a file served by a node. By default the file is read directly from the HTTP response - the stream must then be
+     * closed to release the connection. If property <code>com.enioka.jqm.ws.fileSpillThreshold</code> is set, files known to be bigger than
+     * this size (in bytes) are first copied to a local temp file, so that slow readers do not hold connections. Files of unknown size (such
+     * as compressed logs) are always streamed. toLocalFile forces the copy.
+     */
+    private InputStream getFile(String url, boolean toLocalFile)
+    {
+        DbConn cnx = getDbSession();
+        CloseableHttpResponse rs = null;
+        String nameHint = null;
+        long spillThreshold = Long.parseLong(this.p.getProperty("com.enioka.jqm.ws.fileSpillThreshold", "-1"));
+
+        try
+        {
+            HttpClientContext context = HttpClientContext.create();
+            if (SimpleApiSecurity.getId(cnx).usr != null)
+            {
+                CredentialsProvider credsProvider = new BasicCredentialsProvider();
+                credsProvider.setCredentials(AuthScope.ANY,
+                        new UsernamePasswordCredentials(SimpleApiSecurity.getId(cnx).usr, SimpleApiSecurity.getId(cnx).pass));
+                context.setCredentialsProvider(credsProvider);
+            }
 
             // Run HTTP request
             HttpUriRequest rq = new HttpGet(url.toString());
-            rs = cl.execute(rq);
+            rs = getHttpClient(cnx).execute(rq, context);
             if (rs.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
             {
                 throw new JqmClientException(
@@ -1895,34 +2221,46 @@ final class JdbcClient implements JqmClient
                 }
             }
 
+            long length = rs.getEntity().getContentLength();
+            if (!toLocalFile && (spillThreshold < 0 || length < 0 || length <= spillThreshold))
+            {
+                RemoteFileStream res = new RemoteFileStream(rs.getEntity().getContent(), rs);
+                res.nameHint = nameHint;
+                rs = null; // Now closed by the stream.
+                return res;
+            }
+
             // Save the file to a temp local file
-            fos = new FileOutputStream(file);
-            rs.getEntity().writeTo(fos);
+            File destDir = new File(System.getProperty("java.io.tmpdir"));
+            if (!destDir.isDirectory() && !destDir.mkdir())
+            {
+                throw new JqmClientException("could not create temp directory " + destDir.getAbsolutePath());
+            }
+            File file = new File(destDir + "/" + UUID.randomUUID().toString());
+            FileOutputStream fos = new FileOutputStream(file);
+            try
+            {
+                rs.getEntity().writeTo(fos);
+            }
+            finally
+            {
+                closeQuietly(fos);
+            }
             jqmlogger.trace("File was downloaded to " + file.getAbsolutePath());
+
+            SelfDestructFileStream res = new SelfDestructFileStream(file);
+            res.nameHint = nameHint;
+            return res;
         }
         catch (IOException e)
         {
-            throw new JqmClientException("Could not create a webserver-local copy of the file. The remote node may be down. " + url, e);
+            throw new JqmClientException("Could not retrieve the file. The remote node may be down. " + url, e);
         }
         finally
         {
             closeQuietly(cnx);
-            closeQuietly(fos);
             closeQuietly(rs);
-            closeQuietly(cl);
         }
-
-        SelfDestructFileStream res = null;
-        try
-        {
-            res = new SelfDestructFileStream(file);
-        }
-        catch (IOException e)
-        {
-            throw new JqmClientException("File seems not to be present where it should have been downloaded", e);
-        }
-        res.nameHint = nameHint;
-        return res;
     }
 
     @Override
@@ -1999,7 +2337,7 @@ final class JdbcClient implements JqmClient
             throw new JqmClientException("URL is not valid " + url, e);
         }
 
-        return getFile(url.toString());
+        return getFile(url.toString(), false);
     }
 
     // /////////////////////////////////////////////////////////////////////
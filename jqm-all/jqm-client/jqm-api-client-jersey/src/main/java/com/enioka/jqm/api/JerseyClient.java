@@ -35,6 +35,7 @@ import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 
@@ -265,6 +266,34 @@ final class JerseyClient implements JqmClient
         }
     }
 
+    @Override
+    public List<Integer> enqueue(List<JobRequest> jobRequests)
+    {
+        try
+        {
+            List<JobInstance> jis = target.path("ji/batch").request().post(
+                    Entity.entity(new GenericEntity<List<JobRequest>>(jobRequests)
+                    {
+                    }, MediaType.APPLICATION_XML), new GenericType<List<JobInstance>>()
+                    {
+                    });
+            List<Integer> res = new ArrayList<Integer>(jis.size());
+            for (JobInstance ji : jis)
+            {
+                res.add(ji.getId());
+            }
+            return res;
+        }
+        catch (BadRequestException e)
+        {
+            throw new JqmInvalidRequestException(e.getResponse().readEntity(String.class), e);
+        }
+        catch (Exception e)
+        {
+            throw new JqmClientException(e);
+        }
+    }
+
     @Override
     public int enqueue(String applicationName, String userName)
     {
@@ -681,6 +710,18 @@ final class JerseyClient implements JqmClient
         }
     }
 
+    /**
+     * The web service client receives the whole result before giving it to the handler.
+     */
+    @Override
+    public void getJobs(Query query, JobInstanceHandler handler)
+    {
+        for (JobInstance ji : getJobs(query))
+        {
+            handler.onJobInstance(ji);
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////
     // Helpers to quickly access some job instance properties
     ///////////////////////////////////////////////////////////////////////
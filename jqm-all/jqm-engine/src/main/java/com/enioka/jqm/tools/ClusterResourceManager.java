@@ -0,0 +1,380 @@
+package com.enioka.jqm.tools;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.ResourceManager;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Resource Manager shared by all the nodes of the cluster. The resource is a list of named tokens (or a quantity, in which case the
+ * tokens are simply named 1 to n) stored in the database, and each JI may take 0 to n tokens. An environment variable of all attributed
+ * tokens is made available to the JI for when it runs.<br>
+ * <br>
+ * Tokens are leased by nodes: a node owns a token until it gives it back or stops renewing its lease (this is done by the internal poller
+ * of the engine), so the tokens of a dead node become available to the other nodes once the lease has expired. A node leases a few more
+ * tokens than it needs (the prefetch), and keeps up to that many free tokens at the end of a run - so most bookings are done in memory,
+ * without any database access. When a booking fails, all the free tokens of the node are given back, so that another node can gather
+ * enough of them.<br>
+ * <br>
+ * Blocks once the resource is exhausted.<br>
+ * By default, JI do NOT use any token - only job instances with the right parameter will take some.
+ */
+class ClusterResourceManager extends ResourceManagerBase
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(ClusterResourceManager.class);
+
+    private static String PRM_ROOT = "com.enioka.jqm.rm.cluster.";
+    private static String PRM_LIST = "list";
+    private static String PRM_QUANTITY = "quantity";
+    private static String PRM_CONSUMPTION = "consumption";
+    private static String PRM_PREFETCH = "prefetch";
+    private static String PRM_LEASE = "lease";
+
+    /**
+     * The tokens currently leased by this node, indexed by their ID. Access is synchronized on this object.
+     */
+    private Map<Integer, Token> leasedTokens = new HashMap<Integer, Token>(10);
+
+    private class Token
+    {
+        private int id;
+        private String name;
+        private int jiId = 0;
+
+        private Token(int id, String name)
+        {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private int nodeId;
+    private int defaultConsumption;
+    private int prefetch;
+    private int leaseSeconds;
+
+    ClusterResourceManager(ResourceManager rm)
+    {
+        super(rm);
+    }
+
+    @Override
+    protected void setDefaultProperties()
+    {
+        this.currentProperties.put(PRM_ROOT + PRM_LIST, "");
+        this.currentProperties.put(PRM_ROOT + PRM_QUANTITY, "10");
+        this.currentProperties.put(PRM_ROOT + PRM_CONSUMPTION, "0");
+        this.currentProperties.put(PRM_ROOT + PRM_PREFETCH, "2");
+        this.currentProperties.put(PRM_ROOT + PRM_LEASE, "180");
+    }
+
+    @Override
+    String getParameterRoot()
+    {
+        return PRM_ROOT;
+    }
+
+    @Override
+    synchronized void refreshConfiguration(ResourceManager configuration)
+    {
+        // Read configuration
+        super.refreshConfiguration(configuration);
+        this.nodeId = configuration.getNodeId();
+        this.defaultConsumption = getIntegerParameter(PRM_CONSUMPTION);
+        this.prefetch = getIntegerParameter(PRM_PREFETCH);
+        this.leaseSeconds = getIntegerParameter(PRM_LEASE);
+
+        List<String> newItems = new ArrayList<String>();
+        if (!getStringParameter(PRM_LIST).trim().isEmpty())
+        {
+            for (String item : getStringParameter(PRM_LIST).split(","))
+            {
+                newItems.add(item.trim());
+            }
+        }
+        else
+        {
+            for (int i = 1; i <= getIntegerParameter(PRM_QUANTITY); i++)
+            {
+                newItems.add(String.valueOf(i));
+            }
+        }
+
+        // Synchronize the token table with the configuration. All nodes do it on startup, so concurrent inserts are expected.
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+
+            Map<String, Integer> existing = new HashMap<String, Integer>();
+            ResultSet rs = cnx.runSelect("rmt_select_by_key", this.key);
+            while (rs.next())
+            {
+                existing.put(rs.getString(2), rs.getInt(1));
+            }
+            cnx.closeQuietly(rs);
+
+            for (String item : newItems)
+            {
+                if (!existing.containsKey(item))
+                {
+                    try
+                    {
+                        cnx.runUpdate("rmt_insert", this.key, item);
+                        cnx.commit();
+                    }
+                    catch (DatabaseException e)
+                    {
+                        // Ignore it (UK error). It means another node has just created the token.
+                        cnx.rollback();
+                    }
+                }
+            }
+            for (Map.Entry<String, Integer> e : existing.entrySet())
+            {
+                if (!newItems.contains(e.getKey()))
+                {
+                    // Only if not leased - a token leased by another node will be removed on a later startup.
+                    cnx.runUpdate("rmt_delete_by_id", e.getValue(), this.nodeId);
+                }
+            }
+
+            // Tokens leased by this node before a restart are not used anymore.
+            this.leasedTokens.clear();
+            cnx.runUpdate("rmt_update_release_node", this.key, this.nodeId);
+            cnx.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+
+        // Log
+        jqmlogger.info(
+                "\tConfigured cluster resource manager [{}] with {} tokens - taking {} per JI by default, prefetching {}, leased for {}s",
+                this.key, newItems.size(), this.defaultConsumption, this.prefetch, this.leaseSeconds);
+    }
+
+    @Override
+    synchronized BookingStatus bookResource(JobInstance ji, DbConn cnx)
+    {
+        int slots = this.getIntegerParameter(PRM_CONSUMPTION, ji, true);
+        if (slots == 0)
+        {
+            return BookingStatus.BOOKED; // Perf optim.
+        }
+
+        // Nominal case: enough tokens are already leased by this node. Otherwise, lease more, plus a few for the next bookings.
+        List<Token> free = getFreeTokens();
+        if (free.size() < slots)
+        {
+            lease(slots - free.size() + this.prefetch);
+            free = getFreeTokens();
+        }
+
+        if (free.size() < slots)
+        {
+            // Failure.
+            jqmlogger.trace("Resource reservation KO for JI {} on RM {} - {} tokens needed, {} available", ji.getId(), this.key, slots,
+                    free.size());
+
+            // Keeping the free tokens would prevent other nodes from gathering enough of them (two nodes each holding half of the tokens
+            // would never be able to run a JI needing more than half) - so give them all back, prefetch included.
+            giveBackFreeTokens(0);
+            return free.isEmpty() ? BookingStatus.EXHAUSTED : BookingStatus.FAILED;
+        }
+
+        List<String> booked = new ArrayList<String>(slots);
+        for (Token t : free.subList(0, slots))
+        {
+            t.jiId = ji.getId();
+            booked.add(t.name);
+        }
+        ji.addEnvVar(String.format("JQM_RM_CLUSTER_%s_ITEMS", this.key.toUpperCase()), StringUtils.join(booked, ","));
+        jqmlogger.debug("Booking {} tokens for RM {}", booked.size(), this.key);
+        return BookingStatus.BOOKED;
+    }
+
+    @Override
+    synchronized void releaseResource(JobInstance ji)
+    {
+        int released = 0;
+        for (Token t : this.leasedTokens.values())
+        {
+            if (t.jiId == ji.getId())
+            {
+                t.jiId = 0;
+                released++;
+            }
+        }
+        if (released == 0)
+        {
+            return;
+        }
+        jqmlogger.debug("Releasing {} tokens for RM {}", released, this.key);
+
+        // Keep the prefetch, give the other free tokens back to the cluster.
+        giveBackFreeTokens(this.prefetch);
+    }
+
+    /**
+     * Gives the free tokens of this node back to the cluster, except the given number of them. Must be called with the object lock held.
+     */
+    private void giveBackFreeTokens(int keep)
+    {
+        List<Token> free = getFreeTokens();
+        if (free.size() <= keep)
+        {
+            return;
+        }
+        List<Integer> surplus = new ArrayList<Integer>();
+        for (Token t : free.subList(keep, free.size()))
+        {
+            surplus.add(t.id);
+        }
+
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            cnx.runUpdate("rmt_update_release_by_id_list", this.nodeId, surplus);
+            cnx.commit();
+            for (Integer id : surplus)
+            {
+                this.leasedTokens.remove(id);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // Not an issue - the tokens are still leased by this node and will simply be used by the next bookings.
+            jqmlogger.warn("Could not give back tokens of RM " + this.key + " to the cluster", e);
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+    }
+
+    /**
+     * Renews the lease of all the tokens of this node.
+     */
+    @Override
+    synchronized void heartbeat(DbConn cnx)
+    {
+        if (this.leasedTokens.isEmpty())
+        {
+            return;
+        }
+
+        if (cnx.runUpdate("rmt_update_renew", this.key, this.nodeId).nbUpdated == this.leasedTokens.size())
+        {
+            return;
+        }
+
+        // Some leases have expired (long database failure...) and tokens were taken by other nodes. They must not be used anymore.
+        Set<Integer> stillLeased = new HashSet<Integer>(cnx.runSelectColumn("rmt_select_id_by_node", Integer.class, this.key, this.nodeId));
+        for (Token t : new ArrayList<Token>(this.leasedTokens.values()))
+        {
+            if (!stillLeased.contains(t.id))
+            {
+                if (t.jiId != 0)
+                {
+                    jqmlogger.warn("Lease of token {} of RM {} has expired while used by JI {}", t.name, this.key, t.jiId);
+                }
+                this.leasedTokens.remove(t.id);
+            }
+        }
+    }
+
+    /**
+     * Gives back all the tokens of this node.
+     */
+    @Override
+    synchronized void stop(DbConn cnx)
+    {
+        cnx.runUpdate("rmt_update_release_node", this.key, this.nodeId);
+        this.leasedTokens.clear();
+    }
+
+    /**
+     * Tries to lease free tokens (or tokens with an expired lease) with a dedicated session, so that the lease is committed at once
+     * whatever the outcome of the polling transaction. Tokens are taken in ID order by every node, which prevents deadlocks.
+     */
+    private void lease(int count)
+    {
+        List<Token> newTokens = new ArrayList<Token>(count);
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+
+            List<Token> candidates = new ArrayList<Token>();
+            ResultSet rs = cnx.runSelect("rmt_select_free", this.key, this.leaseSeconds);
+            while (rs.next())
+            {
+                candidates.add(new Token(rs.getInt(1), rs.getString(2)));
+            }
+            cnx.closeQuietly(rs);
+
+            for (Token t : candidates)
+            {
+                // Another node may have taken the token since the select.
+                if (cnx.runUpdate("rmt_update_take", this.nodeId, t.id, this.leaseSeconds).nbUpdated == 1)
+                {
+                    newTokens.add(t);
+                    if (newTokens.size() == count)
+                    {
+                        break;
+                    }
+                }
+            }
+            cnx.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+
+        for (Token t : newTokens)
+        {
+            this.leasedTokens.put(t.id, t);
+        }
+        jqmlogger.debug("Leased {} tokens out of {} requested for RM {}", newTokens.size(), count, this.key);
+    }
+
+    private List<Token> getFreeTokens()
+    {
+        List<Token> res = new ArrayList<Token>();
+        for (Token t : this.leasedTokens.values())
+        {
+            if (t.jiId == 0)
+            {
+                res.add(t);
+            }
+        }
+        return res;
+    }
+
+    // getSlotsAvailable is not overloaded: the tokens which can still be leased from the cluster are unknown without a query.
+}
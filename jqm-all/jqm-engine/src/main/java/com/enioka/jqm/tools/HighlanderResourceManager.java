@@ -1,9 +1,10 @@
 package com.enioka.jqm.tools;
 
 import java.sql.ResultSet;
-import java.util.HashMap;
-import java.util.Map;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentMap;
 
+import com.enioka.jqm.jdbc.DatabaseException;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.ResourceManager;
@@ -15,19 +16,31 @@ import org.slf4j.LoggerFactory;
  * Highlander is when only a single instance of the same job definition can run at the same time on all queues.<br>
  * The resource is therefore defined here as "a single slot per job definition".<br>
  * <br>
- * This RM does not actually change anything in database - it simply holds a lock during job analysis. To hold this lock it must open a
- * connection of its own - that way locks can be granular. If it used the poller connection instead, locks would only be released when it is
- * committed as it is the only way to release them, and that could cause deadlocks.
+ * Inside a node, the highlander job definitions booked or running are tracked in memory (a map shared by all the pollers of the engine),
+ * so most refusals need no database access at all.<br>
+ * Between nodes, the slot is the HIGHLANDER_JI column of the job definition, which holds the ID of the job instance which was last allowed
+ * to run. It is claimed with a conditional UPDATE done inside the poller transaction, so it is committed (or rolled back) together with the
+ * claim of the job instance itself - no other connection is needed and the row lock is only held until the end of the poller transaction.
+ * The column is not reset at the end of the run: a slot whose job instance is not attributed or running anymore is simply considered free
+ * and taken over.<br>
+ * As a poller transaction may claim several job definitions, their rows are always locked by increasing ID, so that two nodes cannot
+ * deadlock: a job definition with a lower ID than one already claimed inside the current transaction is refused, and left for the next
+ * poller loop.
  */
 class HighlanderResourceManager extends ResourceManagerBase
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(HighlanderResourceManager.class);
 
-    private Map<JobInstance, DbConn> openLocks = new HashMap<JobInstance, DbConn>();
+    private ConcurrentMap<Integer, Integer> booked;
 
-    HighlanderResourceManager(ResourceManager rm)
+    // The transaction (i.e. the poller loop connection) inside which job definition rows are locked, and the highest locked ID.
+    private DbConn lockingCnx = null;
+    private int highestLockedJdId = -1;
+
+    HighlanderResourceManager(ResourceManager rm, ConcurrentMap<Integer, Integer> booked)
     {
         super(rm);
+        this.booked = booked;
     }
 
     @Override
@@ -45,52 +58,130 @@ class HighlanderResourceManager extends ResourceManagerBase
             // Non-highlander JI do not need anything from this RM.
             return BookingStatus.BOOKED;
         }
-        cnx = Helpers.getNewDbSession();
 
-        // Lock the definition in the DB - this is a convention for highlander JI between clients and engine.
-        jqmlogger.trace("Locking JI ID {} of rank {} - {}", ji.getId(), ji.getInternalPosition(), ji.getJD().getApplicationName());
-        ResultSet rs = cnx.runSelect(true, "jd_select_by_id_lock", ji.getJD().getId());
+        // Another instance of the same JD may already be booked or running on this node (on any queue). It will run, so this one cannot.
+        Integer other = booked.putIfAbsent(ji.getJdId(), ji.getId());
+        if (other != null && other != ji.getId())
+        {
+            jqmlogger.trace("Resource reservation KO for JI {} - {} - JI {} is already booked or running on this node", ji.getId(),
+                    ji.getJD().getApplicationName(), other);
+            return BookingStatus.FAILED;
+        }
 
-        // We have the lock. Check if there are already running instances.
-        Integer runningCount = cnx.runSelectSingle("ji_select_existing_highlander_2", Integer.class, ji.getJD().getId());
-        if (runningCount != 0)
+        // Arbitration with the other nodes.
+        boolean claimed;
+        try
+        {
+            claimed = claim(ji, cnx);
+        }
+        catch (RuntimeException e)
+        {
+            booked.remove(ji.getJdId(), ji.getId());
+            throw e;
+        }
+        if (!claimed)
         {
-            // Already running, so skip this JI.
-            cnx.closeQuietly(rs); // release the lock.
-            cnx.rollback();
-            cnx.close();
+            booked.remove(ji.getJdId(), ji.getId());
             jqmlogger.trace("Resource reservation KO for JI {} - {} - one instance is already running", ji.getId(),
                     ji.getJD().getApplicationName());
             return BookingStatus.FAILED;
         }
 
-        // If here, no running instance and lock is held. It will only be released when commit or rollback is called on the connection.
         jqmlogger.trace("Resourced reserved for JI {} - {}", ji.getId(), ji.getJD().getApplicationName());
-        openLocks.put(ji, cnx);
         return BookingStatus.BOOKED;
     }
 
+    /**
+     * Takes the slot of the job definition inside the current transaction of the given connection.
+     *
+     * @return true if the slot was free.
+     */
+    private boolean claim(JobInstance ji, DbConn cnx)
+    {
+        // Stable lock order.
+        if (cnx != lockingCnx)
+        {
+            lockingCnx = cnx;
+            highestLockedJdId = -1;
+        }
+        if (ji.getJdId() < highestLockedJdId)
+        {
+            jqmlogger.trace("JI {} is left for the next loop as job definition {} was already locked by this transaction", ji.getId(),
+                    highestLockedJdId);
+            return false;
+        }
+        highestLockedJdId = ji.getJdId();
+
+        // Nominal case: free slot.
+        if (cnx.runUpdate("highlander_update_claim", ji.getId(), ji.getJdId()).nbUpdated == 1)
+        {
+            return true;
+        }
+
+        // Slot is taken, but its job instance may have ended since.
+        Integer holder;
+        int holderRunning;
+        ResultSet rs = cnx.runSelect("highlander_select_claim", ji.getJdId());
+        try
+        {
+            if (!rs.next())
+            {
+                throw new DatabaseException("Job definition " + ji.getJdId() + " has disappeared");
+            }
+            holder = rs.getInt(1);
+            holderRunning = rs.getInt(2);
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        if (holderRunning != 0)
+        {
+            return false;
+        }
+
+        // Take over the slot - only if no one else did it in the meantime.
+        return cnx.runUpdate("highlander_update_takeover", ji.getId(), ji.getJdId(), holder).nbUpdated == 1;
+    }
+
     @Override
     void rollbackResourceBooking(JobInstance ji, DbConn cnx)
     {
-        cnx = openLocks.remove(ji);
-        if (cnx != null)
+        if (!ji.getJD().isHighlander())
         {
-            jqmlogger.trace("Rollbacking resource reservation for JI {} on app {}", ji.getId(), ji.getJD().getApplicationName());
-            cnx.rollback();
-            cnx.close();
+            return;
+        }
+        jqmlogger.trace("Rollbacking resource reservation for JI {} on app {}", ji.getId(), ji.getJD().getApplicationName());
+
+        // The poller transaction may go on with other job instances, so the claim must be undone. The in-memory booking is always removed,
+        // even if the transaction is failing.
+        try
+        {
+            cnx.runUpdate("highlander_update_release", ji.getJdId(), ji.getId());
+        }
+        finally
+        {
+            booked.remove(ji.getJdId(), ji.getId());
         }
     }
 
     @Override
     void commitResourceBooking(JobInstance ji, DbConn cnx)
     {
-        cnx = openLocks.remove(ji);
-        if (cnx != null)
+        // The poller transaction has ended, and its row locks with it.
+        lockingCnx = null;
+    }
+
+    @Override
+    void releaseResource(JobInstance ji)
+    {
+        if (ji.getJD().isHighlander())
         {
-            jqmlogger.trace("Committing resource reservation for JI {} on app {}", ji.getId(), ji.getJD().getApplicationName());
-            cnx.commit();
-            cnx.close();
+            booked.remove(ji.getJdId(), ji.getId());
         }
     }
 }
@@ -0,0 +1,300 @@
+package com.enioka.jqm.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.jdbc.QueryResult;
+import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.model.Node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically removes the history of job instances which have ended more than <code>historyRetentionDays</code> days ago, with their
+ * messages, deliverables and parameters. Only one node inside the cluster does it at a given time (the election uses the WITNESS table,
+ * like the {@link CronScheduler}).<br>
+ * Rows are removed by chunks of <code>historyPurgeChunkSize</code> history rows, each inside its own short transaction, with a pause
+ * of <code>historyPurgePauseMs</code> between chunks - so the purge never holds many locks nor competes too hard with the job
+ * instances running at the same time.<br>
+ * If <code>historyArchiveDirectory</code> is set, the purged history, message, parameter and deliverable rows are appended to daily tab
+ * separated files inside this directory (one file per table). Rows are read before their removal but only written once it is committed,
+ * so a chunk which failed and is purged again later is not archived twice. (A crash just after the commit may lose the archive of one
+ * chunk.)<br>
+ * Deliverable files themselves are not removed.
+ */
+class HistoryRetentionService implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(HistoryRetentionService.class);
+
+    // List parameters are limited to this size on some databases.
+    private static final int MAX_CHUNK_SIZE = 500;
+
+    // Lead is kept at least this long (seconds) whatever the period, so that two nodes never purge at the same time.
+    private static final int MIN_LEASE_S = 60;
+
+    // Archive file prefix and query, for each purged table.
+    private static final String[][] ARCHIVES = { { "history_archive_", "history_select_all_by_id_list" },
+            { "message_archive_", "message_select_by_ji_list" }, { "parameter_archive_", "jiprm_select_by_ji_list" },
+            { "deliverable_archive_", "deliverable_select_by_ji_list" } };
+
+    private Node node;
+    private int retentionDays;
+    private int chunkSize;
+    private int pauseMs;
+    private int periodMs;
+    private String archiveDirectory;
+
+    private volatile boolean run = true;
+    private Thread t;
+
+    HistoryRetentionService(JqmEngine e)
+    {
+        this.node = e.getNode();
+
+        DbConn cnx = Helpers.getNewDbSession();
+        try
+        {
+            this.retentionDays = Integer.parseInt(GlobalParameter.getParameter(cnx, "historyRetentionDays", "0"));
+            if (retentionDays <= 0)
+            {
+                jqmlogger.info("History retention is disabled");
+                return;
+            }
+            this.chunkSize = Math.max(1,
+                    Math.min(MAX_CHUNK_SIZE, Integer.parseInt(GlobalParameter.getParameter(cnx, "historyPurgeChunkSize", "500"))));
+            this.pauseMs = Integer.parseInt(GlobalParameter.getParameter(cnx, "historyPurgePauseMs", "100"));
+            this.periodMs = Integer.parseInt(GlobalParameter.getParameter(cnx, "historyPurgePeriodMs", "3600000"));
+            this.archiveDirectory = GlobalParameter.getParameter(cnx, "historyArchiveDirectory", "");
+
+            try
+            {
+                cnx.runUpdate("w_insert_retention", this.node.getId());
+                cnx.commit();
+            }
+            catch (DatabaseException ex)
+            {
+                // Ignore it (UK error). It means the line already exists inside the database.
+            }
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+
+        jqmlogger.info("History older than " + retentionDays + " days will be removed by chunks of " + chunkSize + " every " + periodMs
+                + "ms" + (archiveDirectory.isEmpty() ? "" : " and archived inside " + archiveDirectory));
+
+        t = new Thread(this);
+        t.start();
+    }
+
+    void stop()
+    {
+        this.run = false;
+        if (t != null)
+        {
+            this.t.interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("HISTORY_RETENTION;purging;");
+        jqmlogger.info("Start of the history retention service");
+        while (run)
+        {
+            DbConn cnx = null;
+            try
+            {
+                cnx = Helpers.getNewDbSession();
+                if (takeLead(cnx))
+                {
+                    purge(cnx);
+                }
+                else
+                {
+                    jqmlogger.trace("History retention is done by another node");
+                }
+            }
+            catch (InterruptedException e)
+            {
+                run = false;
+            }
+            catch (Exception e)
+            {
+                jqmlogger.error("History retention pass has failed - will retry later", e);
+            }
+            finally
+            {
+                Helpers.closeQuietly(cnx);
+            }
+
+            try
+            {
+                Thread.sleep(periodMs);
+            }
+            catch (InterruptedException e)
+            {
+                run = false;
+            }
+        }
+        jqmlogger.info("History retention service has stopped");
+    }
+
+    /**
+     * Takes (or keeps) the lead for a little more than a period, and at least {@link #MIN_LEASE_S} seconds.
+     */
+    private boolean takeLead(DbConn cnx)
+    {
+        QueryResult qr = cnx.runUpdate("w_update_take_retention", this.node.getId(), this.node.getId(), this.node.getId(),
+                Math.max(MIN_LEASE_S, (int) (periodMs * 1.2 / 1000)));
+        cnx.commit();
+        return qr.nbUpdated == 1;
+    }
+
+    private void purge(DbConn cnx) throws InterruptedException, SQLException, IOException
+    {
+        Calendar limit = Calendar.getInstance();
+        limit.add(Calendar.DAY_OF_YEAR, -retentionDays);
+
+        int total = 0;
+        while (run)
+        {
+            List<Integer> ids = new ArrayList<Integer>(chunkSize);
+            ResultSet rs = cnx.runSelectPage("history_select_ids_for_retention", 0, chunkSize, limit);
+            while (rs.next())
+            {
+                ids.add(rs.getInt(1));
+            }
+            rs.close();
+            if (ids.isEmpty())
+            {
+                break;
+            }
+
+            List<List<String>> archives = new ArrayList<List<String>>(ARCHIVES.length);
+            if (!archiveDirectory.isEmpty())
+            {
+                for (String[] archive : ARCHIVES)
+                {
+                    archives.add(select(cnx, archive[1], ids));
+                }
+            }
+            cnx.runUpdate("message_delete_by_ji_list", ids);
+            cnx.runUpdate("deliverable_delete_by_ji_list", ids);
+            cnx.runUpdate("jiprm_delete_by_ji_list", ids);
+            cnx.runUpdate("history_delete_by_id_list", ids);
+            cnx.commit();
+
+            for (int i = 0; i < archives.size(); i++)
+            {
+                append(ARCHIVES[i][0], archives.get(i));
+            }
+            total += ids.size();
+            jqmlogger.debug("History retention has removed {} job instances", ids.size());
+
+            if (ids.size() < chunkSize)
+            {
+                break;
+            }
+
+            Thread.sleep(pauseMs);
+            if (!takeLead(cnx))
+            {
+                jqmlogger.info("History retention was taken over by another node");
+                break;
+            }
+        }
+
+        if (total > 0)
+        {
+            jqmlogger.info("History retention has removed " + total + " job instances which had ended before " + limit.getTime());
+        }
+    }
+
+    /**
+     * Reads the rows to archive as tab separated lines. The first line is the header.
+     */
+    private static List<String> select(DbConn cnx, String queryKey, List<Integer> ids) throws SQLException
+    {
+        List<String> res = new ArrayList<String>();
+        ResultSet rs = cnx.runSelect(queryKey, ids);
+        try
+        {
+            ResultSetMetaData meta = rs.getMetaData();
+            int nbColumns = meta.getColumnCount();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i <= nbColumns; i++)
+            {
+                sb.append(i > 1 ? "\t" : "").append(meta.getColumnName(i));
+            }
+            res.add(sb.toString());
+
+            while (rs.next())
+            {
+                sb = new StringBuilder();
+                for (int i = 1; i <= nbColumns; i++)
+                {
+                    Object value = rs.getObject(i);
+                    sb.append(i > 1 ? "\t" : "").append(value == null ? "" : value.toString().replaceAll("[\t\r\n]", " "));
+                }
+                res.add(sb.toString());
+            }
+        }
+        finally
+        {
+            rs.close();
+        }
+        return res;
+    }
+
+    /**
+     * Appends lines read by {@link #select(DbConn, String, List)} to the daily archive file with the given prefix. The header is only
+     * written at the top of a new file.
+     */
+    private void append(String prefix, List<String> lines) throws IOException
+    {
+        if (lines.size() <= 1)
+        {
+            return;
+        }
+
+        File dir = new File(archiveDirectory);
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("Could not create history archive directory " + dir.getAbsolutePath());
+        }
+        File archive = new File(dir, prefix + new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".tsv");
+        boolean isNew = !archive.exists();
+
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(archive, true), "UTF-8"));
+        try
+        {
+            for (int i = isNew ? 0 : 1; i < lines.size(); i++)
+            {
+                w.write(lines.get(i));
+                w.write("\n");
+            }
+        }
+        finally
+        {
+            w.close();
+        }
+    }
+}
@@ -28,15 +28,17 @@ import org.slf4j.LoggerFactory;
 
 import com.enioka.jqm.jdbc.DatabaseException;
 import com.enioka.jqm.jdbc.DbConn;
-import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.Instruction;
 import com.enioka.jqm.model.Node;
+import com.enioka.jqm.model.NodeHeartbeat;
 
 /**
  * The internal poller is responsible for doing all the repetitive tasks of an engine (excluding polling queues). Namely: check if
  * {@link Node#isStop()} has become true (stop order) and update {@link Node#setLastSeenAlive(java.util.Calendar)} to make visible to the
- * whole cluster that the engine is still alive and that no other engine should start with the same node name.
+ * whole cluster that the engine is still alive and that no other engine should start with the same node name.<br>
+ * All the checks are done with a single {@link NodeHeartbeat} query. It is also the only thread reading the configuration of the queue
+ * pollers, which is pushed to them through {@link JqmEngine#syncPollers(DbConn, Node)} when it has changed.
  */
 class InternalPoller implements Runnable
 {
@@ -76,6 +78,8 @@ class InternalPoller implements Runnable
         Thread.currentThread().setName("INTERNAL_POLLER;polling orders;");
         jqmlogger.info("Start of the internal poller");
         DbConn cnx = null;
+        String lastDeploymentStamp = null;
+        Boolean lastEnabled = null;
         Calendar lastJndiPurge = Calendar.getInstance();
 
         // Launch main loop
@@ -99,15 +103,21 @@ class InternalPoller implements Runnable
                 // Get session
                 cnx = Helpers.getNewDbSession();
 
-                // Check if stop order
-                try
-                {
-                    node = Node.select_single(cnx, "node_select_by_id", node.getId());
-                }
-                catch (NoResultException e)
+                // I am alive
+                cnx.runUpdate("node_update_alive_by_id", node.getId());
+
+                // Everything else is checked with a single query.
+                NodeHeartbeat heartbeat = NodeHeartbeat.select(cnx, node.getId());
+
+                // Resource managers may need to say they are alive too (leases...)
+                for (ResourceManagerBase rm : this.engine.getResourceManagers())
                 {
-                    node = null;
+                    rm.heartbeat(cnx);
                 }
+                cnx.commit();
+
+                // Check if stop order
+                node = heartbeat == null ? null : heartbeat.getNode();
                 if (node == null || node.isStop())
                 {
                     jqmlogger.info("Node has received a stop order from the database or was removed from the database");
@@ -124,22 +134,23 @@ class InternalPoller implements Runnable
                     this.engine.getHandler().onConfigurationChanged(node);
                 }
 
-                // I am alive
-                cnx.runUpdate("node_update_alive_by_id", node.getId());
-                cnx.commit();
-
-                // Have queue bindings changed, or is engine disabled?
-                this.engine.syncPollers(cnx, node);
+                // Have queue bindings changed, or is engine disabled? Deployment parameters are only read when something has changed.
+                if (!heartbeat.getDeploymentStamp().equals(lastDeploymentStamp) || !node.getEnabled().equals(lastEnabled))
+                {
+                    this.engine.syncPollers(cnx, node);
+                    lastDeploymentStamp = heartbeat.getDeploymentStamp();
+                    lastEnabled = node.getEnabled();
+                }
+                this.engine.setStrictPollingPeriod(heartbeat.isStrictPollingPeriod());
 
                 // Should JNDI cache be purged?
-                Calendar bflkpm = Calendar.getInstance();
-                int i = cnx.runSelectSingle("jndi_select_count_changed", Integer.class, lastJndiPurge, lastJndiPurge);
-                if (i > 0L)
+                Calendar jndiLastModified = heartbeat.getJndiLastModified();
+                if (jndiLastModified != null && jndiLastModified.after(lastJndiPurge))
                 {
                     try
                     {
                         ((JndiContext) NamingManager.getInitialContext(null)).resetSingletons();
-                        lastJndiPurge = bflkpm;
+                        lastJndiPurge = jndiLastModified;
                     }
                     catch (Exception e)
                     {
@@ -150,30 +161,33 @@ class InternalPoller implements Runnable
                 }
 
                 // Should job instances be killed or changed priorities?
-                try
+                if (heartbeat.getPendingInstructionCount() > 0)
                 {
-                    ResultSet rs = cnx.runSelect("ji_select_instructions_by_node", node.getId());
-                    while (rs.next())
+                    try
                     {
-                        Integer jiid = rs.getInt(1);
-                        String instr = rs.getString(2);
-                        Instruction instruction;
-                        try
-                        {
-                            instruction = Instruction.valueOf(instr);
-                        }
-                        catch (IllegalArgumentException ex2)
+                        ResultSet rs = cnx.runSelect("ji_select_instructions_by_node", node.getId());
+                        while (rs.next())
                         {
-                            jqmlogger.warn("An unknown instruction was found and is ignored: " + instr);
-                            continue;
+                            Integer jiid = rs.getInt(1);
+                            String instr = rs.getString(2);
+                            Instruction instruction;
+                            try
+                            {
+                                instruction = Instruction.valueOf(instr);
+                            }
+                            catch (IllegalArgumentException ex2)
+                            {
+                                jqmlogger.warn("An unknown instruction was found and is ignored: " + instr);
+                                continue;
+                            }
+
+                            this.engine.getRunningJobInstanceManager().handleInstruction(jiid, instruction);
                         }
-
-                        this.engine.getRunningJobInstanceManager().handleInstruction(jiid, instruction);
                     }
-                }
-                catch (SQLException e)
-                {
-                    throw new DatabaseException(e);
+                    catch (SQLException e)
+                    {
+                        throw new DatabaseException(e);
+                    }
                 }
 
                 // All engine pollings done!
@@ -0,0 +1,295 @@
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * In-memory registry allowing job instances waiting for other job instances (see {@link JobInstanceEngineApi#waitChild(int)} and
+ * {@link JobInstanceEngineApi#waitChildren()}) to be woken up as soon as the awaited job instances end inside this JVM, instead of polling
+ * the database.<br>
+ * Job instances running on other nodes never signal anything here: a single thread checks the database for all the waiters at once,
+ * every second while there are waiters (and at once when a waiter registers or when a child ends inside this JVM).
+ */
+final class JobInstanceEndNotifier
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(JobInstanceEndNotifier.class);
+
+    private static final long POLL_PERIOD_MS = 1000;
+
+    private static final Map<Integer, List<Waiter>> byId = new HashMap<Integer, List<Waiter>>();
+    private static final Map<Integer, List<Waiter>> byParent = new HashMap<Integer, List<Waiter>>();
+
+    private static Thread poller = null;
+    private static boolean pollRequested = false;
+
+    private static final AtomicLong pollCount = new AtomicLong();
+    private static final AtomicLong signalCount = new AtomicLong();
+
+    private JobInstanceEndNotifier()
+    {
+        // Static only.
+    }
+
+    /**
+     * A registration, to be closed after use.
+     */
+    static final class Waiter
+    {
+        private final Integer id;
+        private final boolean isParent;
+        private boolean ended = false;
+
+        private Waiter(Integer id, boolean isParent)
+        {
+            this.id = id;
+            this.isParent = isParent;
+        }
+
+        /**
+         * Waits for the end of the awaited job instances or the end of the timeout, whichever comes first.
+         *
+         * @return true if the awaited job instances have ended.
+         */
+        synchronized boolean await(long timeoutMs) throws InterruptedException
+        {
+            if (!ended)
+            {
+                wait(timeoutMs);
+            }
+            return ended;
+        }
+
+        private synchronized void end()
+        {
+            ended = true;
+            notifyAll();
+        }
+
+        void close()
+        {
+            synchronized (JobInstanceEndNotifier.class)
+            {
+                Map<Integer, List<Waiter>> map = isParent ? byParent : byId;
+                List<Waiter> l = map.get(id);
+                if (l != null)
+                {
+                    l.remove(this);
+                    if (l.isEmpty())
+                    {
+                        map.remove(id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Register interest in the end of the given job instance.
+     */
+    static Waiter waitFor(int jobInstanceId)
+    {
+        return register(byId, new Waiter(jobInstanceId, false));
+    }
+
+    /**
+     * Register interest in the end of all the children of the given job instance.
+     */
+    static Waiter waitForChildren(int parentId)
+    {
+        return register(byParent, new Waiter(parentId, true));
+    }
+
+    private static synchronized Waiter register(Map<Integer, List<Waiter>> map, Waiter w)
+    {
+        List<Waiter> l = map.get(w.id);
+        if (l == null)
+        {
+            l = new ArrayList<Waiter>(1);
+            map.put(w.id, l);
+        }
+        l.add(w);
+
+        // The awaited job instances may already be over.
+        requestPoll();
+        return w;
+    }
+
+    /**
+     * Called when the end of a job instance has been committed to the database.
+     */
+    static void signalEnd(int jobInstanceId, Integer parentId)
+    {
+        List<Waiter> toEnd = null;
+        synchronized (JobInstanceEndNotifier.class)
+        {
+            if (byId.isEmpty() && byParent.isEmpty())
+            {
+                return;
+            }
+            List<Waiter> l = byId.get(jobInstanceId);
+            if (l != null)
+            {
+                toEnd = new ArrayList<Waiter>(l);
+                signalCount.incrementAndGet();
+            }
+            if (parentId != null && byParent.containsKey(parentId))
+            {
+                // Other children may still be running, perhaps on other nodes.
+                signalCount.incrementAndGet();
+                requestPoll();
+            }
+        }
+
+        if (toEnd != null)
+        {
+            for (Waiter w : toEnd)
+            {
+                w.end();
+            }
+        }
+    }
+
+    /**
+     * Debug counter: number of database checks done on behalf of the waiters since startup.
+     */
+    static long getPollCount()
+    {
+        return pollCount.get();
+    }
+
+    /**
+     * Debug counter: number of job instance ends inside this JVM which have woken a waiter (or triggered a check for a waiting parent)
+     * since startup.
+     */
+    static long getSignalCount()
+    {
+        return signalCount.get();
+    }
+
+    /**
+     * Must be called while holding the class lock. Pending requests are coalesced into a single database check.
+     */
+    private static void requestPoll()
+    {
+        pollRequested = true;
+        if (poller != null)
+        {
+            JobInstanceEndNotifier.class.notifyAll();
+            return;
+        }
+
+        poller = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pollLoop();
+            }
+        }, "JQM job instance end poller");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    private static void pollLoop()
+    {
+        while (true)
+        {
+            List<Integer> ids;
+            List<Integer> parents;
+            synchronized (JobInstanceEndNotifier.class)
+            {
+                if (!pollRequested)
+                {
+                    try
+                    {
+                        JobInstanceEndNotifier.class.wait(POLL_PERIOD_MS);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Nobody should interrupt this thread - simply check now.
+                    }
+                }
+                if (byId.isEmpty() && byParent.isEmpty())
+                {
+                    // A new thread is created by the next registration.
+                    poller = null;
+                    pollRequested = false;
+                    return;
+                }
+                pollRequested = false;
+                ids = new ArrayList<Integer>(byId.keySet());
+                parents = new ArrayList<Integer>(byParent.keySet());
+            }
+
+            try
+            {
+                poll(ids, parents);
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.warn("Could not check the end of awaited job instances - will retry", e);
+            }
+        }
+    }
+
+    /**
+     * A single database check for all waiters: a job instance has ended once it is not inside the JOB_INSTANCE table anymore.
+     */
+    private static void poll(List<Integer> ids, List<Integer> parents)
+    {
+        Set<Integer> liveIds = Collections.emptySet();
+        Set<Integer> liveParents = Collections.emptySet();
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            pollCount.incrementAndGet();
+            if (!ids.isEmpty())
+            {
+                liveIds = new HashSet<Integer>(cnx.runSelectColumn("ji_select_id_by_id_list", Integer.class, ids));
+            }
+            if (!parents.isEmpty())
+            {
+                liveParents = new HashSet<Integer>(cnx.runSelectColumn("ji_select_parent_by_parent_list", Integer.class, parents));
+            }
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+
+        List<Waiter> toEnd = new ArrayList<Waiter>();
+        synchronized (JobInstanceEndNotifier.class)
+        {
+            for (Integer id : ids)
+            {
+                if (!liveIds.contains(id) && byId.containsKey(id))
+                {
+                    toEnd.addAll(byId.get(id));
+                }
+            }
+            for (Integer id : parents)
+            {
+                if (!liveParents.contains(id) && byParent.containsKey(id))
+                {
+                    toEnd.addAll(byParent.get(id));
+                }
+            }
+        }
+        for (Waiter w : toEnd)
+        {
+            w.end();
+        }
+    }
+}
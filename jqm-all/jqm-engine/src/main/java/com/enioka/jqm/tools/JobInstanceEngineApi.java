@@ -16,7 +16,6 @@ import com.enioka.jqm.api.JqmClient;
 import com.enioka.jqm.api.JqmClientException;
 import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.JqmKillException;
-import com.enioka.jqm.api.Query;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.model.GlobalParameter;
@@ -35,11 +34,17 @@ class JobInstanceEngineApi implements JobManager
     private static Logger jqmlogger = LoggerFactory.getLogger(JobInstanceEngineApi.class);
 
     private JobInstance ji;
+    private JobInstanceReporter reporter;
     private Calendar lastPeek = null;
 
-    JobInstanceEngineApi(JobInstance ji)
+    /**
+     * @param reporter
+     *                     if null, messages and progress are written at once.
+     */
+    JobInstanceEngineApi(JobInstance ji, JobInstanceReporter reporter)
     {
         this.ji = ji;
+        this.reporter = reporter;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -56,6 +61,12 @@ class JobInstanceEngineApi implements JobManager
     @Override
     public void sendMsg(String msg)
     {
+        if (reporter != null)
+        {
+            reporter.sendMsg(ji.getId(), msg);
+            return;
+        }
+
         DbConn cnx = Helpers.getNewDbSession();
         try
         {
@@ -77,10 +88,16 @@ class JobInstanceEngineApi implements JobManager
     @Override
     public void sendProgress(Integer msg)
     {
+        this.ji.setProgress(msg); // Not persisted, but useful to the Loader.
+        if (reporter != null && msg != null)
+        {
+            reporter.sendProgress(ji.getId(), msg);
+            return;
+        }
+
         DbConn cnx = Helpers.getNewDbSession();
         try
         {
-            this.ji.setProgress(msg); // Not persisted, but useful to the Loader.
             cnx.runUpdate("jj_update_progress_by_id", msg, ji.getId());
             cnx.commit();
         }
@@ -125,43 +142,13 @@ class JobInstanceEngineApi implements JobManager
     @Override
     public void waitChild(int id)
     {
-        JqmClient c = getJqmClient();
-        Query q = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).setJobInstanceId(id);
-
-        while (!c.getJobs(q).isEmpty())
-        {
-            try
-            {
-                Thread.sleep(1000);
-                handleInstructions();
-            }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
+        waitForEnd(JobInstanceEndNotifier.waitFor(id));
     }
 
     @Override
     public void waitChildren()
     {
-        JqmClient c = getJqmClient();
-        Query q = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).setParentId(ji.getId());
-
-        while (!c.getJobs(q).isEmpty())
-        {
-            try
-            {
-                Thread.sleep(1000);
-                handleInstructions();
-            }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
+        waitForEnd(JobInstanceEndNotifier.waitForChildren(ji.getId()));
     }
 
     @Override
@@ -299,6 +286,29 @@ class JobInstanceEngineApi implements JobManager
         return JqmClientFactory.getClient();
     }
 
+    /**
+     * Waits until the awaited job instances have ended. Job instances ending inside this JVM wake the waiter at once, others are seen by a
+     * database check shared by all the waiters of the JVM. Instructions (kill, pause) are handled while waiting.
+     */
+    private void waitForEnd(JobInstanceEndNotifier.Waiter waiter)
+    {
+        try
+        {
+            while (!waiter.await(1000))
+            {
+                handleInstructions();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            waiter.close();
+        }
+    }
+
     private void handleInstructions()
     {
         // Throttle: only peek once every 1 second.
@@ -0,0 +1,257 @@
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.model.History;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.State;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional stage storing the results of ended job instances (see {@link RunningJobInstance#endOfRunDb()}) by groups: the history rows of
+ * all the job instances ending within a few milliseconds are inserted in a single JDBC batch, their job instance rows deleted in another,
+ * and everything is committed at once. This avoids one transaction (and one database log flush) per job instance when many short job
+ * instances end at the same time.<br>
+ * Enabled when global parameter <code>finalizationBatchSize</code> is greater than 1. <code>finalizationBatchWaitMs</code> is the maximum
+ * time a job instance may wait for others before its group is written.<br>
+ * On database failure, all the job instances of the group go through the usual delayed finalization of the engine.
+ */
+class JobInstanceFinalizer implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(JobInstanceFinalizer.class);
+
+    private JqmEngine engine;
+    private int batchSize;
+    private int waitMs;
+
+    private BlockingQueue<RunningJobInstance> toFinalize = new LinkedBlockingQueue<RunningJobInstance>();
+    private volatile boolean run = true;
+    private volatile Thread localThread = null;
+
+    JobInstanceFinalizer(JqmEngine engine, int batchSize, int waitMs)
+    {
+        this.engine = engine;
+        this.batchSize = batchSize;
+        this.waitMs = waitMs;
+    }
+
+    /**
+     * @return a finalizer if enabled by global parameters, null otherwise.
+     */
+    static JobInstanceFinalizer create(JqmEngine engine, DbConn cnx)
+    {
+        int batchSize = Integer.parseInt(GlobalParameter.getParameter(cnx, "finalizationBatchSize", "1"));
+        int waitMs = Integer.parseInt(GlobalParameter.getParameter(cnx, "finalizationBatchWaitMs", "10"));
+        if (batchSize <= 1)
+        {
+            return null;
+        }
+        jqmlogger.info("Job instance results will be stored by groups of at most " + batchSize + " (waiting at most " + waitMs + "ms)");
+        return new JobInstanceFinalizer(engine, batchSize, waitMs);
+    }
+
+    /**
+     * @return false if the finalizer is stopped (or stopping) and the job instance was not taken - the caller must store it itself.
+     */
+    synchronized boolean submit(RunningJobInstance rji)
+    {
+        if (!run)
+        {
+            return false;
+        }
+        toFinalize.add(rji);
+        return true;
+    }
+
+    /**
+     * Stops the finalizer after all the job instances already submitted have been stored. Blocking. Job instances ending afterwards are
+     * refused by {@link #submit(RunningJobInstance)}.
+     */
+    void stop()
+    {
+        jqmlogger.info("Job instance finalizer has received a stop request");
+        synchronized (this)
+        {
+            this.run = false;
+        }
+        Thread t = localThread;
+        if (t != null)
+        {
+            try
+            {
+                t.join(10000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // If the finalizer thread is late (or dead), do not leave anything behind.
+        RunningJobInstance rji;
+        while ((rji = toFinalize.poll()) != null)
+        {
+            try
+            {
+                rji.endOfRunDb();
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.error("Could not store the result of job instance " + rji.getId(), e);
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        localThread = Thread.currentThread();
+        localThread.setName("JI_FINALIZER;storing;");
+        jqmlogger.info("Start of the job instance finalizer");
+
+        List<RunningJobInstance> batch = new ArrayList<RunningJobInstance>(batchSize);
+        try
+        {
+            loop(batch);
+        }
+        finally
+        {
+            // Whatever the reason, job instances ending from now on must be stored by their own thread.
+            synchronized (this)
+            {
+                run = false;
+            }
+            localThread = null;
+        }
+        jqmlogger.info("End of the job instance finalizer");
+    }
+
+    private void loop(List<RunningJobInstance> batch)
+    {
+        while (true)
+        {
+            try
+            {
+                RunningJobInstance first = toFinalize.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    if (!run && toFinalize.isEmpty())
+                    {
+                        break;
+                    }
+                    continue;
+                }
+
+                // Wait a little for other ending job instances.
+                batch.add(first);
+                long limit = System.currentTimeMillis() + waitMs;
+                while (batch.size() < batchSize)
+                {
+                    RunningJobInstance next = toFinalize.poll(Math.max(0, limit - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                store(batch);
+            }
+            catch (InterruptedException e)
+            {
+                run = false;
+            }
+            catch (Exception e)
+            {
+                jqmlogger.error("An unexpected error has occurred while storing job instance results", e);
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    private void store(List<RunningJobInstance> batch)
+    {
+        if (batch.size() == 1)
+        {
+            batch.get(0).endOfRunDb();
+            return;
+        }
+
+        List<JobInstance> instances = new ArrayList<JobInstance>(batch.size());
+        List<State> states = new ArrayList<State>(batch.size());
+        List<Calendar> endDates = new ArrayList<Calendar>(batch.size());
+        List<Object[]> ids = new ArrayList<Object[]>(batch.size());
+        for (RunningJobInstance rji : batch)
+        {
+            instances.add(rji.getJobInstance());
+            states.add(rji.getResultStatus());
+            endDates.add(rji.getEndDate());
+            ids.add(new Object[] { rji.getId() });
+        }
+
+        DbConn cnx = null;
+        long start = System.nanoTime();
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            History.create(cnx, instances, states, endDates);
+            cnx.runBatchUpdate("ji_delete_by_id", ids);
+            cnx.commit();
+            jqmlogger.trace("Results of {} job instances were stored", batch.size());
+        }
+        catch (RuntimeException e)
+        {
+            Helpers.closeQuietly(cnx);
+            cnx = null;
+
+            if (Helpers.testDbFailure(e))
+            {
+                jqmlogger.error("connection to database lost - " + batch.size() + " job instances will need delayed finalization");
+                jqmlogger.trace("connection error was:", e.getCause());
+                for (RunningJobInstance rji : batch)
+                {
+                    this.engine.loaderFinalizationNeeded(rji);
+                }
+            }
+            else
+            {
+                // One of the job instances may be the culprit - do not let it prevent the others from being stored.
+                jqmlogger.warn("Could not store the results of a group of job instances - they will be stored one by one", e);
+                for (RunningJobInstance rji : batch)
+                {
+                    try
+                    {
+                        rji.endOfRunDb();
+                    }
+                    catch (RuntimeException e2)
+                    {
+                        jqmlogger.error("Could not store the result of job instance " + rji.getId(), e2);
+                    }
+                }
+            }
+            return;
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+
+        long duration = System.nanoTime() - start;
+        for (RunningJobInstance rji : batch)
+        {
+            rji.endOfRunDbDone(duration);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.GlobalParameter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind channel for the progress and messages sent by running payloads through the engine API. Instead of one transaction per call,
+ * progress values are collapsed to the latest one per job instance and messages are inserted by batches, every
+ * <code>reportFlushPeriodMs</code>.<br>
+ * Everything pending for a job instance is written before its results are stored (see {@link RunningJobInstance}), so that the history and
+ * its messages are always consistent. If a batch fails for another reason than a database failure, rows are written one by one so that an
+ * invalid row (a message too long...) only loses itself.<br>
+ * Disabled by default.
+ */
+class JobInstanceReporter implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(JobInstanceReporter.class);
+
+    private final int periodMs;
+
+    private final ConcurrentHashMap<Integer, Integer> progress = new ConcurrentHashMap<Integer, Integer>();
+    private final Object messagesLock = new Object();
+    private Map<Integer, List<String>> messages = new HashMap<Integer, List<String>>(); // guarded by messagesLock
+
+    /**
+     * The periodic flush takes the write lock, flushes done at the end of a job instance take the read lock: they only wait for a periodic
+     * flush which may contain their rows, not for each other.
+     */
+    private final ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+    private final Object sleepLock = new Object();
+    private volatile boolean run = true;
+    private volatile Thread localThread = null;
+
+    JobInstanceReporter(int periodMs)
+    {
+        this.periodMs = periodMs;
+    }
+
+    /**
+     * @return a reporter if enabled by global parameters, null otherwise.
+     */
+    static JobInstanceReporter create(DbConn cnx)
+    {
+        int periodMs = Integer.parseInt(GlobalParameter.getParameter(cnx, "reportFlushPeriodMs", "0"));
+        if (periodMs <= 0)
+        {
+            return null;
+        }
+        return new JobInstanceReporter(periodMs);
+    }
+
+    void sendProgress(int jobInstanceId, Integer value)
+    {
+        progress.put(jobInstanceId, value);
+    }
+
+    void sendMsg(int jobInstanceId, String msg)
+    {
+        synchronized (messagesLock)
+        {
+            List<String> msgs = messages.get(jobInstanceId);
+            if (msgs == null)
+            {
+                msgs = new ArrayList<String>();
+                messages.put(jobInstanceId, msgs);
+            }
+            msgs.add(msg);
+        }
+    }
+
+    /**
+     * Writes everything pending to the database. Blocking.
+     */
+    void flush()
+    {
+        flushLock.writeLock().lock();
+        try
+        {
+            List<Object[]> msgs = new ArrayList<Object[]>();
+            synchronized (messagesLock)
+            {
+                for (Map.Entry<Integer, List<String>> e : messages.entrySet())
+                {
+                    for (String msg : e.getValue())
+                    {
+                        msgs.add(new Object[] { e.getKey(), msg });
+                    }
+                }
+                messages = new HashMap<Integer, List<String>>();
+            }
+
+            List<Object[]> prgs = new ArrayList<Object[]>(progress.size());
+            for (Integer id : progress.keySet())
+            {
+                Integer value = progress.remove(id);
+                if (value != null)
+                {
+                    prgs.add(new Object[] { value, id });
+                }
+            }
+
+            store(prgs, msgs);
+        }
+        finally
+        {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes everything pending for a single job instance to the database. Blocking.
+     */
+    void flush(int jobInstanceId)
+    {
+        flushLock.readLock().lock();
+        try
+        {
+            List<Object[]> msgs = new ArrayList<Object[]>();
+            synchronized (messagesLock)
+            {
+                List<String> pending = messages.remove(jobInstanceId);
+                if (pending != null)
+                {
+                    for (String msg : pending)
+                    {
+                        msgs.add(new Object[] { jobInstanceId, msg });
+                    }
+                }
+            }
+
+            List<Object[]> prgs = new ArrayList<Object[]>(1);
+            Integer value = progress.remove(jobInstanceId);
+            if (value != null)
+            {
+                prgs.add(new Object[] { value, jobInstanceId });
+            }
+
+            store(prgs, msgs);
+        }
+        finally
+        {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    private void store(List<Object[]> prgs, List<Object[]> msgs)
+    {
+        if (prgs.isEmpty() && msgs.isEmpty())
+        {
+            return;
+        }
+
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            try
+            {
+                cnx.runBatchUpdate("jj_update_progress_by_id", prgs);
+                cnx.runBatchUpdate("message_insert", msgs);
+                cnx.commit();
+                jqmlogger.trace("Stored {} progress updates and {} messages", prgs.size(), msgs.size());
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                if (Helpers.testDbFailure(e))
+                {
+                    throw e;
+                }
+                // A single row is likely wrong (message too long...) - do not lose the others with it.
+                jqmlogger.warn("Could not store job instance progress and messages by batch - storing them one by one", e);
+                cnx.rollback();
+            }
+
+            while (!prgs.isEmpty())
+            {
+                storeRow(cnx, "jj_update_progress_by_id", prgs.get(0), (Integer) prgs.get(0)[1]);
+                prgs.remove(0);
+            }
+            while (!msgs.isEmpty())
+            {
+                storeRow(cnx, "message_insert", msgs.get(0), (Integer) msgs.get(0)[0]);
+                msgs.remove(0);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            if (!Helpers.testDbFailure(e))
+            {
+                throw e;
+            }
+            jqmlogger.warn("Could not store job instance progress and messages - will retry later", e);
+
+            // Put back everything not stored, before what was sent since, and without overwriting newer values.
+            synchronized (messagesLock)
+            {
+                Map<Integer, List<String>> newMessages = new HashMap<Integer, List<String>>();
+                for (Object[] m : msgs)
+                {
+                    List<String> pending = newMessages.get(m[0]);
+                    if (pending == null)
+                    {
+                        pending = new ArrayList<String>();
+                        newMessages.put((Integer) m[0], pending);
+                    }
+                    pending.add((String) m[1]);
+                }
+                for (Map.Entry<Integer, List<String>> e2 : messages.entrySet())
+                {
+                    List<String> pending = newMessages.get(e2.getKey());
+                    if (pending == null)
+                    {
+                        newMessages.put(e2.getKey(), e2.getValue());
+                    }
+                    else
+                    {
+                        pending.addAll(e2.getValue());
+                    }
+                }
+                messages = newMessages;
+            }
+            for (Object[] p : prgs)
+            {
+                progress.putIfAbsent((Integer) p[1], (Integer) p[0]);
+            }
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+    }
+
+    /**
+     * Stores a single row in its own transaction. Database failures are thrown, other errors only lose this row.
+     */
+    private void storeRow(DbConn cnx, String queryKey, Object[] prms, int jobInstanceId)
+    {
+        try
+        {
+            cnx.runUpdate(queryKey, prms);
+            cnx.commit();
+        }
+        catch (RuntimeException e)
+        {
+            if (Helpers.testDbFailure(e))
+            {
+                throw e;
+            }
+            cnx.rollback();
+            jqmlogger.error("Could not store a message or the progress of job instance " + jobInstanceId + " - it is lost", e);
+        }
+    }
+
+    /**
+     * Stops the reporter after a last flush. Blocking.
+     */
+    void stop()
+    {
+        Thread t = localThread;
+        run = false;
+        synchronized (sleepLock)
+        {
+            sleepLock.notify();
+        }
+        if (t != null)
+        {
+            try
+            {
+                t.join(10000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    @Override
+    public void run()
+    {
+        localThread = Thread.currentThread();
+        localThread.setName("JI_REPORTER;storing;");
+        jqmlogger.info("Start of the job instance progress and message reporter");
+
+        while (run)
+        {
+            synchronized (sleepLock)
+            {
+                try
+                {
+                    if (run)
+                    {
+                        sleepLock.wait(periodMs);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    run = false;
+                }
+            }
+
+            try
+            {
+                flush();
+            }
+            catch (Exception e)
+            {
+                jqmlogger.error("An unexpected error has occurred while storing job instance progress and messages", e);
+            }
+        }
+
+        localThread = null;
+        jqmlogger.info("End of the job instance progress and message reporter");
+    }
+}
@@ -26,6 +26,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
@@ -71,7 +73,11 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     // Threads that together constitute the engine
     private Map<Integer, QueuePoller> pollers = new HashMap<Integer, QueuePoller>();
     private InternalPoller intPoller = null;
+    private QueueNotificationListener queueListener = null;
+    private JobInstanceFinalizer finalizer = null;
+    private JobInstanceReporter reporter = null;
     private CronScheduler scheduler = null;
+    private HistoryRetentionService retention = null;
 
     // Misc data
     private Calendar startTime = Calendar.getInstance();
@@ -81,6 +87,8 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     private RunnerManager runnerManager;
     private RunningJobInstanceManager runningJobInstanceManager;
     private List<ResourceManagerBase> resourceManagers = new ArrayList<ResourceManagerBase>();
+    private volatile boolean strictPollingPeriod = false;
+    private ConcurrentMap<Integer, Integer> highlanderJobInstances = new ConcurrentHashMap<Integer, Integer>();
 
     // DB connection resilience data
     private volatile Queue<QueuePoller> qpToRestart = new LinkedBlockingQueue<QueuePoller>();
@@ -213,17 +221,31 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         // Scheduler
         scheduler = new CronScheduler(this);
 
+        // History retention
+        retention = new HistoryRetentionService(this);
+
         // Cleanup
         purgeDeadJobInstances(cnx, this.node);
 
         // Runners
-        runningJobInstanceManager = new RunningJobInstanceManager();
+        runningJobInstanceManager = new RunningJobInstanceManager(new PayloadExecutor(cnx));
+        finalizer = JobInstanceFinalizer.create(this, cnx);
+        if (finalizer != null)
+        {
+            (new Thread(finalizer)).start();
+        }
+        reporter = JobInstanceReporter.create(cnx);
+        if (reporter != null)
+        {
+            (new Thread(reporter)).start();
+        }
         runnerManager = new RunnerManager(cnx);
 
         // Resource managers
         initResourceManagers(cnx);
 
-        // Pollers
+        // Pollers (their configuration is then refreshed by the internal poller)
+        strictPollingPeriod = Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "strictPollingPeriod", "false"));
         syncPollers(cnx, this.node);
         jqmlogger.info("All required queues are now polled");
 
@@ -232,6 +254,14 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         Thread t = new Thread(intPoller);
         t.start();
 
+        // Enqueue notifications (wake up pollers without waiting for the end of their polling interval)
+        if (cnx.isQueueNotificationCapable()
+                && Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "enableQueueNotify", "false")))
+        {
+            queueListener = new QueueNotificationListener(this);
+            (new Thread(queueListener)).start();
+        }
+
         // Kill notifications
         killHook = new SignalHandler(this);
         Runtime.getRuntime().addShutdownHook(killHook);
@@ -282,6 +312,9 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         // Scheduler
         this.scheduler.stop();
 
+        // History retention
+        this.retention.stop();
+
         // Jetty is closed automatically when all pollers are down
 
         // Wait for the end of the world
@@ -330,7 +363,8 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
             {
                 if (pollers.containsKey(i.getId()))
                 {
-                    // Nothing to do - the poller updates its own parameters. Just tell it the node is enabled (idempotent)
+                    // Give the poller its latest parameters (applied on its next loop) and tell it the node is enabled (idempotent)
+                    pollers.get(i.getId()).setDeploymentParameter(i);
                     pollers.get(i.getId()).resume();
                 }
                 else
@@ -372,28 +406,79 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         }
     }
 
-    private void initResourceManagers(DbConn cnx)
+    /**
+     * @return the poller of the given deployment parameter, or null if there is none.
+     */
+    synchronized QueuePoller getPoller(int deploymentParameterId)
     {
-        jqmlogger.info("Initializing node-level resource managers");
+        return this.pollers.get(deploymentParameterId);
+    }
 
-        // For now, single RM using a global parameter. Future: from db configuration.
-        String itemList = GlobalParameter.getParameter(cnx, "discreteRmList", null);
-        if (itemList == null)
+    /**
+     * Forces all the pollers of the given queue to poll at once.
+     */
+    synchronized void wakeUpPollers(int queueId)
+    {
+        for (QueuePoller qp : this.pollers.values())
         {
-            return;
+            if (qp.getQueue().getId() == queueId)
+            {
+                qp.wakeUp();
+            }
         }
+    }
+
+    private void initResourceManagers(DbConn cnx)
+    {
+        jqmlogger.info("Initializing node-level resource managers");
 
-        ResourceManager discreteResourceManagerConfiguration = new ResourceManager();
-        discreteResourceManagerConfiguration.setClassName(DiscreteResourceManager.class.getCanonicalName());
-        discreteResourceManagerConfiguration.setDeploymentParameterId(null);
-        discreteResourceManagerConfiguration.setEnabled(true);
-        discreteResourceManagerConfiguration.setKey(GlobalParameter.getParameter(cnx, "discreteRmName", "ports"));
-        discreteResourceManagerConfiguration.setNodeId(this.node.getId());
-        discreteResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.discrete.list", itemList);
+        // For now, single RM of each type using global parameters. Future: from db configuration.
+        String itemList = GlobalParameter.getParameter(cnx, "discreteRmList", null);
+        if (itemList != null)
+        {
+            ResourceManager discreteResourceManagerConfiguration = new ResourceManager();
+            discreteResourceManagerConfiguration.setClassName(DiscreteResourceManager.class.getCanonicalName());
+            discreteResourceManagerConfiguration.setDeploymentParameterId(null);
+            discreteResourceManagerConfiguration.setEnabled(true);
+            discreteResourceManagerConfiguration.setKey(GlobalParameter.getParameter(cnx, "discreteRmName", "ports"));
+            discreteResourceManagerConfiguration.setNodeId(this.node.getId());
+            discreteResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.discrete.list", itemList);
+
+            ResourceManagerBase rm1 = new DiscreteResourceManager(discreteResourceManagerConfiguration);
+            rm1.refreshConfiguration(discreteResourceManagerConfiguration);
+            this.resourceManagers.add(rm1);
+        }
+
+        // Cluster-wide tokens. Leases are renewed by the internal poller, so they must last a few of its loops.
+        String tokenList = GlobalParameter.getParameter(cnx, "clusterRmList", null);
+        String tokenQuantity = GlobalParameter.getParameter(cnx, "clusterRmQuantity", null);
+        if (tokenList != null || tokenQuantity != null)
+        {
+            long internalPollingPeriodMs = Long.parseLong(GlobalParameter.getParameter(cnx, "internalPollingPeriodMs", "60000"));
+
+            ResourceManager clusterResourceManagerConfiguration = new ResourceManager();
+            clusterResourceManagerConfiguration.setClassName(ClusterResourceManager.class.getCanonicalName());
+            clusterResourceManagerConfiguration.setDeploymentParameterId(null);
+            clusterResourceManagerConfiguration.setEnabled(true);
+            clusterResourceManagerConfiguration.setKey(GlobalParameter.getParameter(cnx, "clusterRmName", "cluster"));
+            clusterResourceManagerConfiguration.setNodeId(this.node.getId());
+            if (tokenList != null)
+            {
+                clusterResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.cluster.list", tokenList);
+            }
+            if (tokenQuantity != null)
+            {
+                clusterResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.cluster.quantity", tokenQuantity);
+            }
+            clusterResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.cluster.prefetch",
+                    GlobalParameter.getParameter(cnx, "clusterRmPrefetch", "2"));
+            clusterResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.cluster.lease",
+                    String.valueOf(Math.max(60, 3 * internalPollingPeriodMs / 1000)));
 
-        ResourceManagerBase rm1 = new DiscreteResourceManager(discreteResourceManagerConfiguration);
-        rm1.refreshConfiguration(discreteResourceManagerConfiguration);
-        this.resourceManagers.add(rm1);
+            ResourceManagerBase rm2 = new ClusterResourceManager(clusterResourceManagerConfiguration);
+            rm2.refreshConfiguration(clusterResourceManagerConfiguration);
+            this.resourceManagers.add(rm2);
+        }
     }
 
     /**
@@ -404,6 +489,27 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return resourceManagers;
     }
 
+    /**
+     * Value of the <code>strictPollingPeriod</code> global parameter, refreshed by the internal poller.
+     */
+    boolean isStrictPollingPeriod()
+    {
+        return strictPollingPeriod;
+    }
+
+    void setStrictPollingPeriod(boolean strictPollingPeriod)
+    {
+        this.strictPollingPeriod = strictPollingPeriod;
+    }
+
+    /**
+     * The highlander job definitions booked or running on this node, shared by all pollers: job definition ID -> job instance ID.
+     */
+    ConcurrentMap<Integer, Integer> getHighlanderJobInstances()
+    {
+        return highlanderJobInstances;
+    }
+
     synchronized void checkEngineEnd()
     {
         jqmlogger.trace("Checking if engine should end with the latest poller");
@@ -431,12 +537,36 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 
         // Also stop the internal poller
         this.intPoller.stop();
+        if (this.queueListener != null)
+        {
+            this.queueListener.stop();
+        }
+
+        // Idle payload threads are no longer needed
+        this.runningJobInstanceManager.shutdown();
 
-        // Reset the stop counter - we may want to restart one day
+        // Nor are the runner caches
+        this.runnerManager.stop();
+
+        // Store the last messages and results of the job instances
+        if (this.reporter != null)
+        {
+            this.reporter.stop();
+        }
+        if (this.finalizer != null)
+        {
+            this.finalizer.stop();
+        }
+
+        // Reset the stop counter - we may want to restart one day. Also give back what is held inside the cluster.
         DbConn cnx = null;
         try
         {
             cnx = Helpers.getNewDbSession();
+            for (ResourceManagerBase rm : this.resourceManagers)
+            {
+                rm.stop(cnx);
+            }
             cnx.runUpdate("node_update_has_stopped_by_id", node.getId());
             cnx.commit();
         }
@@ -660,6 +790,22 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return this.runningJobInstanceManager;
     }
 
+    /**
+     * @return null if job instance results are not stored by groups.
+     */
+    JobInstanceFinalizer getJobInstanceFinalizer()
+    {
+        return this.finalizer;
+    }
+
+    /**
+     * @return null if progress and messages are written synchronously.
+     */
+    JobInstanceReporter getJobInstanceReporter()
+    {
+        return this.reporter;
+    }
+
     ////////////////////////////////////////////////////////////////////////////
     // JMX stat methods (they get their own connection to be thread safe)
     ////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,295 @@
+package com.enioka.jqm.tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A very small in-memory metrics registry (counters, gauges and histograms), updated by the engine hot paths and exported in the Prometheus
+ * text format by the web server of the node (see {@link #write(Writer)}). Reading the metrics never uses the database.<br>
+ * There is a single registry per JVM - all metrics carry a node label, so multiple engines inside the same JVM do not collide.<br>
+ * All methods are thread-safe.
+ */
+final class Metrics
+{
+    /**
+     * Default histogram buckets, in seconds. Suitable for both database calls and job instance durations.
+     */
+    private static final double[] BUCKETS = new double[] { 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 3600 };
+
+    private static final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+    private Metrics()
+    {
+        // Static only.
+    }
+
+    /**
+     * A value read when the metrics are exported.
+     */
+    interface Gauge
+    {
+        double getValue();
+    }
+
+    /**
+     * A monotonic counter.
+     */
+    static final class Counter
+    {
+        private final AtomicLong value = new AtomicLong(0);
+
+        void inc()
+        {
+            value.incrementAndGet();
+        }
+
+        void inc(long amount)
+        {
+            value.addAndGet(amount);
+        }
+    }
+
+    /**
+     * Distribution of durations.
+     */
+    static final class Histogram
+    {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong sumNanos = new AtomicLong(0);
+
+        void observeNanos(long nanos)
+        {
+            if (nanos < 0)
+            {
+                nanos = 0;
+            }
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++)
+            {
+                if (seconds <= BUCKETS[i])
+                {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+        }
+
+        void observeMillis(long ms)
+        {
+            observeNanos(ms * 1000000L);
+        }
+    }
+
+    private static final class Family
+    {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final Map<String, Object> children = new ConcurrentHashMap<String, Object>();
+
+        private Family(String name, String help, String type)
+        {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static Family getFamily(String name, String help, String type)
+    {
+        Family f = families.get(name);
+        if (f == null)
+        {
+            Family newFamily = new Family(name, help, type);
+            f = families.putIfAbsent(name, newFamily);
+            if (f == null)
+            {
+                f = newFamily;
+            }
+        }
+        if (!f.type.equals(type))
+        {
+            throw new IllegalArgumentException("metric " + name + " is already registered as a " + f.type);
+        }
+        return f;
+    }
+
+    /**
+     * Get (or create) a counter.
+     *
+     * @param labels
+     *                   label names and values, alternated: "node", "node1", "queue", "q1"...
+     */
+    static Counter counter(String name, String help, String... labels)
+    {
+        Family f = getFamily(name, help, "counter");
+        String key = labelString(labels);
+        Object res = f.children.get(key);
+        if (res == null)
+        {
+            synchronized (f)
+            {
+                res = f.children.get(key);
+                if (res == null)
+                {
+                    res = new Counter();
+                    f.children.put(key, res);
+                }
+            }
+        }
+        return (Counter) res;
+    }
+
+    /**
+     * Get (or create) a histogram.
+     *
+     * @param labels
+     *                   label names and values, alternated.
+     */
+    static Histogram histogram(String name, String help, String... labels)
+    {
+        Family f = getFamily(name, help, "histogram");
+        String key = labelString(labels);
+        Object res = f.children.get(key);
+        if (res == null)
+        {
+            synchronized (f)
+            {
+                res = f.children.get(key);
+                if (res == null)
+                {
+                    res = new Histogram();
+                    f.children.put(key, res);
+                }
+            }
+        }
+        return (Histogram) res;
+    }
+
+    /**
+     * Registers a gauge, replacing any previous gauge with the same name and labels.
+     *
+     * @param labels
+     *                   label names and values, alternated.
+     */
+    static void gauge(String name, String help, Gauge gauge, String... labels)
+    {
+        getFamily(name, help, "gauge").children.put(labelString(labels), gauge);
+    }
+
+    /**
+     * Removes a gauge registered with {@link #gauge(String, String, Gauge, String...)}. Does nothing if it does not exist.
+     */
+    static void removeGauge(String name, String... labels)
+    {
+        Family f = families.get(name);
+        if (f != null)
+        {
+            f.children.remove(labelString(labels));
+        }
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    static void write(Writer w) throws IOException
+    {
+        for (Family f : families.values())
+        {
+            if (f.children.isEmpty())
+            {
+                continue;
+            }
+            w.write("# HELP " + f.name + " " + f.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            w.write("# TYPE " + f.name + " " + f.type + "\n");
+
+            for (Map.Entry<String, Object> e : f.children.entrySet())
+            {
+                String labels = e.getKey();
+                Object m = e.getValue();
+
+                if (m instanceof Counter)
+                {
+                    w.write(f.name + braces(labels) + " " + ((Counter) m).value.get() + "\n");
+                }
+                else if (m instanceof Gauge)
+                {
+                    double value;
+                    try
+                    {
+                        value = ((Gauge) m).getValue();
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        continue;
+                    }
+                    w.write(f.name + braces(labels) + " " + format(value) + "\n");
+                }
+                else
+                {
+                    Histogram h = (Histogram) m;
+                    String prefix = labels.isEmpty() ? "" : labels + ",";
+                    long cumulated = 0;
+                    for (int i = 0; i < BUCKETS.length; i++)
+                    {
+                        cumulated += h.buckets.get(i);
+                        w.write(f.name + "_bucket{" + prefix + "le=\"" + format(BUCKETS[i]) + "\"} " + cumulated + "\n");
+                    }
+                    long count = h.count.get();
+                    w.write(f.name + "_bucket{" + prefix + "le=\"+Inf\"} " + Math.max(count, cumulated) + "\n");
+                    w.write(f.name + "_sum" + braces(labels) + " " + format(h.sumNanos.get() / 1e9) + "\n");
+                    w.write(f.name + "_count" + braces(labels) + " " + count + "\n");
+                }
+            }
+        }
+        w.flush();
+    }
+
+    private static String braces(String labels)
+    {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String labelString(String... labels)
+    {
+        if (labels.length % 2 != 0)
+        {
+            throw new IllegalArgumentException("labels must be given as name/value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2)
+        {
+            if (i > 0)
+            {
+                sb.append(',');
+            }
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            sb.append(labels[i]).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String format(double d)
+    {
+        if (Double.isInfinite(d))
+        {
+            return d > 0 ? "+Inf" : "-Inf";
+        }
+        if (d == Math.rint(d))
+        {
+            return String.format(Locale.ROOT, "%.1f", d);
+        }
+        return Double.toString(d);
+    }
+}
@@ -0,0 +1,251 @@
+package com.enioka.jqm.tools;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.GlobalParameter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the threads running the job instances of an engine (both in-process payloads and the watchers of external payloads).<br>
+ * Three modes exist, selected by the global parameter <code>payloadThreadMode</code>:
+ * <ul>
+ * <li>thread: a new platform thread per job instance. This is the historical behaviour and the default.</li>
+ * <li>pool: platform threads are reused from one job instance to the next. Idle threads are destroyed after one minute. This is only a
+ * thread cache: it never limits the number of running job instances, which is the job of the queue sizes.
+ * <code>payloadThreadPoolSize</code> bounds the number of pooled threads (0, the default, means no bound). Job instances never wait for a
+ * pooled thread: beyond the bound, they run on new threads which are not kept, and the watchers of external payloads always do. Clearing
+ * the thread local variables of a reused thread needs the JVM option <code>--add-opens java.base/java.lang=ALL-UNNAMED</code> on Java
+ * 9+ - without it, the engine refuses to start.</li>
+ * <li>virtual: a new virtual thread per job instance. Only available on Java 21+, otherwise the engine falls back to 'thread'.</li>
+ * </ul>
+ * Payload runners set the thread name, priority and context class loader - when a thread is reused, these are restored and its thread
+ * local variables are cleared before the next job instance, so that nothing leaks from one payload to another.
+ */
+class PayloadExecutor
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(PayloadExecutor.class);
+
+    private static final String MODE_THREAD = "thread";
+    private static final String MODE_POOL = "pool";
+    private static final String MODE_VIRTUAL = "virtual";
+
+    private String mode = MODE_THREAD;
+    private ExecutorService pool = null;
+    private ThreadFactory factory = null;
+    private boolean bounded = false;
+
+    private Field threadLocalsField = null;
+    private Field inheritableThreadLocalsField = null;
+
+    PayloadExecutor(DbConn cnx)
+    {
+        String requestedMode = GlobalParameter.getParameter(cnx, "payloadThreadMode", MODE_THREAD).trim().toLowerCase();
+        int poolSize = Integer.parseInt(GlobalParameter.getParameter(cnx, "payloadThreadPoolSize", "0"));
+
+        if (MODE_POOL.equals(requestedMode))
+        {
+            initThreadLocalCleaning();
+            mode = MODE_POOL;
+            factory = new PooledThreadFactory();
+            BlockingQueue<Runnable> handoff = new SynchronousQueue<Runnable>();
+            if (poolSize > 0)
+            {
+                // Never queue a job instance: a parent waiting for its child would wait forever if the child could not get a thread.
+                ThreadPoolExecutor tpe = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, handoff, factory,
+                        new OverflowPolicy());
+                tpe.allowCoreThreadTimeOut(true);
+                pool = tpe;
+            }
+            else
+            {
+                pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, handoff, factory);
+            }
+            bounded = poolSize > 0;
+        }
+        else if (MODE_VIRTUAL.equals(requestedMode))
+        {
+            factory = getVirtualThreadFactory();
+            if (factory != null)
+            {
+                mode = MODE_VIRTUAL;
+            }
+        }
+        else if (!MODE_THREAD.equals(requestedMode))
+        {
+            jqmlogger.warn("Unknown value for global parameter payloadThreadMode: " + requestedMode + ". Using 'thread'.");
+        }
+
+        jqmlogger.info(
+                "Payload threads mode is " + mode + (pool != null && poolSize > 0 ? " - at most " + poolSize + " pooled threads" : ""));
+    }
+
+    /**
+     * Run the given job instance runnable asynchronously.
+     */
+    void execute(Runnable r)
+    {
+        if (pool != null)
+        {
+            pool.execute(new PooledRun(r));
+        }
+        else if (factory != null)
+        {
+            factory.newThread(r).start();
+        }
+        else
+        {
+            (new Thread(r)).start();
+        }
+    }
+
+    /**
+     * Run a runnable which is not a payload (the watcher of an external job instance...) asynchronously. It never takes a thread from a
+     * bounded pool, as these threads are kept for the payloads.
+     */
+    void executeAuxiliary(Runnable r)
+    {
+        if (bounded)
+        {
+            (new Thread(r)).start();
+        }
+        else
+        {
+            execute(r);
+        }
+    }
+
+    /**
+     * Idle pooled threads are destroyed. Running job instances are not affected.
+     */
+    void shutdown()
+    {
+        if (pool != null)
+        {
+            pool.shutdown();
+        }
+    }
+
+    private void initThreadLocalCleaning()
+    {
+        try
+        {
+            threadLocalsField = Thread.class.getDeclaredField("threadLocals");
+            threadLocalsField.setAccessible(true);
+            inheritableThreadLocalsField = Thread.class.getDeclaredField("inheritableThreadLocals");
+            inheritableThreadLocalsField.setAccessible(true);
+        }
+        catch (Exception e)
+        {
+            // The pool was explicitly asked for: silently running without it would only be found out much later.
+            throw new JqmInitError("payloadThreadMode is 'pool' but thread local variables cannot be cleared on this JVM. "
+                    + "Add the JVM option --add-opens java.base/java.lang=ALL-UNNAMED or use another payloadThreadMode.", e);
+        }
+    }
+
+    private void clearThreadLocals(Thread t)
+    {
+        try
+        {
+            threadLocalsField.set(t, null);
+            inheritableThreadLocalsField.set(t, null);
+        }
+        catch (Exception e)
+        {
+            // Should never happen as fields were made accessible on startup.
+            throw new JqmRuntimeException("could not clear payload thread local variables", e);
+        }
+    }
+
+    private static ThreadFactory getVirtualThreadFactory()
+    {
+        // Reflection as the engine is compiled for older JVMs.
+        try
+        {
+            Class<?> builderInterface = Class.forName("java.lang.Thread$Builder");
+            Method name = builderInterface.getMethod("name", String.class, long.class);
+            Method factory = builderInterface.getMethod("factory");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = name.invoke(builder, "payload-", 0L);
+            return (ThreadFactory) factory.invoke(builder);
+        }
+        catch (Exception e)
+        {
+            jqmlogger.warn("Virtual threads are not available on this JVM - using 'thread' payload thread mode");
+            return null;
+        }
+    }
+
+    private static class PooledThreadFactory implements ThreadFactory
+    {
+        private AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            return new Thread(r, "payload-pool-" + count.incrementAndGet());
+        }
+    }
+
+    /**
+     * When all the threads of a bounded pool are busy, the job instance runs on a new thread which is not kept afterwards. Waiting for a
+     * pooled thread instead could block forever a parent waiting for its child, and the queue sizes already limit the running job
+     * instances.
+     */
+    private class OverflowPolicy implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            jqmlogger.debug("Payload thread pool is saturated - using a new thread");
+            factory.newThread(r).start();
+        }
+    }
+
+    /**
+     * Wrapper restoring the pooled thread to its pristine state after each job instance.
+     */
+    private class PooledRun implements Runnable
+    {
+        private Runnable target;
+
+        private PooledRun(Runnable target)
+        {
+            this.target = target;
+        }
+
+        @Override
+        public void run()
+        {
+            Thread t = Thread.currentThread();
+            String name = t.getName();
+            int priority = t.getPriority();
+            ClassLoader cl = t.getContextClassLoader();
+
+            try
+            {
+                target.run();
+            }
+            finally
+            {
+                clearThreadLocals(t);
+                t.setContextClassLoader(cl);
+                t.setPriority(priority);
+                t.setName(name);
+                Thread.interrupted(); // a kill may have left the interrupted flag on.
+            }
+        }
+    }
+}
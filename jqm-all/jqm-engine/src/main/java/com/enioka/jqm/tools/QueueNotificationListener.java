@@ -0,0 +1,98 @@
+package com.enioka.jqm.tools;
+
+import com.enioka.jqm.jdbc.DbConn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On databases able to push signals to their clients (see {@link DbConn#isQueueNotificationCapable()}), this listener waits for the
+ * signals sent by clients on enqueue and wakes up the pollers of the signaled queues at once. Without it, a new job instance waits for the
+ * next poll of its queue.<br>
+ * This is only a latency optimization: pollers still poll at their usual interval, so a lost signal (or a lost listener connection) simply
+ * means the job instance will start a little later.
+ */
+class QueueNotificationListener implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(QueueNotificationListener.class);
+
+    private static final int WAIT_MS = 1000;
+    private static final int RETRY_MS = 10000;
+
+    private volatile boolean run = true;
+    private JqmEngine engine;
+
+    QueueNotificationListener(JqmEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    void stop()
+    {
+        jqmlogger.info("Queue notification listener has received a stop request");
+        this.run = false;
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("QUEUE_LISTENER;listening;");
+        jqmlogger.info("Start of the queue notification listener");
+
+        while (run)
+        {
+            DbConn cnx = null;
+            boolean listening = false;
+            try
+            {
+                cnx = Helpers.getNewDbSession();
+                cnx.listenQueueNotifications();
+                listening = true;
+
+                while (run)
+                {
+                    for (Integer queueId : cnx.waitForQueueNotifications(WAIT_MS))
+                    {
+                        jqmlogger.trace("Queue {} was signaled", queueId);
+                        this.engine.wakeUpPollers(queueId);
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                if (!run)
+                {
+                    break;
+                }
+                jqmlogger.warn("Queue notification listener has failed - pollers will only rely on their polling interval for "
+                        + RETRY_MS / 1000 + " seconds", e);
+                try
+                {
+                    Thread.sleep(RETRY_MS);
+                }
+                catch (InterruptedException e1)
+                {
+                    run = false;
+                }
+            }
+            finally
+            {
+                if (listening)
+                {
+                    try
+                    {
+                        // The connection goes back to the pool - it must not accumulate notifications there.
+                        cnx.unlistenQueueNotifications();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        jqmlogger.debug("Could not stop listening on queue notification channel", e);
+                    }
+                }
+                Helpers.closeQuietly(cnx);
+            }
+        }
+
+        jqmlogger.info("End of the queue notification listener");
+    }
+}
@@ -39,11 +39,11 @@ import org.slf4j.LoggerFactory;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.QueryResult;
 import com.enioka.jqm.model.DeploymentParameter;
-import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.Queue;
 import com.enioka.jqm.model.ResourceManager;
 import com.enioka.jqm.model.State;
+import com.enioka.jqm.tools.ResourceManagerBase.BookingStatus;
 
 /**
  * A thread that polls a queue according to the parameters defined inside a {@link DeploymentParameter}.
@@ -58,7 +58,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
     private boolean paused = false;
     private int pollingInterval = 10000;
     private int dpId;
-    private boolean strictPollingPeriod = false;
+    private volatile DeploymentParameter latestDeploymentParameter;
 
     private boolean run = true;
     private AtomicInteger actualNbThread = new AtomicInteger(0);
@@ -74,6 +74,12 @@ class QueuePoller implements Runnable, QueuePollerMBean
     private Thread localThread = null;
     private Semaphore loop;
 
+    private Metrics.Histogram pollDuration;
+    private Metrics.Counter polledCount;
+    private Metrics.Counter claimedCount;
+    private Metrics.Counter claimConflictCount;
+    private Metrics.Histogram waitDuration;
+
     @Override
     public void stop()
     {
@@ -120,17 +126,20 @@ class QueuePoller implements Runnable, QueuePollerMBean
         highlanderResourceManagerConfiguration.setEnabled(true);
         highlanderResourceManagerConfiguration.setKey("highlander");
         highlanderResourceManagerConfiguration.setNodeId(null);
-        HighlanderResourceManager highlanderResourceManager = new HighlanderResourceManager(highlanderResourceManagerConfiguration);
+        HighlanderResourceManager highlanderResourceManager = new HighlanderResourceManager(highlanderResourceManagerConfiguration,
+                engine.getHighlanderJobInstances());
         this.resourceManagers.add(highlanderResourceManager);
 
         // Add global resource managers
         this.resourceManagers.addAll(engine.getResourceManagers());
 
         // Synchronize parameters
+        this.latestDeploymentParameter = dp;
         applyDeploymentParameter(dp);
 
         reset();
         registerMBean();
+        registerMetrics();
     }
 
     void applyDeploymentParameter(DeploymentParameter dp)
@@ -147,25 +156,26 @@ class QueuePoller implements Runnable, QueuePollerMBean
     }
 
     /**
-     * Called at the beginning of the main loop to check if the poller config is up to date (nbThread, pause...)
+     * Gives the poller the latest version of its parameters, read from the database by the engine. It is applied at the beginning of the
+     * next loop.
      */
-    private void refreshDeploymentParameter(DbConn cnx)
+    void setDeploymentParameter(DeploymentParameter dp)
     {
-        List<DeploymentParameter> prms = DeploymentParameter.select(cnx, "dp_select_by_id", this.dpId);
-        if (prms.size() != 1)
-        {
-            this.stop();
-            return;
-        }
+        this.latestDeploymentParameter = dp;
+    }
 
-        DeploymentParameter p = prms.get(0);
+    /**
+     * Called at the beginning of the main loop to check if the poller config is up to date (nbThread, pause...). No database access: the
+     * parameters are those last given by the engine.
+     */
+    private void refreshDeploymentParameter()
+    {
+        DeploymentParameter p = this.latestDeploymentParameter;
         if (p.getPollingInterval() != this.pollingInterval || (p.getEnabled() && !this.paused && this.maxNbThread != p.getNbThread())
                 || (this.maxNbThread > 0 && (!p.getEnabled() || this.paused)) || (this.maxNbThread == 0 && p.getEnabled() && !this.paused))
         {
             applyDeploymentParameter(p);
         }
-
-        this.strictPollingPeriod = Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "strictPollingPeriod", "false"));
     }
 
     private void registerMBean()
@@ -198,6 +208,41 @@ class QueuePoller implements Runnable, QueuePollerMBean
         }
     }
 
+    private void registerMetrics()
+    {
+        String[] labels = new String[] { "node", this.engine.getNode().getName(), "queue", this.queue.getName() };
+
+        pollDuration = Metrics.histogram("jqm_poll_duration_seconds", "Duration of the queue polling query", labels);
+        polledCount = Metrics.counter("jqm_poll_candidates_total", "Job instances returned by the queue polling query", labels);
+        claimedCount = Metrics.counter("jqm_poll_claimed_total", "Job instances actually claimed by the queue poller", labels);
+        claimConflictCount = Metrics.counter("jqm_poll_claim_conflicts_total",
+                "Job instances which could not be claimed as they were taken by another node", labels);
+        waitDuration = Metrics.histogram("jqm_ji_wait_seconds", "Time between enqueue and attribution to a node", labels);
+
+        Metrics.gauge("jqm_queue_running", "Job instances currently running", new Metrics.Gauge()
+        {
+            @Override
+            public double getValue()
+            {
+                return actualNbThread.get();
+            }
+        }, labels);
+        Metrics.gauge("jqm_queue_max_running", "Maximum number of job instances running at the same time", new Metrics.Gauge()
+        {
+            @Override
+            public double getValue()
+            {
+                return maxNbThread;
+            }
+        }, labels);
+    }
+
+    private void unregisterMetrics()
+    {
+        Metrics.removeGauge("jqm_queue_running", "node", this.engine.getNode().getName(), "queue", this.queue.getName());
+        Metrics.removeGauge("jqm_queue_max_running", "node", this.engine.getNode().getName(), "queue", this.queue.getName());
+    }
+
     private int potentialFreeRoom()
     {
         int room = Integer.MAX_VALUE;
@@ -220,94 +265,38 @@ class QueuePoller implements Runnable, QueuePollerMBean
             lastLoop = Calendar.getInstance();
             jqmlogger.trace("poller loop");
 
+            // This loop answers all the wake-up signals received until now.
+            loop.drainPermits();
+            if (!run)
+            {
+                break;
+            }
+
             try
             {
                 // Always check latest polling parameters
+                refreshDeploymentParameter();
                 cnx = Helpers.getNewDbSession();
-                refreshDeploymentParameter(cnx);
 
                 // Free room?
                 int freeRoom = potentialFreeRoom();
                 if (freeRoom > 0)
                 {
                     // Fetch the queue head. * 3 because we may reject quite a few JI inside resource managers.
-                    List<JobInstance> newInstances = cnx.poll(this.queue, freeRoom > 100000 ? Integer.MAX_VALUE : freeRoom * 3);
+                    long pollStart = System.nanoTime();
+                    List<JobInstance> newInstances = cnx.poll(this.queue, this.dpId, freeRoom > 100000 ? Integer.MAX_VALUE : freeRoom * 3);
+                    pollDuration.observeNanos(System.nanoTime() - pollStart);
+                    polledCount.inc(newInstances.size());
                     jqmlogger.trace("Poller has selected {} JIs to run", newInstances.size());
+                    JobInstance.loadPrmCache(cnx, newInstances);
 
-                    jiloop: for (JobInstance ji : newInstances)
+                    if (cnx.isPollLocking())
+                    {
+                        claimLockedInstances(newInstances, cnx);
+                    }
+                    else
                     {
-                        // TODO: bulk load parameters
-                        ji.loadPrmCache(cnx);
-
-                        // Check if we have the resources needed to run this JI
-                        List<ResourceManagerBase> alreadyReserved = new ArrayList<ResourceManagerBase>(this.resourceManagers.size());
-                        for (ResourceManagerBase rm : this.resourceManagers)
-                        {
-                            switch (rm.bookResource(ji, cnx))
-                            {
-                            case BOOKED:
-                                // OK, nothing to do.
-                                alreadyReserved.add(rm);
-                                break;
-                            case EXHAUSTED:
-                                // Stop the loop - cannot do anything anymore with these resources.
-                                jqmlogger.trace("Poller has a full RM");
-                                for (ResourceManagerBase reservedRm : alreadyReserved)
-                                {
-                                    reservedRm.rollbackResourceBooking(ji, cnx);
-                                }
-                                break jiloop;
-                            case FAILED:
-                                // Skip this JI - no resource for it but there may be resources for the next ones.
-                                jqmlogger.trace("Head JI asks for unavailable resources, skipping to next one");
-                                for (ResourceManagerBase reservedRm : alreadyReserved)
-                                {
-                                    reservedRm.rollbackResourceBooking(ji, cnx);
-                                }
-                                continue jiloop;
-                            }
-                        }
-
-                        // Actually set it for running on this node and report it on the in-memory object.
-                        QueryResult qr = cnx.runUpdate("ji_update_status_by_id", this.engine.getNode().getId(), ji.getId());
-                        if (qr.nbUpdated != 1)
-                        {
-                            // Means the JI was taken by another node, so simply continue.
-                            for (ResourceManagerBase reservedRm : alreadyReserved)
-                            {
-                                reservedRm.rollbackResourceBooking(ji, cnx);
-                            }
-                            continue;
-                        }
-                        ji.setNode(this.engine.getNode());
-                        ji.setState(State.ATTRIBUTED);
-
-                        // Commit taking possession of the JI (as well as anything whih may have been done inside the RMs)
-                        actualNbThread.incrementAndGet();
-                        jqmlogger.trace("Commit");
-                        cnx.commit();
-                        for (ResourceManagerBase reservedRm : alreadyReserved)
-                        {
-                            reservedRm.commitResourceBooking(ji, cnx); // after transaction commit.
-                        }
-
-                        // We will run this JI!
-                        jqmlogger.trace("JI number {} will be run by this poller this loop (already {}/{} on {})", ji.getId(),
-                                actualNbThread, maxNbThread, this.queue.getName());
-                        if (ji.getJD().getMaxTimeRunning() != null)
-                        {
-                            this.peremption.put(ji.getId(), new Date((new Date()).getTime() + ji.getJD().getMaxTimeRunning() * 60 * 1000));
-                        }
-
-                        // Run it
-                        if (!ji.getJD().isExternal())
-                        {
-                            this.engine.getRunningJobInstanceManager().startNewJobInstance(ji, this);
-                        }
-                        else
-                        {
-                            (new Thread(new RunningExternalJobInstance(cnx, ji, this))).start();
-                        }
+                        claimInstances(newInstances, cnx);
                     }
                 }
             }
@@ -377,6 +366,8 @@ class QueuePoller implements Runnable, QueuePollerMBean
                     .info("Poller loop on queue " + this.queue.getName() + " is stopping [engine " + this.engine.getNode().getName() + "]");
             waitForAllThreads(60L * 1000);
 
+            unregisterMetrics();
+
             // JMX
             if (this.engine.loadJmxBeans)
             {
@@ -406,6 +397,252 @@ class QueuePoller implements Runnable, QueuePollerMBean
         localThread = null;
     }
 
+    /**
+     * Default claim method: each job instance is claimed with its own UPDATE and transaction, as other nodes may be trying to claim the
+     * same job instances.
+     */
+    private void claimInstances(List<JobInstance> newInstances, DbConn cnx)
+    {
+        for (JobInstance ji : newInstances)
+        {
+            // Check if we have the resources needed to run this JI
+            List<ResourceManagerBase> alreadyReserved = new ArrayList<ResourceManagerBase>(this.resourceManagers.size());
+            BookingStatus status = bookResources(ji, cnx, alreadyReserved);
+            if (status == BookingStatus.EXHAUSTED)
+            {
+                break;
+            }
+            if (status == BookingStatus.FAILED)
+            {
+                continue;
+            }
+
+            // Actually set it for running on this node and report it on the in-memory object.
+            QueryResult qr;
+            try
+            {
+                qr = cnx.runUpdate("ji_update_status_by_id", this.engine.getNode().getId(), ji.getId());
+                if (qr.nbUpdated == 1)
+                {
+                    // Commit taking possession of the JI (as well as anything whih may have been done inside the RMs)
+                    jqmlogger.trace("Commit");
+                    cnx.commit();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                rollbackResourceBookingsQuietly(ji, cnx, alreadyReserved);
+                throw e;
+            }
+            if (qr.nbUpdated != 1)
+            {
+                // Means the JI was taken by another node, so simply continue.
+                claimConflictCount.inc();
+                for (ResourceManagerBase reservedRm : alreadyReserved)
+                {
+                    reservedRm.rollbackResourceBooking(ji, cnx);
+                }
+                continue;
+            }
+            ji.setNode(this.engine.getNode());
+            ji.setState(State.ATTRIBUTED);
+            actualNbThread.incrementAndGet();
+            for (ResourceManagerBase reservedRm : alreadyReserved)
+            {
+                reservedRm.commitResourceBooking(ji, cnx); // after transaction commit.
+            }
+
+            launch(ji, cnx);
+        }
+    }
+
+    /**
+     * Claim method used when the poll query has locked the candidate rows: no other node can take them, so all the job instances which
+     * have obtained their resources are claimed in a single UPDATE and transaction.
+     */
+    private void claimLockedInstances(List<JobInstance> newInstances, DbConn cnx)
+    {
+        List<JobInstance> toClaim = new ArrayList<JobInstance>(newInstances.size());
+        List<Integer> toClaimIds = new ArrayList<Integer>(newInstances.size());
+        List<List<ResourceManagerBase>> reservations = new ArrayList<List<ResourceManagerBase>>(newInstances.size());
+        QueryResult qr;
+
+        try
+        {
+            for (JobInstance ji : newInstances)
+            {
+                List<ResourceManagerBase> alreadyReserved = new ArrayList<ResourceManagerBase>(this.resourceManagers.size());
+                BookingStatus status = bookResources(ji, cnx, alreadyReserved);
+                if (status == BookingStatus.EXHAUSTED)
+                {
+                    break;
+                }
+                if (status == BookingStatus.FAILED)
+                {
+                    continue;
+                }
+
+                toClaim.add(ji);
+                toClaimIds.add(ji.getId());
+                reservations.add(alreadyReserved);
+            }
+
+            if (toClaim.isEmpty())
+            {
+                // Release the row locks.
+                cnx.rollback();
+                return;
+            }
+
+            qr = cnx.runUpdate("ji_update_status_by_id_list", this.engine.getNode().getId(), toClaimIds);
+            if (qr.nbUpdated == toClaim.size())
+            {
+                jqmlogger.trace("Commit");
+                cnx.commit();
+            }
+            else
+            {
+                cnx.rollback();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            for (int i = 0; i < toClaim.size(); i++)
+            {
+                rollbackResourceBookingsQuietly(toClaim.get(i), cnx, reservations.get(i));
+            }
+            throw e;
+        }
+
+        if (qr.nbUpdated != toClaim.size())
+        {
+            // Should not happen as rows are locked - but there is no way to know which JI was not claimed. Retry on next loop.
+            jqmlogger.warn("Poller on queue {} could only claim {} job instances out of {} locked ones - retrying later",
+                    this.queue.getName(), qr.nbUpdated, toClaim.size());
+            claimConflictCount.inc(toClaim.size() - qr.nbUpdated);
+            for (int i = 0; i < toClaim.size(); i++)
+            {
+                for (ResourceManagerBase reservedRm : reservations.get(i))
+                {
+                    reservedRm.rollbackResourceBooking(toClaim.get(i), cnx);
+                }
+            }
+            return;
+        }
+        actualNbThread.addAndGet(toClaim.size());
+
+        for (int i = 0; i < toClaim.size(); i++)
+        {
+            JobInstance ji = toClaim.get(i);
+            ji.setNode(this.engine.getNode());
+            ji.setState(State.ATTRIBUTED);
+            for (ResourceManagerBase reservedRm : reservations.get(i))
+            {
+                reservedRm.commitResourceBooking(ji, cnx); // after transaction commit.
+            }
+
+            launch(ji, cnx);
+        }
+    }
+
+    /**
+     * Asks all resource managers for the resources needed by a job instance. If one of them refuses, the bookings already made are rolled
+     * back.
+     *
+     * @param alreadyReserved
+     *                            filled with the resource managers which have booked resources. Only meaningful on success.
+     * @return BOOKED if all resource managers have agreed, the refusal status otherwise.
+     */
+    private BookingStatus bookResources(JobInstance ji, DbConn cnx, List<ResourceManagerBase> alreadyReserved)
+    {
+        for (ResourceManagerBase rm : this.resourceManagers)
+        {
+            BookingStatus status;
+            try
+            {
+                status = rm.bookResource(ji, cnx);
+            }
+            catch (RuntimeException e)
+            {
+                rollbackResourceBookingsQuietly(ji, cnx, alreadyReserved);
+                throw e;
+            }
+            switch (status)
+            {
+            case BOOKED:
+                // OK, nothing to do.
+                alreadyReserved.add(rm);
+                break;
+            case EXHAUSTED:
+                // Stop the loop - cannot do anything anymore with these resources.
+                jqmlogger.trace("Poller has a full RM");
+                for (ResourceManagerBase reservedRm : alreadyReserved)
+                {
+                    reservedRm.rollbackResourceBooking(ji, cnx);
+                }
+                return status;
+            case FAILED:
+                // Skip this JI - no resource for it but there may be resources for the next ones.
+                jqmlogger.trace("Head JI asks for unavailable resources, skipping to next one");
+                for (ResourceManagerBase reservedRm : alreadyReserved)
+                {
+                    reservedRm.rollbackResourceBooking(ji, cnx);
+                }
+                return status;
+            }
+        }
+        return BookingStatus.BOOKED;
+    }
+
+    /**
+     * Undoes the bookings of a job instance when the poller is failing. The failure itself is what matters, so errors here are only logged
+     * - the poller transaction is rolled back anyway.
+     */
+    private void rollbackResourceBookingsQuietly(JobInstance ji, DbConn cnx, List<ResourceManagerBase> reserved)
+    {
+        for (ResourceManagerBase reservedRm : reserved)
+        {
+            try
+            {
+                reservedRm.rollbackResourceBooking(ji, cnx);
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.warn("Could not roll back the resource booking of JI " + ji.getId() + " inside RM " + reservedRm.key, e);
+            }
+        }
+    }
+
+    /**
+     * Starts a job instance which has been claimed by this poller.
+     */
+    private void launch(JobInstance ji, DbConn cnx)
+    {
+        claimedCount.inc();
+        if (ji.getCreationDate() != null)
+        {
+            waitDuration.observeMillis(System.currentTimeMillis() - ji.getCreationDate().getTimeInMillis());
+        }
+
+        // We will run this JI!
+        jqmlogger.trace("JI number {} will be run by this poller this loop (already {}/{} on {})", ji.getId(), actualNbThread, maxNbThread,
+                this.queue.getName());
+        if (ji.getJD().getMaxTimeRunning() != null)
+        {
+            this.peremption.put(ji.getId(), new Date((new Date()).getTime() + ji.getJD().getMaxTimeRunning() * 60 * 1000));
+        }
+
+        // Run it
+        if (!ji.getJD().isExternal())
+        {
+            this.engine.getRunningJobInstanceManager().startNewJobInstance(ji, this);
+        }
+        else
+        {
+            this.engine.getRunningJobInstanceManager().startNewExternalJobInstance(new RunningExternalJobInstance(cnx, ji, this));
+        }
+    }
+
     @Override
     public Integer getCurrentActiveThreadCount()
     {
@@ -425,14 +662,36 @@ class QueuePoller implements Runnable, QueuePollerMBean
             rm.releaseResource(ji);
         }
 
-        if (!this.strictPollingPeriod)
+        if (!this.engine.isStrictPollingPeriod())
         {
             // Force a new loop at once. This makes queues more fluid.
-            loop.release(1);
+            forceLoop();
         }
         this.engine.signalEndOfRun();
     }
 
+    /**
+     * Called when new job instances were signaled inside the polled queue. Forces a new loop at once, unless the polling period is strict.
+     */
+    void wakeUp()
+    {
+        if (!this.engine.isStrictPollingPeriod())
+        {
+            forceLoop();
+        }
+    }
+
+    /**
+     * Many signals may arrive during a single loop (job instance ends, notifications...) - they only need one more loop, not one each.
+     */
+    private void forceLoop()
+    {
+        if (loop.availablePermits() == 0)
+        {
+            loop.release();
+        }
+    }
+
     boolean isRunning()
     {
         return !this.hasStopped;
@@ -562,7 +821,8 @@ class QueuePoller implements Runnable, QueuePollerMBean
     public boolean isActuallyPolling()
     {
         // 1000ms is a rough estimate of the time taken to do the actual poll. If it's more, there is a huge issue elsewhere.
-        return (Calendar.getInstance().getTimeInMillis() - this.lastLoop.getTimeInMillis()) <= pollingInterval + 1000;
+        Calendar lastLoop = this.lastLoop;
+        return lastLoop != null && (Calendar.getInstance().getTimeInMillis() - lastLoop.getTimeInMillis()) <= pollingInterval + 1000;
     }
 
     @Override
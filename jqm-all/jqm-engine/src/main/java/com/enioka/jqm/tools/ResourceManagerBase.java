@@ -90,6 +90,23 @@ abstract class ResourceManagerBase
         this.releaseResource(ji);
     }
 
+    /**
+     * Called by the engine internal poller on each of its loops (see the <code>internalPollingPeriodMs</code> global parameter) for the
+     * node-level RMs, inside its transaction - it is committed by the caller.<br>
+     * Default implementation does nothing.
+     */
+    void heartbeat(DbConn cnx)
+    {
+    }
+
+    /**
+     * Called once for the node-level RMs when the engine stops, inside a transaction committed by the caller.<br>
+     * Default implementation does nothing.
+     */
+    void stop(DbConn cnx)
+    {
+    }
+
     /**
      * According to this resource manager, how many job instances could now be launched? This should be a very fast approximation with
      * reasonable hypothesis (which may use parameters). Do not implement if not compatible with this type of resource.
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.enioka.jqm.api.JobRunner;
+import com.enioka.jqm.api.StoppableJobRunner;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.JobInstance;
 
@@ -23,10 +24,13 @@ class RunnerManager
 
     private List<JobRunner> runners = new ArrayList<JobRunner>(2);
 
+    private JavaRunner javaRunner;
+
     RunnerManager(DbConn cnx)
     {
         jqmlogger.info("Registering java runner");
-        runners.add(new JavaRunner(cnx));
+        javaRunner = new JavaRunner(cnx);
+        runners.add(javaRunner);
         runners.add(new ShellRunner(cnx));
     }
 
@@ -54,4 +58,26 @@ class RunnerManager
 
         throw new JqmRuntimeException("there is no runner able to run job definition " + ji.getJD().getApplicationName());
     }
+
+    /**
+     * The class loaders used by the Java payloads.
+     */
+    ClassloaderManager getClassloaderManager()
+    {
+        return javaRunner.getClassloaderManager();
+    }
+
+    /**
+     * To be called when the engine stops, once no job instance is running anymore.
+     */
+    void stop()
+    {
+        for (JobRunner runner : runners)
+        {
+            if (runner instanceof StoppableJobRunner)
+            {
+                ((StoppableJobRunner) runner).stop();
+            }
+        }
+    }
 }
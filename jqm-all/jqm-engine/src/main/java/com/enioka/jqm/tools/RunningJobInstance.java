@@ -50,6 +50,10 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
     private Calendar endDate = null;
     private JobRunner jr = null;
 
+    // Metrics, only used when running inside an engine.
+    private long attributionTime;
+    private long runStartTime = 0;
+
     /**
      * Constructor for JI coming from queue pollers.
      *
@@ -62,6 +66,7 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
         this.qp = qp;
         this.engine = qp.getEngine();
         this.manager = engine.getRunningJobInstanceManager();
+        this.attributionTime = System.currentTimeMillis();
     }
 
     /**
@@ -132,7 +137,8 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
         }
 
         // Create tracker
-        tracker = jr.getTracker(this.ji, new JobInstanceEngineApi(this.ji), this);
+        JobInstanceReporter reporter = this.engine == null ? null : this.engine.getJobInstanceReporter();
+        tracker = jr.getTracker(this.ji, new JobInstanceEngineApi(this.ji, reporter), this);
 
         // Block needing the database
         DbConn cnx = null;
@@ -156,6 +162,13 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
                 return;
             }
             cnx.commit();
+
+            runStartTime = System.currentTimeMillis();
+            if (this.qp != null)
+            {
+                Metrics.histogram("jqm_ji_start_delay_seconds", "Time between attribution to a node and actual start", metricLabels())
+                        .observeMillis(runStartTime - attributionTime);
+            }
         }
         catch (JobRunnerException e)
         {
@@ -235,6 +248,17 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
             this.manager.signalEndOfRun(this);
         }
 
+        if (this.qp != null)
+        {
+            if (runStartTime > 0)
+            {
+                Metrics.histogram("jqm_ji_run_duration_seconds", "Duration of the job instance runs", metricLabels())
+                        .observeMillis(endDate.getTimeInMillis() - runStartTime);
+            }
+            Metrics.counter("jqm_ji_ended_total", "Job instances which have ended their run", "node", this.engine.getNode().getName(),
+                    "queue", this.qp.getQueue().getName(), "state", this.resultStatus.toString()).inc();
+        }
+
         // Send e-mail before releasing the slot - it may be long
         if (ji.getEmail() != null)
         {
@@ -282,8 +306,26 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
             this.engine.getHandler().onJobInstanceDone(ji);
         }
 
-        // Part needing DB connection with specific failure handling code.
-        endOfRunDb();
+        // Messages and progress sent by the payload must be stored before its history. A failure here must not prevent the history from
+        // being written, or the JI would stay RUNNING forever.
+        if (this.engine != null && this.engine.getJobInstanceReporter() != null)
+        {
+            try
+            {
+                this.engine.getJobInstanceReporter().flush(this.ji.getId());
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.error("Could not store the latest messages and progress of job instance " + this.ji.getId()
+                        + " - they are lost, but the job instance will still be finalized", e);
+            }
+        }
+
+        // Part needing DB connection with specific failure handling code. May be grouped with other job instances.
+        if (this.engine == null || this.engine.getJobInstanceFinalizer() == null || !this.engine.getJobInstanceFinalizer().submit(this))
+        {
+            endOfRunDb();
+        }
     }
 
     /**
@@ -292,6 +334,7 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
     void endOfRunDb()
     {
         DbConn cnx = null;
+        long start = System.nanoTime();
 
         try
         {
@@ -302,6 +345,8 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
             jqmlogger.trace("An History was just created for job instance " + this.ji.getId());
             cnx.runUpdate("ji_delete_by_id", this.ji.getId());
             cnx.commit();
+
+            endOfRunDbDone(System.nanoTime() - start);
         }
         catch (RuntimeException e)
         {
@@ -313,6 +358,25 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
         }
     }
 
+    /**
+     * Called once the results of the job instance are stored, with the duration of the storage.
+     */
+    void endOfRunDbDone(long durationNanos)
+    {
+        JobInstanceEndNotifier.signalEnd(this.ji.getId(), this.ji.getParentId());
+
+        if (this.qp != null)
+        {
+            Metrics.histogram("jqm_ji_end_db_seconds", "Duration of the database operations at the end of a run", metricLabels())
+                    .observeNanos(durationNanos);
+        }
+    }
+
+    private String[] metricLabels()
+    {
+        return new String[] { "node", this.engine.getNode().getName(), "queue", this.qp.getQueue().getName() };
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // DB failure analysis
     ///////////////////////////////////////////////////////////////////////////
@@ -440,6 +504,21 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
         return this.ji.getId();
     }
 
+    JobInstance getJobInstance()
+    {
+        return this.ji;
+    }
+
+    State getResultStatus()
+    {
+        return this.resultStatus;
+    }
+
+    Calendar getEndDate()
+    {
+        return this.endDate;
+    }
+
     boolean isDone()
     {
         return this.isDone;
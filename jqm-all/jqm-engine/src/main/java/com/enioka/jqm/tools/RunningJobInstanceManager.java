@@ -18,6 +18,13 @@ class RunningJobInstanceManager
     private ConcurrentHashMap<RunningJobInstance, RjiRegistration> instancesByTracker = new ConcurrentHashMap<RunningJobInstance, RjiRegistration>();
     private ConcurrentHashMap<Integer, RjiRegistration> instancesById = new ConcurrentHashMap<Integer, RunningJobInstanceManager.RjiRegistration>();
 
+    private PayloadExecutor executor;
+
+    RunningJobInstanceManager(PayloadExecutor executor)
+    {
+        this.executor = executor;
+    }
+
     void startNewJobInstance(JobInstance ji, QueuePoller qp)
     {
         RjiRegistration reg = new RjiRegistration();
@@ -29,7 +36,23 @@ class RunningJobInstanceManager
         instancesByTracker.put(reg.rji, reg);
         instancesById.put(reg.ji.getId(), reg);
 
-        (new Thread(reg.rji)).start();
+        executor.execute(reg.rji);
+    }
+
+    /**
+     * Starts the watcher of a job instance running inside its own process. These are not registered inside the manager.
+     */
+    void startNewExternalJobInstance(RunningExternalJobInstance reji)
+    {
+        executor.executeAuxiliary(reji);
+    }
+
+    /**
+     * To be called when no new job instance will be started. Already running instances are not affected.
+     */
+    void shutdown()
+    {
+        executor.shutdown();
     }
 
     void signalEndOfRun(RunningJobInstance rji)
@@ -0,0 +1,88 @@
+package com.enioka.jqm.jdbc;
+
+import java.sql.PreparedStatement;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.test.helpers.TestHelpers;
+import com.enioka.jqm.tools.JqmBaseTest;
+
+/**
+ * Tests of the configuration cache of {@link Db}, including changes done by other processes. Inside this package as they need the
+ * internals.
+ */
+public class MetadataCacheTest extends JqmBaseTest
+{
+    @Test
+    public void testNoCacheByDefault() throws Exception
+    {
+        MetadataCache cache = db.getMetadataCache();
+        Assert.assertEquals(TestHelpers.qVip, cache.getQueueId(cnx, "VIPQueue"));
+
+        renameVipQueueBehindCache("NewName");
+
+        Assert.assertEquals(TestHelpers.qVip, cache.getQueueId(cnx, "NewName"));
+        assertNoQueue(cache, "VIPQueue");
+    }
+
+    @Test
+    public void testChangesBehindCacheSeenAfterTtl() throws Exception
+    {
+        MetadataCache longCache = new MetadataCache(3600000);
+        MetadataCache shortCache = new MetadataCache(50);
+        Assert.assertEquals(TestHelpers.qVip, longCache.getQueueId(cnx, "VIPQueue"));
+        Assert.assertEquals(TestHelpers.qVip, shortCache.getQueueId(cnx, "VIPQueue"));
+
+        renameVipQueueBehindCache("NewName");
+
+        // Inside the TTL, a change done by another process is not seen.
+        Assert.assertEquals(TestHelpers.qVip, longCache.getQueueId(cnx, "VIPQueue"));
+
+        // After it, it is.
+        sleepms(100);
+        Assert.assertEquals(TestHelpers.qVip, shortCache.getQueueId(cnx, "NewName"));
+        assertNoQueue(shortCache, "VIPQueue");
+    }
+
+    @Test
+    public void testLocalChangeInvalidatesCache() throws Exception
+    {
+        MetadataCache cache = new MetadataCache(3600000);
+        Assert.assertEquals(TestHelpers.qVip, cache.getQueueId(cnx, "VIPQueue"));
+
+        cnx.runUpdate("q_update_all_fields_by_id", true, "Queue for the winners", "NewName", TestHelpers.qVip);
+        cnx.commit();
+
+        Assert.assertEquals(TestHelpers.qVip, cache.getQueueId(cnx, "NewName"));
+        assertNoQueue(cache, "VIPQueue");
+    }
+
+    /**
+     * Same update as an admin would do from another node: directly on the JDBC connection, so {@link DbConn} does not see it.
+     */
+    private void renameVipQueueBehindCache(String newName) throws Exception
+    {
+        PreparedStatement ps = cnx._cnx.prepareStatement(db.getQuery("q_update_all_fields_by_id"));
+        ps.setBoolean(1, true);
+        ps.setString(2, "Queue for the winners");
+        ps.setString(3, newName);
+        ps.setInt(4, TestHelpers.qVip);
+        Assert.assertEquals(1, ps.executeUpdate());
+        ps.close();
+        cnx._cnx.commit();
+    }
+
+    private void assertNoQueue(MetadataCache cache, String name)
+    {
+        try
+        {
+            cache.getQueueId(cnx, name);
+            Assert.fail("queue " + name + " should not exist anymore");
+        }
+        catch (NoResultException e)
+        {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.enioka.jqm.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.tools.JqmBaseTest;
+
+/**
+ * Tests of the binding of null parameters by {@link DbImplPg}, which caches the parameter types of each query. The adapter only uses
+ * standard JDBC to do so, so this runs on the test database. Inside this package as they need the internals.
+ */
+public class NullParameterTest extends JqmBaseTest
+{
+    @Test
+    public void testParameterTypesCachedByQueryKey() throws Exception
+    {
+        DbImplPg adapter = new DbImplPg();
+        QueryPreparation q = query("q_select_by_key");
+        AtomicInteger metadataReads = new AtomicInteger(0);
+
+        // First binding reads the types, the second one uses the cache - even on another statement.
+        assertNullBinding(adapter, q, metadataReads);
+        Assert.assertEquals(1, metadataReads.get());
+        assertNullBinding(adapter, q, metadataReads);
+        Assert.assertEquals(1, metadataReads.get());
+    }
+
+    @Test
+    public void testRawQueryNotCached() throws Exception
+    {
+        DbImplPg adapter = new DbImplPg();
+        QueryPreparation q = query("q_select_by_key");
+        q.queryKey = null;
+        AtomicInteger metadataReads = new AtomicInteger(0);
+
+        assertNullBinding(adapter, q, metadataReads);
+        Assert.assertEquals(1, metadataReads.get());
+        assertNullBinding(adapter, q, metadataReads);
+        Assert.assertEquals(2, metadataReads.get());
+    }
+
+    private void assertNullBinding(DbImplPg adapter, QueryPreparation q, AtomicInteger metadataReads) throws Exception
+    {
+        PreparedStatement ps = countingStatement(cnx._cnx.prepareStatement(q.sqlText), metadataReads);
+        try
+        {
+            adapter.setNullParameter(q, 1, ps);
+
+            // NAME=NULL is never true.
+            ResultSet rs = ps.executeQuery();
+            Assert.assertFalse(rs.next());
+            rs.close();
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    private QueryPreparation query(String key)
+    {
+        QueryPreparation q = new QueryPreparation();
+        q.queryKey = key;
+        q.sqlText = db.getQuery(key);
+        q.parameters = new ArrayList<Object>();
+        return q;
+    }
+
+    private static PreparedStatement countingStatement(final PreparedStatement target, final AtomicInteger metadataReads)
+    {
+        return (PreparedStatement) Proxy.newProxyInstance(NullParameterTest.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                    {
+                        if (method.getName().equals("getParameterMetaData"))
+                        {
+                            metadataReads.incrementAndGet();
+                        }
+                        try
+                        {
+                            return method.invoke(target, args);
+                        }
+                        catch (InvocationTargetException e)
+                        {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,88 @@
+package com.enioka.jqm.jdbc;
+
+import java.lang.reflect.Field;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
+import com.enioka.jqm.tools.JqmBaseTest;
+
+/**
+ * Tests of the claim method used by engines when the poll query locks the rows it returns. The test database cannot lock this way, but
+ * with a single engine nothing else competes for the rows, so the claim itself can be checked. Inside this package as they need the
+ * internals.
+ */
+public class PollLockingTest extends JqmBaseTest
+{
+    @Test
+    public void testLockedHeadClaimedInOneStatement() throws Exception
+    {
+        final AtomicInteger batchClaims = new AtomicInteger(0);
+        final AtomicInteger singleClaims = new AtomicInteger(0);
+        DbAdapter lockingAdapter = new DbImplHsql()
+        {
+            @Override
+            public boolean isPollLocking()
+            {
+                return true;
+            }
+
+            @Override
+            public String getSqlText(String key)
+            {
+                if ("ji_update_status_by_id_list".equals(key))
+                {
+                    batchClaims.incrementAndGet();
+                }
+                if ("ji_update_status_by_id".equals(key))
+                {
+                    singleClaims.incrementAndGet();
+                }
+                return super.getSqlText(key);
+            }
+        };
+        lockingAdapter.prepare(new Properties(), cnx._cnx);
+
+        CreationTools.createJobDef(null, true, "App", null, "jqm-tests/jqm-test-datetimemaven/target/test.jar", TestHelpers.qVip, 42,
+                "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        for (int i = 0; i < 5; i++)
+        {
+            JobRequest.create("MarsuApplication", "TestUser").submit();
+        }
+
+        DbAdapter previous = setAdapter(lockingAdapter);
+        try
+        {
+            addAndStartEngine();
+            TestHelpers.waitFor(5, 10000, cnx);
+        }
+        finally
+        {
+            if (engines.containsKey("localhost"))
+            {
+                stopAndRemoveEngine("localhost");
+            }
+            setAdapter(previous);
+        }
+
+        // The whole queue head was polled at once, so it was claimed with a single UPDATE.
+        Assert.assertEquals(5, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(1, batchClaims.get());
+        Assert.assertEquals(0, singleClaims.get());
+    }
+
+    private static DbAdapter setAdapter(DbAdapter adapter) throws Exception
+    {
+        Field f = Db.class.getDeclaredField("adapter");
+        f.setAccessible(true);
+        DbAdapter previous = (DbAdapter) f.get(db);
+        f.set(db, adapter);
+        return previous;
+    }
+}
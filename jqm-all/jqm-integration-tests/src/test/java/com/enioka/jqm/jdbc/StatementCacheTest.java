@@ -0,0 +1,190 @@
+package com.enioka.jqm.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.tools.JqmBaseTest;
+
+/**
+ * Tests of the prepared statement cache and of the session registry of {@link Db}. Inside this package as they need the internals.
+ */
+public class StatementCacheTest extends JqmBaseTest
+{
+    @Test
+    public void testLruEvictionClosesStatements() throws Exception
+    {
+        StatementCache cache = new StatementCache(2);
+        QueryPreparation q1 = query("q_select_all");
+        QueryPreparation q2 = query("node_select_all");
+        QueryPreparation q3 = query("cl_select_all");
+        PreparedStatement ps1 = cnx._cnx.prepareStatement(q1.sqlText);
+        PreparedStatement ps2 = cnx._cnx.prepareStatement(q2.sqlText);
+        PreparedStatement ps3 = cnx._cnx.prepareStatement(q3.sqlText);
+
+        cache.release(new StatementCache.CachedStatement(q1, ps1));
+        cache.release(new StatementCache.CachedStatement(q2, ps2));
+        cache.release(new StatementCache.CachedStatement(q3, ps3));
+
+        // The least recently used statement is closed, the others are still available.
+        Assert.assertTrue(ps1.isClosed());
+        Assert.assertNull(cache.take(q1));
+        Assert.assertSame(ps2, cache.take(q2).ps);
+        Assert.assertSame(ps3, cache.take(q3).ps);
+        Assert.assertFalse(ps2.isClosed());
+        Assert.assertFalse(ps3.isClosed());
+
+        cache.clear();
+        ps2.close();
+        ps3.close();
+    }
+
+    @Test
+    public void testClosedResultSetGivesStatementBack() throws Exception
+    {
+        ResultSet rs = cnx.runSelect("q_select_all");
+        Statement s = rs.getStatement();
+        cnx.closeQuietly(rs);
+
+        // The statement is kept open for the next run of the same query.
+        Assert.assertTrue(rs.isClosed());
+        Assert.assertFalse(s.isClosed());
+
+        ResultSet rs2 = cnx.runSelect("q_select_all");
+        Assert.assertSame(s, rs2.getStatement());
+        cnx.closeQuietly(rs2);
+    }
+
+    @Test
+    public void testClosedPhysicalConnectionIsForgotten() throws Exception
+    {
+        Connection physical = cnx._cnx.unwrap(Connection.class);
+        Connection closed = closedConnection();
+        synchronized (db.sessions)
+        {
+            Assert.assertTrue(db.sessions.containsKey(physical));
+            db.sessions.put(closed, new StatementCache(10));
+        }
+
+        db.forgetClosedSessions();
+
+        synchronized (db.sessions)
+        {
+            Assert.assertFalse(db.sessions.containsKey(closed));
+            Assert.assertTrue(db.sessions.containsKey(physical));
+        }
+    }
+
+    @Test
+    public void testIsolationLevelOnlyReadForNewSessions() throws Exception
+    {
+        // A data source always giving the same physical connection, counting the isolation level reads.
+        final Connection physical = ((DataSource) InitialContext.doLookup("jdbc/jqm")).getConnection();
+        final AtomicInteger isolationReads = new AtomicInteger(0);
+        DataSource ds = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                    {
+                        if (method.getName().equals("getConnection"))
+                        {
+                            return countingConnection(physical, isolationReads);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        try
+        {
+            Db countingDb = new Db(ds, false);
+
+            int before = isolationReads.get();
+            countingDb.getConn().close();
+            Assert.assertEquals(before + 1, isolationReads.get());
+
+            // Known session: nothing is asked to the database.
+            countingDb.getConn().close();
+            countingDb.getConn().close();
+            Assert.assertEquals(before + 1, isolationReads.get());
+
+            // A session reset by someone else is set up again.
+            physical.setAutoCommit(true);
+            countingDb.getConn().close();
+            Assert.assertEquals(before + 2, isolationReads.get());
+        }
+        finally
+        {
+            physical.close();
+        }
+    }
+
+    private QueryPreparation query(String key)
+    {
+        QueryPreparation q = new QueryPreparation();
+        q.queryKey = key;
+        q.sqlText = db.getQuery(key);
+        q.parameters = new ArrayList<Object>();
+        return q;
+    }
+
+    private static Connection closedConnection()
+    {
+        return (Connection) Proxy.newProxyInstance(StatementCacheTest.class.getClassLoader(), new Class<?>[] { Connection.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                    {
+                        if (method.getName().equals("isClosed"))
+                        {
+                            return true;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static Connection countingConnection(final Connection target, final AtomicInteger isolationReads)
+    {
+        return (Connection) Proxy.newProxyInstance(StatementCacheTest.class.getClassLoader(), new Class<?>[] { Connection.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                    {
+                        if (method.getName().equals("getTransactionIsolation"))
+                        {
+                            isolationReads.incrementAndGet();
+                        }
+                        if (method.getName().equals("close"))
+                        {
+                            // Like a pool: the physical connection stays open.
+                            target.rollback();
+                            return null;
+                        }
+                        try
+                        {
+                            return method.invoke(target, args);
+                        }
+                        catch (InvocationTargetException e)
+                        {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+}
@@ -20,6 +20,7 @@ package com.enioka.jqm.tools;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 
@@ -31,8 +32,10 @@ import com.enioka.admin.MetaService;
 import com.enioka.api.admin.JobDefDto;
 import com.enioka.jqm.api.JobDef;
 import com.enioka.jqm.api.JobInstance;
+import com.enioka.jqm.api.JobInstanceHandler;
 import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.JqmClientFactory;
+import com.enioka.jqm.api.JqmInvalidRequestException;
 import com.enioka.jqm.api.Query;
 import com.enioka.jqm.api.Query.Sort;
 import com.enioka.jqm.api.Queue;
@@ -67,6 +70,66 @@ public class ClientApiTest extends JqmBaseTest
         Assert.assertEquals("MarsuApplication", res.get(1).getApplicationName());
     }
 
+    @Test
+    public void testBatchEnqueue() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "Normal", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "Highlander", null, "Franquin", "ModuleMachin", "other", "other", true, cnx);
+
+        List<JobRequest> requests = new ArrayList<JobRequest>();
+        for (int i = 0; i < 5; i++)
+        {
+            requests.add(JobRequest.create("Normal", "TestUser").addParameter("rank", "" + i).setQueueName("NormalQueue"));
+        }
+        requests.add(JobRequest.create("Highlander", "TestUser"));
+        requests.add(JobRequest.create("Highlander", "TestUser"));
+
+        List<Integer> ids = JqmClientFactory.getClient().enqueue(requests);
+
+        Assert.assertEquals(7, ids.size());
+        Assert.assertEquals(ids.get(5), ids.get(6));
+        Assert.assertEquals(6, Query.create().setQueryLiveInstances(true).run().size());
+        for (int i = 0; i < 5; i++)
+        {
+            JobInstance ji = JqmClientFactory.getClient().getJob(ids.get(i));
+            Assert.assertEquals("" + i, ji.getParameters().get("rank"));
+            Assert.assertEquals("NormalQueue", ji.getQueue().getName());
+            Assert.assertEquals(State.SUBMITTED, ji.getState());
+        }
+
+        // Nothing is created if one request is invalid.
+        requests.add(JobRequest.create("DoesNotExist", "TestUser"));
+        try
+        {
+            JqmClientFactory.getClient().enqueue(requests);
+            Assert.fail("batch should have been refused");
+        }
+        catch (JqmInvalidRequestException e)
+        {
+            // Expected.
+        }
+        Assert.assertEquals(6, Query.create().setQueryLiveInstances(true).run().size());
+    }
+
+    @Test
+    public void testEnqueueMetadataChange() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "Normal", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+
+        int i1 = JqmClientFactory.getClient().enqueue("Normal", "TestUser");
+        Assert.assertEquals("VIPQueue", JqmClientFactory.getClient().getJob(i1).getQueue().getName());
+
+        // Job definition is now cached by the client - it must see the modification anyway.
+        cnx.runUpdate("jd_update_set_queue_by_key", TestHelpers.qNormal, "Normal");
+        cnx.commit();
+
+        int i2 = JqmClientFactory.getClient().enqueue("Normal", "TestUser");
+        Assert.assertEquals("NormalQueue", JqmClientFactory.getClient().getJob(i2).getQueue().getName());
+    }
+
     @Test
     public void testHistoryFields() throws Exception
     {
@@ -217,6 +280,133 @@ public class ClientApiTest extends JqmBaseTest
         Assert.assertEquals("SlowQueue", res.get(0).getQueue().getName());
     }
 
+    @Test
+    public void testChangePositionInQueue() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "TestJqmApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 5; i++)
+        {
+            expected.add(JobRequest.create("TestJqmApplication", "TestUser").submit());
+            Thread.sleep(5); // Positions are based on enqueue time.
+        }
+        Assert.assertEquals(expected, cnx.runSelectColumn("ji_select_waiting_ids_by_queue", Integer.class, TestHelpers.qVip));
+
+        // Head
+        Integer ji = expected.remove(4);
+        expected.add(0, ji);
+        JqmClientFactory.getClient().setJobQueuePosition(ji, 1);
+        Assert.assertEquals(expected, cnx.runSelectColumn("ji_select_waiting_ids_by_queue", Integer.class, TestHelpers.qVip));
+
+        // Towards the end
+        expected.remove(0);
+        expected.add(2, ji);
+        JqmClientFactory.getClient().setJobQueuePosition(ji, 3);
+        Assert.assertEquals(expected, cnx.runSelectColumn("ji_select_waiting_ids_by_queue", Integer.class, TestHelpers.qVip));
+
+        // Tail
+        ji = expected.remove(0);
+        expected.add(ji);
+        JqmClientFactory.getClient().setJobQueuePosition(ji, 10);
+        Assert.assertEquals(expected, cnx.runSelectColumn("ji_select_waiting_ids_by_queue", Integer.class, TestHelpers.qVip));
+
+        // Many moves to the same place exhaust the precision of positions and trigger a rebalancing.
+        for (int i = 0; i < 100; i++)
+        {
+            ji = expected.remove(4);
+            expected.add(1, ji);
+            JqmClientFactory.getClient().setJobQueuePosition(ji, 2);
+        }
+        Assert.assertEquals(expected, cnx.runSelectColumn("ji_select_waiting_ids_by_queue", Integer.class, TestHelpers.qVip));
+
+        // New job instances still go to the end.
+        expected.add(JobRequest.create("TestJqmApplication", "TestUser").submit());
+        Assert.assertEquals(expected, cnx.runSelectColumn("ji_select_waiting_ids_by_queue", Integer.class, TestHelpers.qVip));
+    }
+
+    @Test
+    public void testQueryKeysetAndStream() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "TestJqmApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 5; i++)
+        {
+            expected.add(JobRequest.create("TestJqmApplication", "TestUser").addParameter("p", "v" + i).submit());
+        }
+
+        // Keyset pagination, ascending.
+        List<Integer> res = new ArrayList<Integer>();
+        Integer afterId = null;
+        for (int page = 0; page < 3; page++)
+        {
+            Query q = Query.create().setQueryLiveInstances(true).setPageSize(2).setAfterId(afterId);
+            List<JobInstance> jis = q.run();
+            for (JobInstance ji : jis)
+            {
+                res.add(ji.getId());
+                afterId = ji.getId();
+            }
+            Assert.assertEquals(5, (int) q.getResultSize());
+        }
+        Assert.assertEquals(expected, res);
+
+        // Descending, without count.
+        Query q = Query.create().setQueryLiveInstances(true).setPageSize(2).addSortDesc(Sort.ID).setAfterId(expected.get(3))
+                .setComputeResultSize(false);
+        List<JobInstance> jis = q.run();
+        Assert.assertEquals(2, jis.size());
+        Assert.assertEquals(2, (int) q.getResultSize());
+        Assert.assertEquals(expected.get(2), jis.get(0).getId());
+        Assert.assertEquals(expected.get(1), jis.get(1).getId());
+
+        try
+        {
+            Query.create().setAfterId(1).addSortAsc(Sort.DATEENQUEUE).run();
+            Assert.fail("keyset pagination should need a sort by ID");
+        }
+        catch (JqmInvalidRequestException e)
+        {
+            // Expected.
+        }
+
+        // Streaming.
+        final List<JobInstance> streamed = new ArrayList<JobInstance>();
+        Query.create().setQueryLiveInstances(true).setPageSize(null).run(new JobInstanceHandler()
+        {
+            @Override
+            public void onJobInstance(JobInstance instance)
+            {
+                streamed.add(instance);
+            }
+        });
+        Assert.assertEquals(5, streamed.size());
+        for (int i = 0; i < 5; i++)
+        {
+            Assert.assertEquals(expected.get(i), streamed.get(i).getId());
+            Assert.assertEquals("v" + i, streamed.get(i).getParameters().get("p"));
+        }
+    }
+
+    @Test
+    public void testQueryOnlyNeededTables() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "TestJqmApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JobRequest.create("TestJqmApplication", "TestUser").submit();
+        JobRequest.create("TestJqmApplication", "TestUser").submit();
+
+        Assert.assertEquals(2, Query.create().setQueryLiveInstances(true).addStatusFilter(State.SUBMITTED).run().size());
+        Assert.assertEquals(0, Query.create().setQueryLiveInstances(true).addStatusFilter(State.ENDED).run().size());
+        Assert.assertEquals(0,
+                Query.create().setQueryLiveInstances(true).setEndedAfter(Calendar.getInstance()).setQueryHistoryInstances(false).run().size());
+        Assert.assertEquals(0, Query.create().setQueryLiveInstances(true).setQueryHistoryInstances(false).addStatusFilter(State.ENDED)
+                .setEndedBefore(Calendar.getInstance()).run().size());
+    }
+
     @Test
     public void testDelJobInQueue() throws Exception
     {
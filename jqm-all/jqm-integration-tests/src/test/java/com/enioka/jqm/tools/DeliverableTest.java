@@ -23,6 +23,7 @@ import java.util.Properties;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -80,8 +81,7 @@ public class DeliverableTest extends JqmBaseTest
         Assert.assertEquals(1, files.size());
 
         InputStream tmp = JqmClientFactory.getClient().getDeliverableContent(files.get(0));
-
-        Assert.assertTrue(tmp.available() > 0);
+        Assert.assertEquals("RemoteFileStream", tmp.getClass().getSimpleName()); // streamed by default, so available() may be 0.
         String res = IOUtils.toString(tmp);
         Assert.assertTrue(res.startsWith("Hello World!"));
 
@@ -108,13 +108,81 @@ public class DeliverableTest extends JqmBaseTest
         Assert.assertEquals(1, files.size());
 
         InputStream tmp = JqmClientFactory.getClient().getDeliverableContent(files.get(0));
-        Assert.assertTrue(tmp.available() > 0);
+        Assert.assertEquals("RemoteFileStream", tmp.getClass().getSimpleName()); // streamed by default, so available() may be 0.
         String res = IOUtils.toString(tmp);
         Assert.assertTrue(res.startsWith("Hello World!"));
 
         tmp.close();
     }
 
+    /**
+     * Same as above, but the file is bigger than the spill threshold, so it is first copied to a local file.
+     */
+    @Test
+    public void testGetOneDeliverableSpilled() throws Exception
+    {
+        Helpers.setSingleParam("disableWsApi", "false", cnx);
+        Helpers.setSingleParam("enableWsApiAuth", "false", cnx);
+        Helpers.setSingleParam("enableWsApiSsl", "false", cnx);
+
+        JqmClientFactory.resetClient(null);
+        JqmClientFactory.setProperty("com.enioka.jqm.ws.fileSpillThreshold", "5");
+        try
+        {
+            int jobId = JqmSimpleTest.create(cnx, "pyl.EngineApiSendDeliverable").addDefParameter("filepath", TestHelpers.node.getDlRepo())
+                    .addDefParameter("fileName", "jqm-test-deliverable6.txt").run(this);
+
+            List<com.enioka.jqm.api.Deliverable> files = JqmClientFactory.getClient().getJobDeliverables(jobId);
+            Assert.assertEquals(1, files.size());
+
+            InputStream tmp = JqmClientFactory.getClient().getDeliverableContent(files.get(0));
+            Assert.assertEquals("SelfDestructFileStream", tmp.getClass().getSimpleName());
+            Assert.assertTrue(tmp.available() > 0);
+            String res = IOUtils.toString(tmp);
+            Assert.assertTrue(res.startsWith("Hello World!"));
+
+            tmp.close();
+        }
+        finally
+        {
+            JqmClientFactory.setProperty("com.enioka.jqm.ws.fileSpillThreshold", "-1");
+        }
+    }
+
+    /**
+     * Logs are compressed, so their size is unknown before download: they are streamed whatever the spill threshold (this is what log
+     * tailing needs).
+     */
+    @Test
+    public void testGetLogStreamedWhateverThreshold() throws Exception
+    {
+        Helpers.setSingleParam("disableWsApi", "false", cnx);
+        Helpers.setSingleParam("enableWsApiAuth", "false", cnx);
+        Helpers.setSingleParam("enableWsApiSsl", "false", cnx);
+
+        JqmClientFactory.resetClient(null);
+        JqmClientFactory.setProperty("com.enioka.jqm.ws.fileSpillThreshold", "5");
+        try
+        {
+            int jobId = JqmSimpleTest.create(cnx, "pyl.EngineApiSendDeliverable").addDefParameter("filepath", TestHelpers.node.getDlRepo())
+                    .addDefParameter("fileName", "jqm-test-deliverable7.txt").run(this);
+
+            // Known log content, bigger than the threshold.
+            File log = new File("./logs/" + StringUtils.leftPad("" + jobId, 10, "0") + ".stdout.log");
+            FileUtils.writeStringToFile(log, "first line\nsecond line\n");
+
+            InputStream tmp = JqmClientFactory.getClient().getJobLogStdOut(jobId);
+            Assert.assertEquals("RemoteFileStream", tmp.getClass().getSimpleName());
+            Assert.assertEquals("first line\nsecond line\n", IOUtils.toString(tmp));
+
+            tmp.close();
+        }
+        finally
+        {
+            JqmClientFactory.setProperty("com.enioka.jqm.ws.fileSpillThreshold", "-1");
+        }
+    }
+
     /**
      * Retrieve a remote file with authentication, with SSL.
      */
@@ -139,7 +207,7 @@ public class DeliverableTest extends JqmBaseTest
         Assert.assertEquals(1, files.size());
 
         InputStream tmp = JqmClientFactory.getClient().getDeliverableContent(files.get(0));
-        Assert.assertTrue(tmp.available() > 0);
+        Assert.assertEquals("RemoteFileStream", tmp.getClass().getSimpleName()); // streamed by default, so available() may be 0.
         String res = IOUtils.toString(tmp);
         Assert.assertTrue(res.startsWith("Hello World!"));
 
@@ -22,9 +22,12 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.enioka.jqm.api.JobInstance;
+import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.Query;
 import com.enioka.jqm.api.Query.Sort;
 import com.enioka.jqm.api.State;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
 
 public class EngineApiTest extends JqmBaseTest
 {
@@ -59,6 +62,20 @@ public class EngineApiTest extends JqmBaseTest
         Assert.assertEquals(true, success3);
     }
 
+    @Test
+    public void testSendMsgGroupedWithError() throws Exception
+    {
+        Helpers.setSingleParam("reportFlushPeriodMs", "1000", cnx);
+
+        // The long message cannot be stored, but it must not prevent the others from being stored.
+        int i = JqmSimpleTest.create(cnx, "pyl.EngineApiSendLongMsg").run(this);
+
+        JobInstance ji = Query.create().setJobInstanceId(i).run().get(0);
+        Assert.assertTrue(ji.getMessages().contains("short1"));
+        Assert.assertTrue(ji.getMessages().contains("short2"));
+        Assert.assertEquals((Integer) 10, ji.getProgress());
+    }
+
     @Test
     public void testSendProgress() throws Exception
     {
@@ -78,11 +95,13 @@ public class EngineApiTest extends JqmBaseTest
     }
 
     /**
-     * A parent job can wait for all its children - then its end date should be after the end date of the children.
+     * A parent job can wait for all its children - then its end date should be after the end date of the children. Children ending inside
+     * the same JVM signal it to the parent, which does not wait for the periodic database check.
      */
     @Test
     public void testWaitChildren() throws Exception
     {
+        long signalsBefore = JobInstanceEndNotifier.getSignalCount();
         JqmSimpleTest.create(cnx, "pyl.EngineApiWaitAll").expectOk(6).run(this);
 
         List<JobInstance> jj = Query.create().addSortAsc(Sort.ID).addStatusFilter(State.ENDED).run();
@@ -91,6 +110,47 @@ public class EngineApiTest extends JqmBaseTest
         {
             Assert.assertTrue(parentEnd.after(jj.get(i).getEndDate()));
         }
+
+        // The children have signaled their end to the waiting parent.
+        Assert.assertTrue(JobInstanceEndNotifier.getSignalCount() > signalsBefore);
+    }
+
+    /**
+     * Same with a single child, waited with enqueueSync.
+     */
+    @Test
+    public void testWaitChild() throws Exception
+    {
+        long signalsBefore = JobInstanceEndNotifier.getSignalCount();
+        JqmSimpleTest.create(cnx, "pyl.EngineApiWaitOne").expectOk(2).run(this);
+
+        List<JobInstance> jj = Query.create().addSortAsc(Sort.ID).addStatusFilter(State.ENDED).run();
+        Assert.assertTrue(jj.get(0).getEndDate().after(jj.get(1).getEndDate()));
+
+        // The child has woken its parent itself.
+        Assert.assertEquals(1, JobInstanceEndNotifier.getSignalCount() - signalsBefore);
+    }
+
+    /**
+     * Many parents waiting at the same time share the database checks - far less than one check per waiter and per second.
+     */
+    @Test
+    public void testWaitChildSharedPoll() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.EngineApiWaitOne", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip,
+                -1, "TestJqmApplication", null, "TestModule", "kw1", "kw2", "kw3", false, cnx);
+        for (int i = 0; i < 10; i++)
+        {
+            JobRequest.create("TestJqmApplication", "TestUser").submit();
+        }
+        long pollsBefore = JobInstanceEndNotifier.getPollCount();
+
+        addAndStartEngine();
+        TestHelpers.waitFor(20, 30000, cnx);
+
+        Assert.assertEquals(20, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertTrue(JobInstanceEndNotifier.getPollCount() - pollsBefore < 10);
     }
 
     @Test
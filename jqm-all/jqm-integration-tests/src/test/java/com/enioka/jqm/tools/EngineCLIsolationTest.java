@@ -1,5 +1,8 @@
 package com.enioka.jqm.tools;
 
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -73,6 +76,76 @@ public class EngineCLIsolationTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
     }
 
+    /**
+     * Run test with the pool of prepared isolated class loaders, launching the same job definitions many times.
+     * 
+     * Expected : isolation
+     */
+    @Test
+    public void testIsolatedPool() throws Exception
+    {
+        Helpers.setSingleParam("classLoaderPoolSize", "10", cnx);
+
+        // The jar is redeployed during the test, so use a copy of it.
+        File repo = new File(FileUtils.getTempDirectory(), "jqm-test-clpool-" + System.currentTimeMillis());
+        File jar = new File(repo, "test.jar");
+        FileUtils.copyFile(new File("../jqm-tests/jqm-test-cl-isolation/target/test.jar"), jar);
+        CreationTools.createJobDef(null, true, "com.enioka.jqm.TestCLIsolation.TestSet", null, jar.getAbsolutePath(), TestHelpers.qVip,
+                -1, "TestSet", null, null, null, null, null, false, cnx, null);
+        CreationTools.createJobDef(null, true, "com.enioka.jqm.TestCLIsolation.TestGet", null, jar.getAbsolutePath(), TestHelpers.qVip,
+                -1, "TestGet", null, null, null, null, null, false, cnx, null);
+        cnx.commit();
+
+        JqmEngine engine = (JqmEngine) addAndStartEngine();
+        PayloadClassLoaderPool pool = engine.getRunnerManager().getClassloaderManager().getIsolatedClassLoaderPool();
+
+        // First launches: nothing to prepare yet.
+        JobRequest.create("TestSet", null).submit();
+        TestHelpers.waitFor(1, 10000, cnx);
+        JobRequest.create("TestGet", null).submit();
+        TestHelpers.waitFor(2, 10000, cnx);
+        Assert.assertEquals(2, pool.getMissCount());
+
+        // Class loaders are prepared in the background - each launch waits for its own to be ready.
+        for (int i = 1; i <= 3; i++)
+        {
+            waitForReadyClassLoaders(pool, 2);
+            JobRequest.create("TestSet", null).submit();
+            TestHelpers.waitFor(2 * i + 1, 10000, cnx);
+            waitForReadyClassLoaders(pool, 2);
+            JobRequest.create("TestGet", null).submit();
+            TestHelpers.waitFor(2 * i + 2, 10000, cnx);
+        }
+
+        Assert.assertEquals(8, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(6, pool.getHitCount());
+        Assert.assertEquals(2, pool.getMissCount());
+
+        // A redeployed jar must not be used through a class loader prepared beforehand.
+        waitForReadyClassLoaders(pool, 2);
+        Assert.assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+        JobRequest.create("TestSet", null).submit();
+        TestHelpers.waitFor(9, 10000, cnx);
+
+        Assert.assertEquals(9, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(6, pool.getHitCount());
+        Assert.assertEquals(3, pool.getMissCount());
+
+        stopAndRemoveEngine("localhost");
+        FileUtils.deleteQuietly(repo);
+    }
+
+    private void waitForReadyClassLoaders(PayloadClassLoaderPool pool, int count)
+    {
+        long limit = System.currentTimeMillis() + 10000;
+        while (pool.getReadyCount() != count && System.currentTimeMillis() < limit)
+        {
+            sleepms(10);
+        }
+        Assert.assertEquals(count, pool.getReadyCount());
+    }
+
     /**
      * Run test setting global parameter launch_isolation_default to SharedJar with two jobs inside the same jar.
      * 
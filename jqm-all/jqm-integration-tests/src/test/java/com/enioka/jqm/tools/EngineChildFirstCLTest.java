@@ -1,5 +1,16 @@
 package com.enioka.jqm.tools;
 
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -45,4 +56,101 @@ public class EngineChildFirstCLTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getOkCount(cnx));
         Assert.assertEquals(1, TestHelpers.getNonOkCount(cnx));
     }
+
+    /**
+     * A shared child first class loader used by many threads at once: each class is defined only once, and the classes not inside the jar
+     * still come from the parent.
+     */
+    @Test
+    public void testChildFirstConcurrentLoading() throws Exception
+    {
+        final PayloadClassLoader cl = new PayloadClassLoader(this.getClass().getClassLoader());
+        cl.setChildFirstClassLoader(true);
+        cl.extendUrls(getPylJarUrl(), null);
+        final String[] names = new String[] { "pyl.Wait", "pyl.KillMe", "pyl.KillMeNot", "pyl.CallYieldAtOnce", "pyl.EngineApiWaitOne",
+                "pyl.EngineApiWaitAll", "java.lang.String" };
+
+        int threadCount = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<Class<?>[]>> results = new ArrayList<Future<Class<?>[]>>();
+        Class<?>[] first;
+        try
+        {
+            for (int i = 0; i < threadCount; i++)
+            {
+                final int offset = i;
+                results.add(executor.submit(new Callable<Class<?>[]>()
+                {
+                    @Override
+                    public Class<?>[] call() throws Exception
+                    {
+                        start.await();
+                        Class<?>[] res = new Class<?>[names.length];
+                        for (int j = 0; j < names.length; j++)
+                        {
+                            // Not all threads in the same order, so that different names are loaded at the same time.
+                            int k = (offset + j) % names.length;
+                            res[k] = cl.loadClass(names[k]);
+                        }
+                        return res;
+                    }
+                }));
+            }
+            start.countDown();
+
+            // A class defined twice would fail with a LinkageError inside one of the threads.
+            first = results.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<Class<?>[]> f : results)
+            {
+                Assert.assertArrayEquals(first, f.get(30, TimeUnit.SECONDS));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            cl.tryCloseUnused();
+        }
+
+        for (int j = 0; j < names.length - 1; j++)
+        {
+            Assert.assertSame(cl, first[j].getClassLoader());
+        }
+        Assert.assertSame(String.class, first[names.length - 1]);
+    }
+
+    /**
+     * A class missing from a child first class loader is found once the jar containing it is added - the misses are not remembered
+     * forever.
+     */
+    @Test
+    public void testChildFirstUrlAddedAfterMiss() throws Exception
+    {
+        PayloadClassLoader cl = new PayloadClassLoader(this.getClass().getClassLoader());
+        cl.setChildFirstClassLoader(true);
+        try
+        {
+            try
+            {
+                cl.loadClass("pyl.Wait");
+                Assert.fail("class should not be found before its jar is added");
+            }
+            catch (ClassNotFoundException e)
+            {
+                // Expected.
+            }
+
+            cl.extendUrls(getPylJarUrl(), null);
+            Assert.assertSame(cl, cl.loadClass("pyl.Wait").getClassLoader());
+        }
+        finally
+        {
+            cl.tryCloseUnused();
+        }
+    }
+
+    private URL getPylJarUrl() throws Exception
+    {
+        return new File("../jqm-tests/jqm-test-pyl/target/test.jar").toURI().toURL();
+    }
 }
@@ -30,6 +30,7 @@ import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.Query;
 import com.enioka.jqm.api.Query.Sort;
 import com.enioka.jqm.model.DeploymentParameter;
+import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.Queue;
 import com.enioka.jqm.api.State;
 import com.enioka.jqm.test.helpers.CreationTools;
@@ -139,6 +140,66 @@ public class HighlanderTest extends JqmBaseTest
         Assert.assertTrue(killTime1.compareTo(res.get(1).getBeganRunningDate()) <= 0);
     }
 
+    @Test
+    public void testHighlanderStaleClaim() throws Exception
+    {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        parameters.put("delay_ms", "1");
+        int jd = CreationTools.createJobDef(null, true, "pyl.Wait", parameters, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", true, cnx);
+
+        // The slot is held by a job instance which does not exist anymore (as after a node crash).
+        cnx.runUpdate("highlander_update_claim", 999999, jd);
+        cnx.commit();
+
+        JobRequest.create("MarsuApplication", "TestUser").submit();
+        addAndStartEngine();
+        TestHelpers.waitFor(1, 10000, cnx);
+
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
+
+    @Test
+    public void testHighlanderBookingRolledBackOnPollerFailure() throws Exception
+    {
+        int q = Queue.create(cnx, "q", "test queue", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 1, 1, q);
+        GlobalParameter.setParameter(cnx, "discreteRmList", "port01");
+
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        parameters.put("delay_ms", "1");
+        CreationTools.createJobDef(null, true, "pyl.Wait", parameters, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", true, cnx);
+        cnx.commit();
+
+        JqmEngineOperations engine = addAndStartEngine();
+        waitForPollers(engine, true);
+
+        // The discrete RM is asked after the highlander RM, and fails on this parameter: the poller fails after the highlander booking.
+        int i1 = JobRequest.create("MarsuApplication", "TestUser").addParameter("com.enioka.jqm.rm.discrete.consumption", "not a number")
+                .submit();
+        waitForPollers(engine, false);
+
+        // The job definition must not stay booked on the node: the other poller can run it.
+        JqmClientFactory.getClient().cancelJob(i1);
+        JobRequest.create("MarsuApplication", "TestUser").setQueueName("q").submit();
+        TestHelpers.waitFor(2, 10000, cnx);
+
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(1, TestHelpers.getNonOkCount(cnx));
+    }
+
+    private void waitForPollers(JqmEngineOperations engine, boolean polling)
+    {
+        long limit = System.currentTimeMillis() + 10000;
+        while (engine.areAllPollersPolling() != polling && System.currentTimeMillis() < limit)
+        {
+            sleepms(10);
+        }
+        Assert.assertEquals(polling, engine.areAllPollersPolling());
+    }
+
     @Test
     public void testHighlanderModeMultiQueue() throws Exception
     {
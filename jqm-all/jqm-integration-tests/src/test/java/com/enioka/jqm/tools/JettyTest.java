@@ -19,17 +19,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.KeyStore;
+import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.SSLContext;
+import javax.xml.bind.DatatypeConverter;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -37,6 +45,7 @@ import org.junit.Test;
 import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.model.Node;
+import com.enioka.jqm.model.RRole;
 import com.enioka.jqm.pki.JdbcCa;
 import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
@@ -60,6 +69,159 @@ public class JettyTest extends JqmBaseTest
         addAndStartEngine();
     }
 
+    @Test
+    public void testMetrics() throws Exception
+    {
+        Helpers.setSingleParam("enableWsApiSsl", "false", cnx);
+        Helpers.setSingleParam("disableWsApi", "false", cnx);
+        Helpers.setSingleParam("enableWsApiAuth", "false", cnx);
+        Helpers.setSingleParam("enableWsApiMetrics", "true", cnx);
+
+        addAndStartEngine();
+
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JqmClientFactory.getClient().enqueue(new JobRequest("MarsuApplication", "TestUser"));
+        TestHelpers.waitFor(1, 10000, cnx);
+
+        CloseableHttpClient cl = HttpClients.createDefault();
+        int port = Node.select_single(cnx, "node_select_by_id", TestHelpers.node.getId()).getPort();
+        CloseableHttpResponse rs = cl.execute(new HttpGet("http://" + TestHelpers.node.getDns() + ":" + port + "/metrics"));
+        Assert.assertEquals(200, rs.getStatusLine().getStatusCode());
+        String body = EntityUtils.toString(rs.getEntity());
+        rs.close();
+        cl.close();
+
+        // Metrics are global to the JVM, so other tests may have incremented them too.
+        String labels = "node=\"" + TestHelpers.node.getName() + "\",queue=\"VIPQueue\"";
+        Assert.assertTrue(body, body.contains("jqm_poll_claimed_total{" + labels + "} "));
+        Assert.assertTrue(body, body.contains("jqm_ji_ended_total{" + labels + ",state=\"ENDED\"} "));
+        Assert.assertTrue(body, body.contains("jqm_ji_run_duration_seconds_count{" + labels + "} "));
+        Assert.assertTrue(body, body.contains("jqm_queue_running{" + labels + "} 0.0"));
+    }
+
+    @Test
+    public void testLogRangeAndGzip() throws Exception
+    {
+        Helpers.setSingleParam("enableWsApiSsl", "false", cnx);
+        Helpers.setSingleParam("disableWsApi", "false", cnx);
+        Helpers.setSingleParam("enableWsApiAuth", "false", cnx);
+
+        addAndStartEngine();
+
+        // A fake job log, served by the simple API like any other.
+        File log = new File("./logs/" + StringUtils.leftPad("999999", 10, "0") + ".stdout.log");
+        FileUtils.writeStringToFile(log, "first line\nsecond line\n");
+        log.setLastModified(System.currentTimeMillis() - 60000);
+
+        // No transparent decompression, so as to check what is really sent.
+        CloseableHttpClient cl = HttpClients.custom().disableContentCompression().build();
+        int port = Node.select_single(cnx, "node_select_by_id", TestHelpers.node.getId()).getPort();
+        String url = "http://" + TestHelpers.node.getDns() + ":" + port + "/ws/simple/stdout?id=999999";
+
+        // Whole file, compressed
+        HttpGet rq = new HttpGet(url);
+        rq.setHeader("Accept-Encoding", "gzip");
+        CloseableHttpResponse rs = cl.execute(rq);
+        Assert.assertEquals(200, rs.getStatusLine().getStatusCode());
+        Assert.assertEquals("gzip", rs.getFirstHeader("Content-Encoding").getValue());
+        Assert.assertEquals("first line\nsecond line\n", IOUtils.toString(new GZIPInputStream(rs.getEntity().getContent())));
+        String lastModified = rs.getFirstHeader("Last-Modified").getValue();
+        rs.close();
+
+        // Whole file, not compressed: sent by the engine file servlet, with the headers set by the web service
+        rq = new HttpGet(url);
+        rs = cl.execute(rq);
+        Assert.assertEquals(200, rs.getStatusLine().getStatusCode());
+        Assert.assertNull(rs.getFirstHeader("Content-Encoding"));
+        Assert.assertEquals("23", rs.getFirstHeader("Content-Length").getValue());
+        Assert.assertEquals(lastModified, rs.getFirstHeader("Last-Modified").getValue());
+        Assert.assertEquals("attachment; filename=999999.stdout.txt", rs.getFirstHeader("Content-Disposition").getValue());
+        Assert.assertEquals("first line\nsecond line\n", EntityUtils.toString(rs.getEntity()));
+        rs.close();
+
+        // Tail: only the bytes after the first line
+        rq = new HttpGet(url);
+        rq.setHeader("Accept-Encoding", "gzip");
+        rq.setHeader("Range", "bytes=11-");
+        rs = cl.execute(rq);
+        Assert.assertEquals(206, rs.getStatusLine().getStatusCode());
+        Assert.assertNull(rs.getFirstHeader("Content-Encoding"));
+        Assert.assertEquals("bytes 11-22/23", rs.getFirstHeader("Content-Range").getValue());
+        Assert.assertEquals("second line\n", EntityUtils.toString(rs.getEntity()));
+        rs.close();
+
+        // Nothing new after the end of the file
+        rq = new HttpGet(url);
+        rq.setHeader("Range", "bytes=23-");
+        rs = cl.execute(rq);
+        Assert.assertEquals(416, rs.getStatusLine().getStatusCode());
+        rs.close();
+
+        // Not modified since last call
+        rq = new HttpGet(url);
+        rq.setHeader("If-Modified-Since", lastModified);
+        rs = cl.execute(rq);
+        Assert.assertEquals(304, rs.getStatusLine().getStatusCode());
+        rs.close();
+
+        cl.close();
+        log.delete();
+    }
+
+    @Test
+    public void testMetricsWithAuth() throws Exception
+    {
+        Helpers.setSingleParam("enableWsApiSsl", "false", cnx);
+        Helpers.setSingleParam("disableWsApi", "false", cnx);
+        Helpers.setSingleParam("enableWsApiAuth", "true", cnx);
+        Helpers.setSingleParam("enableWsApiMetrics", "true", cnx);
+
+        addAndStartEngine();
+
+        // Metrics are protected like the web services.
+        CloseableHttpClient cl = HttpClients.createDefault();
+        int port = Node.select_single(cnx, "node_select_by_id", TestHelpers.node.getId()).getPort();
+        CloseableHttpResponse rs = cl.execute(new HttpGet("http://" + TestHelpers.node.getDns() + ":" + port + "/metrics"));
+        Assert.assertEquals(401, rs.getStatusLine().getStatusCode());
+        rs.close();
+        cl.close();
+    }
+
+    @Test
+    public void testQueryStreamPermissions() throws Exception
+    {
+        Helpers.setSingleParam("enableWsApiSsl", "false", cnx);
+        Helpers.setSingleParam("disableWsApi", "false", cnx);
+        Helpers.setSingleParam("enableWsApiAuth", "true", cnx);
+
+        RRole.create(cnx, "enqueue only", "can only submit new job instances", "job_instance:create");
+        CreationTools.createUser(cnx, "reader", "reader", RRole.select(cnx, "role_select_by_key", "client read only").get(0));
+        CreationTools.createUser(cnx, "submitter", "submitter", RRole.select(cnx, "role_select_by_key", "enqueue only").get(0));
+        cnx.commit();
+
+        addAndStartEngine();
+
+        // Streaming job instances is reading them, whatever the HTTP verb.
+        int port = Node.select_single(cnx, "node_select_by_id", TestHelpers.node.getId()).getPort();
+        String url = "http://" + TestHelpers.node.getDns() + ":" + port + "/ws/client/ji/query/stream";
+        Assert.assertEquals(200, postQuery(url, "reader"));
+        Assert.assertEquals(403, postQuery(url, "submitter"));
+    }
+
+    private int postQuery(String url, String login) throws Exception
+    {
+        CloseableHttpClient cl = HttpClients.createDefault();
+        HttpPost rq = new HttpPost(url);
+        rq.setHeader("Authorization", "Basic " + DatatypeConverter.printBase64Binary((login + ":" + login).getBytes("UTF-8")));
+        rq.setEntity(new StringEntity("<query/>", ContentType.APPLICATION_XML));
+        CloseableHttpResponse rs = cl.execute(rq);
+        int res = rs.getStatusLine().getStatusCode();
+        rs.close();
+        cl.close();
+        return res;
+    }
+
     @Test
     public void testSslServices() throws Exception
     {
@@ -18,13 +18,18 @@ package com.enioka.jqm.tools;
 import java.io.File;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.SynchronousQueue;
 
 import javax.mail.Folder;
 import javax.mail.Session;
 import javax.mail.Store;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
@@ -36,7 +41,10 @@ import com.enioka.api.admin.JndiObjectResourceDto;
 import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.Query;
+import com.enioka.jqm.model.History;
 import com.enioka.jqm.model.JobDef.PathType;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.State;
 import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
 
@@ -94,6 +102,192 @@ public class MiscTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
     }
 
+    @Test
+    public void testPayloadThreadPool() throws Exception
+    {
+        Helpers.setSingleParam("payloadThreadMode", "pool", cnx);
+        Helpers.setSingleParam("payloadThreadPoolSize", "1", cnx);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "TestJqmApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        CreationTools.createJobDef(null, true, "pyl.EngineThreadLocal", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip,
+                42, "ThreadLocal", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+
+        for (int i = 0; i < 6; i++)
+        {
+            JobRequest.create("TestJqmApplication", "TestUser").submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitFor(6, 20000, cnx);
+
+        Assert.assertEquals(6, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+
+        try
+        {
+            // Two launches one after the other, each one with the pooled thread idle: both must use it.
+            waitForIdlePooledThread();
+            int i1 = JobRequest.create("ThreadLocal", "TestUser").submit();
+            TestHelpers.waitFor(7, 10000, cnx);
+            waitForIdlePooledThread();
+            int i2 = JobRequest.create("ThreadLocal", "TestUser").submit();
+            TestHelpers.waitFor(8, 10000, cnx);
+            Assert.assertEquals(8, TestHelpers.getOkCount(cnx));
+
+            List<String> messages1 = Query.create().setJobInstanceId(i1).run().get(0).getMessages();
+            List<String> messages2 = Query.create().setJobInstanceId(i2).run().get(0).getMessages();
+            String thread1 = getMessageStartingWith(messages1, "thread ");
+            Assert.assertNotNull(thread1);
+            Assert.assertEquals(thread1, getMessageStartingWith(messages2, "thread "));
+
+            // The value set by the first launch on the reused thread must be gone.
+            Assert.assertEquals("value null", getMessageStartingWith(messages2, "value "));
+        }
+        finally
+        {
+            System.getProperties().remove("jqm.test.threadlocal");
+        }
+    }
+
+    private static String getMessageStartingWith(List<String> messages, String prefix)
+    {
+        for (String m : messages)
+        {
+            if (m.startsWith(prefix))
+            {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until the (single) pooled payload thread waits for its next job instance.
+     */
+    private void waitForIdlePooledThread()
+    {
+        long limit = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < limit)
+        {
+            for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet())
+            {
+                if (!e.getKey().getName().startsWith("payload-pool-"))
+                {
+                    continue;
+                }
+                for (StackTraceElement frame : e.getValue())
+                {
+                    if (frame.getClassName().startsWith(SynchronousQueue.class.getName()))
+                    {
+                        return;
+                    }
+                }
+            }
+            sleepms(10);
+        }
+        Assert.fail("pooled payload thread did not become idle");
+    }
+
+    @Test
+    public void testPayloadThreadPoolSaturated() throws Exception
+    {
+        Helpers.setSingleParam("payloadThreadMode", "pool", cnx);
+        Helpers.setSingleParam("payloadThreadPoolSize", "1", cnx);
+
+        // The parent keeps the only pooled thread while waiting for its child.
+        JqmSimpleTest.create(cnx, "pyl.EngineApiWaitOne").expectOk(2).run(this);
+    }
+
+    @Test
+    public void testGroupedFinalization() throws Exception
+    {
+        Helpers.setSingleParam("finalizationBatchSize", "5", cnx);
+        Helpers.setSingleParam("finalizationBatchWaitMs", "50", cnx);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "TestJqmApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+
+        for (int i = 0; i < 12; i++)
+        {
+            JobRequest.create("TestJqmApplication", "TestUser").submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitFor(12, 20000, cnx);
+
+        Assert.assertEquals(12, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(0, Query.create().setQueryLiveInstances(true).setQueryHistoryInstances(false).run().size());
+    }
+
+    @Test
+    public void testGroupedFinalizationOnStop() throws Exception
+    {
+        Helpers.setSingleParam("finalizationBatchSize", "5", cnx);
+        Helpers.setSingleParam("finalizationBatchWaitMs", "50", cnx);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiProgress", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "TestJqmApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JobRequest.create("TestJqmApplication", "TestUser").submit();
+
+        addAndStartEngine();
+        TestHelpers.waitForRunning(1, 10000, cnx);
+
+        // The job instance ends while the engine stops - its result must still be stored.
+        stopAndRemoveEngine("localhost");
+
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, Query.create().setQueryLiveInstances(true).setQueryHistoryInstances(false).run().size());
+    }
+
+    @Test
+    public void testHistoryRetention() throws Exception
+    {
+        File archiveDir = new File("./target/history_archive");
+        FileUtils.deleteDirectory(archiveDir);
+        Helpers.setSingleParam("historyRetentionDays", "5", cnx);
+        Helpers.setSingleParam("historyPurgeChunkSize", "2", cnx);
+        Helpers.setSingleParam("historyPurgePauseMs", "0", cnx);
+        Helpers.setSingleParam("historyArchiveDirectory", archiveDir.getPath(), cnx);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "TestJqmApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+
+        // Old history, ended ten days ago.
+        Calendar old = Calendar.getInstance();
+        old.add(Calendar.DAY_OF_YEAR, -10);
+        for (int i = 0; i < 5; i++)
+        {
+            int id = JobRequest.create("TestJqmApplication", "TestUser").submit();
+            JobInstance ji = JobInstance.select_id(cnx, id);
+            ji.setNode(TestHelpers.node);
+            History.create(cnx, ji, State.ENDED, old);
+            cnx.runUpdate("message_insert", id, "old message");
+            JobInstance.delete_id(cnx, id);
+            cnx.commit();
+        }
+        Assert.assertEquals(5, TestHelpers.getOkCount(cnx));
+
+        // Recent history, which must be kept.
+        JobRequest.create("TestJqmApplication", "TestUser").submit();
+        addAndStartEngine();
+        for (int i = 0; i < 100 && TestHelpers.getQueueAllCount(cnx) > 0; i++)
+        {
+            Thread.sleep(100);
+        }
+        Thread.sleep(1000);
+
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(1, (int) cnx.runSelectSingle("history_select_count_all", Integer.class));
+        Assert.assertEquals(0, (int) cnx.runSelectSingle("message_select_count_all", Integer.class));
+
+        // Only tables with purged rows are archived: no parameters nor deliverables here.
+        File[] archives = archiveDir.listFiles();
+        Arrays.sort(archives);
+        Assert.assertEquals(2, archives.length);
+        Assert.assertTrue(archives[0].getName().startsWith("history_archive_"));
+        Assert.assertEquals(6, FileUtils.readLines(archives[0]).size()); // Header + 5 rows.
+        Assert.assertTrue(archives[1].getName().startsWith("message_archive_"));
+        Assert.assertEquals(6, FileUtils.readLines(archives[1]).size());
+    }
+
     @Test
     public void testJobWithSystemExit() throws Exception
     {
@@ -272,6 +466,32 @@ public class MiscTest extends JqmBaseTest
         System.setOut(out_ini);
     }
 
+    @Test
+    public void testMultiLogContent() throws Exception
+    {
+        PrintStream out_ini = System.out;
+        PrintStream err_ini = System.err;
+
+        Helpers.setSingleParam("logFilePerLaunch", "true", cnx);
+        Helpers.setSingleParam("logFlushPeriodMs", "60000", cnx);
+        CreationTools.createJobDef(null, true, "pyl.PckMain", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "TestJqmApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        int i = JobRequest.create("TestJqmApplication", "TestUser").submit();
+        addAndStartEngine();
+        TestHelpers.waitFor(1, 20000, cnx);
+
+        // The flush period is far longer than the test: the content can only be there if the end of the job instance flushed it.
+        String fileName = StringUtils.leftPad("" + i, 10, "0") + ".stdout.log";
+        File f = new File(FilenameUtils.concat(((MultiplexPrintStream) System.out).rootLogDir, fileName));
+
+        System.setErr(err_ini);
+        System.setOut(out_ini);
+
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertTrue(f.exists());
+        Assert.assertTrue(FileUtils.readFileToString(f).contains("main function of payload"));
+    }
+
     @Test
     public void testMavenArtifact()
     {
@@ -15,6 +15,13 @@
  */
 package com.enioka.jqm.tools;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.jboss.shrinkwrap.resolver.api.NoResolvedResultException;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
 import org.jboss.shrinkwrap.resolver.api.maven.repository.MavenRemoteRepositories;
@@ -90,6 +97,57 @@ public class PackageTest extends JqmBaseTest
         JqmSimpleTest.create(cnx, "pyl.PckJBInheritance").run(this);
     }
 
+    /**
+     * Classpaths resolved from a pom are kept for the next restarts, except if they contain SNAPSHOT dependencies which may be redeployed.
+     */
+    @Test
+    public void testPersistedClasspathWithoutSnapshots() throws Exception
+    {
+        File libCache = new File("./target/tmp/libcache");
+        FileUtils.deleteDirectory(libCache);
+
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "NoDepApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiTmpDir", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "SnapshotApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JobRequest.create("NoDepApplication", "TestUser").submit();
+        JobRequest.create("SnapshotApplication", "TestUser").submit();
+
+        addAndStartEngine();
+        TestHelpers.waitFor(2, 20000, cnx);
+
+        Assert.assertEquals(2, TestHelpers.getOkCount(cnx));
+        Assert.assertTrue(isClasspathPersisted(libCache, "jqm-test-pyl-nodep"));
+        Assert.assertFalse(isClasspathPersisted(libCache, "jqm-test-pyl/"));
+    }
+
+    private boolean isClasspathPersisted(File libCache, String artifactId) throws Exception
+    {
+        File[] files = libCache.listFiles();
+        if (files == null)
+        {
+            return false;
+        }
+        for (File f : files)
+        {
+            Properties p = new Properties();
+            InputStream is = new FileInputStream(f);
+            try
+            {
+                p.load(is);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+            if (p.getProperty("jar", "").contains(artifactId))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Test(expected = NoResolvedResultException.class)
     public void testFailingDependency() throws Exception
     {
@@ -0,0 +1,64 @@
+package com.enioka.jqm.tools;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
+
+/**
+ * Tests of the wake-up of queue pollers on enqueue.
+ */
+public class QueueNotificationTest extends JqmBaseTest
+{
+    /**
+     * Databases without notifications (such as HSQLDB) must accept the whole listener cycle without failing nor spinning.
+     */
+    @Test
+    public void testNoNotificationFallback() throws Exception
+    {
+        Assume.assumeFalse(cnx.isQueueNotificationCapable());
+
+        DbConn listening = getNewDbSession();
+        listening.listenQueueNotifications();
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(listening.waitForQueueNotifications(100).isEmpty());
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+        listening.unlistenQueueNotifications();
+
+        cnx.notifyQueue(TestHelpers.qVip);
+        cnx.commit();
+    }
+
+    /**
+     * A signaled queue is polled at once, not at the end of its polling interval. This is what the notification listener does on each
+     * signal.
+     */
+    @Test
+    public void testWakeUpPollers() throws Exception
+    {
+        // Far longer than the wait below: the job instance can only start on a wake-up.
+        cnx.runUpdate("dp_update_interval_by_id", 60000, TestHelpers.dpVip.getId());
+        cnx.commit();
+        CreationTools.createJobDef(null, true, "App", null, "jqm-tests/jqm-test-datetimemaven/target/test.jar", TestHelpers.qVip, 42,
+                "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+
+        JqmEngineOperations engine = addAndStartEngine();
+        long limit = System.currentTimeMillis() + 10000;
+        while (!engine.areAllPollersPolling() && System.currentTimeMillis() < limit)
+        {
+            sleepms(10);
+        }
+        Assert.assertTrue(engine.areAllPollersPolling());
+
+        JobRequest.create("MarsuApplication", "TestUser").submit();
+        ((JqmEngine) engine).wakeUpPollers(TestHelpers.qVip);
+        TestHelpers.waitFor(1, 10000, cnx);
+
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
+}
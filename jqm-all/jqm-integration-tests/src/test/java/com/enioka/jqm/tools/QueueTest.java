@@ -330,4 +330,92 @@ public class QueueTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getQueueRunningCount(cnx));
         Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
     }
+
+    @Test
+    public void testClusterResourceManager() throws Exception
+    {
+        // Same queue on two nodes, 40 threads each, so not the limiting factor.
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 40, 1, qId);
+        DeploymentParameter.create(cnx, TestHelpers.nodeMix.getId(), 40, 1, qId);
+
+        // Enable the global cluster RM. No prefetch, so that both nodes actually share the tokens.
+        GlobalParameter.setParameter(cnx, "clusterRmName", "licences");
+        GlobalParameter.setParameter(cnx, "clusterRmQuantity", "2");
+        GlobalParameter.setParameter(cnx, "clusterRmPrefetch", "0");
+
+        Map<String, String> prms = new HashMap<String, String>(1);
+        prms.put("com.enioka.jqm.rm.cluster.consumption", "1");
+        CreationTools.createJobDef(null, true, "pyl.KillMe", prms, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42, "jqm-test-kill", null,
+                "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        JobRequest.create("jqm-test-kill", "test").setPriority(null).submit();
+        JobRequest.create("jqm-test-kill", "test").setPriority(null).submit();
+        JobRequest.create("jqm-test-kill", "test").setPriority(null).submit();
+
+        addAndStartEngine();
+        addAndStartEngine("localhost4");
+        TestHelpers.waitForRunning(2, 60000, cnx);
+        sleep(2); // Time for bugs to happen.
+
+        // Two should be running on the whole cluster, as we have two tokens
+        Assert.assertEquals(2, TestHelpers.getQueueRunningCount(cnx));
+        Assert.assertEquals(3, TestHelpers.getQueueAllCount(cnx));
+
+        // Kill one, the last JI should start after the kill (on any node)
+        int toKill = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING).run().get(0)
+                .getId();
+        JqmClientFactory.getClient().killJob(toKill);
+
+        TestHelpers.waitFor(1, 60000, cnx);
+        TestHelpers.waitForRunning(2, 60000, cnx);
+
+        Assert.assertEquals(2, TestHelpers.getQueueRunningCount(cnx));
+        Assert.assertEquals(2, TestHelpers.getQueueAllCount(cnx));
+        Assert.assertEquals(1, TestHelpers.getNonOkCount(cnx));
+
+        // Kill all to end the test.
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+
+        TestHelpers.waitFor(3, 60000, cnx);
+    }
+
+    /**
+     * Job instances needing more than half of the tokens: nodes which cannot book must give their tokens back, otherwise two nodes may
+     * each keep half of the tokens forever.
+     */
+    @Test
+    public void testClusterResourceManagerMoreThanHalfTokens() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 40, 1, qId);
+        DeploymentParameter.create(cnx, TestHelpers.nodeMix.getId(), 40, 1, qId);
+
+        // With the default prefetch of 2, each node would keep 2 of the 4 tokens.
+        GlobalParameter.setParameter(cnx, "clusterRmName", "licences");
+        GlobalParameter.setParameter(cnx, "clusterRmQuantity", "4");
+
+        Map<String, String> prms = new HashMap<String, String>(1);
+        prms.put("com.enioka.jqm.rm.cluster.consumption", "3");
+        CreationTools.createJobDef(null, true, "App", prms, "jqm-tests/jqm-test-datetimemaven/target/test.jar", qId, 42, "MarsuApplication",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 4; i++)
+        {
+            JobRequest.create("MarsuApplication", "test").submit();
+        }
+
+        addAndStartEngine();
+        addAndStartEngine("localhost4");
+        TestHelpers.waitFor(4, 60000, cnx);
+
+        Assert.assertEquals(4, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
 }
@@ -1,8 +1,15 @@
 package com.enioka.jqm.tools;
 
+import java.util.List;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.enioka.jqm.api.JobInstance;
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.api.Query;
+import com.enioka.jqm.api.State;
+import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
 
 public class RefreshTest extends JqmBaseTest
@@ -21,4 +28,66 @@ public class RefreshTest extends JqmBaseTest
         TestHelpers.waitFor(1, 5000, cnx);
         Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
     }
+
+    /**
+     * A disabled deployment parameter stops the claims at the next poll, without waiting for the engine to read its new configuration (the
+     * internal poller period is far longer than this test).
+     */
+    @Test
+    public void testDisabledDeploymentParameterStopsClaims() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "App", null, "jqm-tests/jqm-test-datetimemaven/target/test.jar", TestHelpers.qVip, 42,
+                "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JqmEngineOperations engine = addAndStartEngine();
+        waitForPollers(engine);
+
+        cnx.runUpdate("dp_update_enable_by_queue_id", false, TestHelpers.qVip);
+        cnx.commit();
+        JobRequest.create("MarsuApplication", "TestUser").submit();
+
+        // The VIP queue is polled every millisecond: this is many polls.
+        sleepms(1000);
+        List<JobInstance> res = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).run();
+        Assert.assertEquals(1, res.size());
+        Assert.assertEquals(State.SUBMITTED, res.get(0).getState());
+
+        // The poller itself was never paused, so the next poll after re-enabling claims the job instance.
+        cnx.runUpdate("dp_update_enable_by_queue_id", true, TestHelpers.qVip);
+        cnx.commit();
+        TestHelpers.waitFor(1, 10000, cnx);
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+    }
+
+    /**
+     * A change of a deployment parameter moves the stamp of the heartbeat query, and is therefore given to the poller.
+     */
+    @Test
+    public void testDeploymentParameterChangeSeenThroughHeartbeat() throws Exception
+    {
+        Helpers.setSingleParam("internalPollingPeriodMs", "100", cnx);
+        JqmEngineOperations engine = addAndStartEngine();
+        waitForPollers(engine);
+        QueuePoller poller = ((JqmEngine) engine).getPoller(TestHelpers.dpVip.getId());
+        Assert.assertEquals(40, (int) poller.getMaxConcurrentJobInstanceCount());
+
+        cnx.runUpdate("dp_update_threads_by_id", 7, TestHelpers.dpVip.getId());
+        cnx.commit();
+
+        long limit = System.currentTimeMillis() + 10000;
+        while (poller.getMaxConcurrentJobInstanceCount() != 7 && System.currentTimeMillis() < limit)
+        {
+            sleepms(10);
+        }
+        Assert.assertEquals(7, (int) poller.getMaxConcurrentJobInstanceCount());
+    }
+
+    private void waitForPollers(JqmEngineOperations engine)
+    {
+        long limit = System.currentTimeMillis() + 10000;
+        while (!engine.areAllPollersPolling() && System.currentTimeMillis() < limit)
+        {
+            sleepms(10);
+        }
+        Assert.assertTrue(engine.areAllPollersPolling());
+    }
 }
@@ -7,6 +7,8 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -29,7 +31,7 @@ public class Db
     /**
      * The version of the schema as it described in the current Maven artifact
      */
-    private static final int SCHEMA_VERSION = 2;
+    private static final int SCHEMA_VERSION = 3;
 
     /**
      * The SCHEMA_VERSION version is backward compatible until this version
@@ -46,6 +48,15 @@ public class Db
     private DbAdapter adapter = null;
     private String product;
     private Properties p = null;
+    private MetadataCache metadataCache = null;
+
+    /**
+     * The physical connections already set up by {@link #getConn()}, with their statement cache. Pools keep the session state between two
+     * checkouts, so there is no need to check everything again each time.
+     */
+    final Map<Connection, StatementCache> sessions = new IdentityHashMap<Connection, StatementCache>();
+    private int sessionsSweepSize = 16;
+    private int statementCacheSize = 0;
 
     /**
      * Connects to the database by retrieving a DataDource from JNDI (with every parameter set to default, including the JNDI alias for the
@@ -288,6 +299,13 @@ public class Db
                 }
             }
         }
+
+        // Statements are only cached once the schema is stable. Sessions opened before are simply checked again on next use.
+        synchronized (sessions)
+        {
+            sessions.clear();
+            statementCacheSize = Integer.parseInt(p.getProperty("com.enioka.jqm.jdbc.statementCacheSize", "50"));
+        }
     }
 
     private void checkSchemaVersion()
@@ -492,6 +510,8 @@ public class Db
         DbConn cnx = getConn();
         adapter.prepare(p, cnx._cnx);
         cnx.close();
+
+        metadataCache = new MetadataCache(Long.parseLong(p.getProperty("com.enioka.jqm.jdbc.metadataCacheTtlMs", "0")));
     }
 
     /**
@@ -506,18 +526,32 @@ public class Db
         {
             Thread.interrupted(); // this is VERY sad. Needed for Oracle driver which otherwise fails spectacularly.
             cnx = _ds.getConnection();
+            Connection physical = physicalConnection(cnx);
+            StatementCache statements;
+            synchronized (sessions)
+            {
+                statements = sessions.get(physical);
+            }
+
+            // Auto commit is a driver-side flag, no round trip. It is only true on a new connection or if someone has reset it.
             if (cnx.getAutoCommit())
             {
                 cnx.setAutoCommit(false);
                 cnx.rollback(); // To ensure no open transaction created by the pool before changing TX mode
+                statements = null;
             }
 
-            if (cnx.getTransactionIsolation() != Connection.TRANSACTION_READ_COMMITTED)
+            if (statements == null)
             {
-                cnx.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                // Only done on new (or reset) sessions - some drivers ask the database for the isolation level.
+                if (cnx.getTransactionIsolation() != Connection.TRANSACTION_READ_COMMITTED)
+                {
+                    cnx.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                }
+                statements = registerSession(physical);
             }
 
-            return new DbConn(this, cnx);
+            return new DbConn(this, cnx, statements);
         }
         catch (SQLException e)
         {
@@ -526,6 +560,79 @@ public class Db
         }
     }
 
+    /**
+     * The connection given by the pool is usually a proxy, different on each checkout. Session state is attached to what is behind it.
+     */
+    private Connection physicalConnection(Connection cnx)
+    {
+        try
+        {
+            Connection res = cnx.unwrap(Connection.class);
+            return res != null ? res : cnx;
+        }
+        catch (Exception e)
+        {
+            return cnx;
+        }
+        catch (AbstractMethodError e)
+        {
+            // Pre-JDBC 4 pool.
+            return cnx;
+        }
+    }
+
+    private StatementCache registerSession(Connection physical)
+    {
+        synchronized (sessions)
+        {
+            StatementCache res = sessions.get(physical);
+            if (res != null)
+            {
+                return res;
+            }
+
+            // Connections discarded by the pool are never signaled, so forget the closed ones from time to time.
+            if (sessions.size() >= sessionsSweepSize)
+            {
+                forgetClosedSessions();
+                sessionsSweepSize = Math.max(16, sessions.size() * 2);
+            }
+
+            res = new StatementCache(statementCacheSize);
+            sessions.put(physical, res);
+            return res;
+        }
+    }
+
+    /**
+     * Removes the physical connections which have been closed (by the pool) from the known sessions, and closes their statements.
+     */
+    void forgetClosedSessions()
+    {
+        synchronized (sessions)
+        {
+            Iterator<Map.Entry<Connection, StatementCache>> it = sessions.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<Connection, StatementCache> e = it.next();
+                boolean closed;
+                try
+                {
+                    closed = e.getKey().isClosed();
+                }
+                catch (SQLException ex)
+                {
+                    closed = true;
+                }
+                if (closed)
+                {
+                    e.getValue().clear();
+                    it.remove();
+                }
+            }
+        }
+    }
+
     /**
      * Gets the interpolated text of a query from cache. If key does not exist, an exception is thrown.
      *
@@ -553,6 +660,14 @@ public class Db
         return this.product;
     }
 
+    /**
+     * The cache of the configuration data needed on each enqueue (job definitions, queues...).
+     */
+    public MetadataCache getMetadataCache()
+    {
+        return this.metadataCache;
+    }
+
     /**
      * Close utility method.
      *
@@ -122,12 +122,14 @@ public abstract class DbAdapter
     /**
      * Databases all have different issues when settings null parameters.
      *
+     * @param q
+     *                     the query being prepared. Its key (if any) can be used to cache query-specific metadata.
      * @param position
      *                     in the statement (sql parameters).
      * @param s
      *                     statement being built.
      */
-    public abstract void setNullParameter(int position, PreparedStatement s) throws SQLException;
+    public abstract void setNullParameter(QueryPreparation q, int position, PreparedStatement s) throws SQLException;
 
     /**
      * Adds pagination elements to a query.
@@ -155,12 +157,113 @@ public abstract class DbAdapter
      *                     a session without active TX.
      * @param queue
      *                     the queue being polled
+     * @param deploymentParameterId
+     *                     the ID of the deployment parameter binding the queue to the polling node. Nothing is returned if it is
+     *                     disabled.
      * @param headSize
      *                     upper estimate of how many slots are available - i.e. max JI which can be taken from the queue.
      * @return a list of JI, or an empty list. Never null.
      */
-    public List<JobInstance> poll(DbConn cnx, Queue queue, int headSize)
+    public List<JobInstance> poll(DbConn cnx, Queue queue, int deploymentParameterId, int headSize)
+    {
+        return JobInstance.select(cnx, "ji_select_poll", queue.getId(), deploymentParameterId);
+    }
+
+    /**
+     * True if the {@link #poll(DbConn, Queue, int, int)} method locks the rows it returns inside the current transaction, skipping rows already
+     * locked by other sessions. In that case, the returned job instances cannot be taken by another node until the transaction ends, so
+     * they can all be claimed in a single UPDATE.<br>
+     * Default is false.
+     *
+     * @return true if polling locks rows.
+     */
+    public boolean isPollLocking()
+    {
+        return false;
+    }
+
+    /**
+     * Signals to the engines polling the given queue that new job instances may be waiting. The signal is only sent if the current
+     * transaction is committed. Default implementation does nothing - engines simply wait for their next poll.<br>
+     * Only called when the global parameter <code>enableQueueNotify</code> is true, as each call has a cost on the database.
+     *
+     * @param cnx
+     *                    the session inside which the job instances were created.
+     * @param queueId
+     *                    ID of the queue.
+     */
+    public void notifyQueue(DbConn cnx, int queueId)
+    {
+        // Nothing by default.
+    }
+
+    /**
+     * True if this database can send the signals of {@link #notifyQueue(DbConn, int)} to listeners. Default is false.
+     *
+     * @return true if {@link #listenQueueNotifications(Connection)} and {@link #waitForQueueNotifications(Connection, int)} are
+     *         implemented.
+     */
+    public boolean isQueueNotificationCapable()
+    {
+        return false;
+    }
+
+    /**
+     * Subscribes the given connection to queue signals. The connection should then be dedicated to waiting for signals. Does nothing by
+     * default.
+     *
+     * @param cnx
+     *                a connection without any active transaction.
+     */
+    public void listenQueueNotifications(Connection cnx)
+    {
+        // Nothing by default.
+    }
+
+    /**
+     * Reverts {@link #listenQueueNotifications(Connection)}. Must be called before the connection is given back to its pool. Does nothing
+     * by default.
+     *
+     * @param cnx
+     *                a listening connection.
+     */
+    public void unlistenQueueNotifications(Connection cnx)
+    {
+        // Nothing by default.
+    }
+
+    /**
+     * Waits for queue signals on a connection on which {@link #listenQueueNotifications(Connection)} was called. By default, no signal can
+     * ever come: this simply waits for the timeout (so that a caller looping on it does not spin) and returns an empty list.
+     *
+     * @param cnx
+     *                      a listening connection.
+     * @param timeoutMs
+     *                      maximum time to wait for a signal.
+     * @return the IDs of the signaled queues. Empty if none before timeout. Never null.
+     */
+    public List<Integer> waitForQueueNotifications(Connection cnx, int timeoutMs)
+    {
+        try
+        {
+            Thread.sleep(timeoutMs);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return new ArrayList<Integer>();
+    }
+
+    /**
+     * Helper for adapters which may use locking polls. The feature can be disabled with a bootstrap parameter.
+     *
+     * @param p
+     *              the bootstrap parameters.
+     * @return false if locking polls were explicitly disabled.
+     */
+    protected boolean isPollLockingAllowed(Properties p)
     {
-        return JobInstance.select(cnx, "ji_select_poll", queue.getId());
+        return Boolean.parseBoolean(p.getProperty("com.enioka.jqm.jdbc.skipLockedPolling", "true"));
     }
 }
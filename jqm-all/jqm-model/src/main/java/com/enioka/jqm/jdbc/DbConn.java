@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -39,12 +40,20 @@ public class DbConn implements Closeable
     Connection _cnx;
     private boolean transac_open = false;
     private boolean rollbackOnly = false;
+    private boolean metadataModified = false;
     private List<Statement> toClose = new ArrayList<Statement>();
+    private StatementCache statements;
+    /**
+     * Cached statements currently used by an open result set. Indexed by the result set itself: pools may wrap statements, so that
+     * ResultSet.getStatement() is not the statement which was prepared.
+     */
+    private Map<ResultSet, StatementCache.CachedStatement> lent = new IdentityHashMap<ResultSet, StatementCache.CachedStatement>();
 
-    DbConn(Db parent, Connection cnx)
+    DbConn(Db parent, Connection cnx, StatementCache statements)
     {
         this.parent = parent;
         this._cnx = cnx;
+        this.statements = statements;
     }
 
     public void commit()
@@ -57,6 +66,7 @@ public class DbConn implements Closeable
         {
             _cnx.commit();
             transac_open = false;
+            metadataTransactionEnded();
         }
         catch (SQLException e)
         {
@@ -71,6 +81,7 @@ public class DbConn implements Closeable
             _cnx.rollback();
             transac_open = false;
             rollbackOnly = false;
+            metadataTransactionEnded();
         }
         catch (SQLException e)
         {
@@ -78,6 +89,28 @@ public class DbConn implements Closeable
         }
     }
 
+    /**
+     * Configuration caches are invalidated both when the modification is done (for this session to see its own changes) and when it is
+     * committed or rolled back (for other sessions, which may have reloaded the old values in-between).
+     */
+    private void metadataUpdate(String query_key)
+    {
+        if (MetadataCache.isMetadataQuery(query_key))
+        {
+            metadataModified = true;
+            MetadataCache.metadataChanged();
+        }
+    }
+
+    private void metadataTransactionEnded()
+    {
+        if (metadataModified)
+        {
+            metadataModified = false;
+            MetadataCache.metadataChanged();
+        }
+    }
+
     public void setRollbackOnly()
     {
         rollbackOnly = true;
@@ -98,12 +131,15 @@ public class DbConn implements Closeable
     public QueryResult runUpdate(String query_key, Object... params)
     {
         transac_open = true;
-        PreparedStatement ps = null;
+        metadataUpdate(query_key);
+        StatementCache.CachedStatement cs = null;
+        boolean reusable = false;
         QueryPreparation qp = adapterPreparation(query_key, false, params);
         ResultSet gen = null;
         try
         {
-            ps = prepare(qp);
+            cs = prepareCached(qp);
+            PreparedStatement ps = cs.ps;
             QueryResult qr = new QueryResult();
             qr.nbUpdated = ps.executeUpdate();
             qr.generatedKey = qp.preGeneratedKey;
@@ -122,6 +158,7 @@ public class DbConn implements Closeable
             }
 
             jqmlogger.debug("Updated rows: {}", qr.nbUpdated);
+            reusable = true;
             return qr;
         }
         catch (SQLException e)
@@ -131,7 +168,66 @@ public class DbConn implements Closeable
         finally
         {
             DbHelper.closeQuietly(gen);
-            DbHelper.closeQuietly(ps);
+            release(cs, reusable);
+        }
+    }
+
+    /**
+     * Runs the same update query for many parameter sets inside a single JDBC batch. Generated keys are not retrieved, so this is best used
+     * for INSERT orders whose new IDs are not needed.
+     *
+     * @param query_key
+     *                      the key of the query to run.
+     * @param paramSets
+     *                      one parameter array per execution of the query. Can be empty.
+     * @return the update counts, as returned by the driver.
+     */
+    public int[] runBatchUpdate(String query_key, List<Object[]> paramSets)
+    {
+        transac_open = true;
+        metadataUpdate(query_key);
+        StatementCache.CachedStatement cs = null;
+        PreparedStatement ps = null;
+        boolean reusable = false;
+        String sql = null;
+        try
+        {
+            for (Object[] params : paramSets)
+            {
+                QueryPreparation qp = adapterPreparation(query_key, false, params);
+                if (ps == null)
+                {
+                    cs = prepareCached(qp);
+                    ps = cs.ps;
+                    sql = qp.sqlText;
+                }
+                else
+                {
+                    if (!sql.equals(qp.sqlText))
+                    {
+                        throw new DatabaseException("query " + query_key + " cannot be batched as its text depends on its parameters");
+                    }
+                    addParameters(qp, ps);
+                }
+                ps.addBatch();
+            }
+
+            if (ps == null)
+            {
+                return new int[0];
+            }
+            int[] res = ps.executeBatch();
+            jqmlogger.debug("Batch of {} updates done", res.length);
+            reusable = true;
+            return res;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(sql, e);
+        }
+        finally
+        {
+            release(cs, reusable);
         }
     }
 
@@ -162,11 +258,36 @@ public class DbConn implements Closeable
     }
 
     public ResultSet runRawSelect(String rawQuery, Object... params)
+    {
+        return runAdaptedSelect(this.parent.getAdapter().adaptSql(rawQuery), 0, params);
+    }
+
+    /**
+     * Same as {@link #runRawSelect(String, Object...)}, but asks the driver to fetch rows from the database by groups of fetchSize while
+     * the result set is read, instead of loading all rows at once (when the driver supports it).
+     */
+    public ResultSet runRawSelect(int fetchSize, String rawQuery, Object... params)
+    {
+        return runAdaptedSelect(this.parent.getAdapter().adaptSql(rawQuery), fetchSize, params);
+    }
+
+    /**
+     * Same as {@link #runSelect(String, Object...)}, but only returns the rows from start (0-based, included) to stopBefore (excluded) -
+     * the pagination is done by the database.
+     */
+    public ResultSet runSelectPage(String query_key, int start, int stopBefore, Object... params)
+    {
+        List<Object> prms = new ArrayList<Object>(Arrays.asList(params));
+        String sql = paginateQuery(this.parent.getQuery(query_key), start, stopBefore, prms);
+        return runAdaptedSelect(sql, 0, prms.toArray());
+    }
+
+    private ResultSet runAdaptedSelect(String sql, int fetchSize, Object... params)
     {
         PreparedStatement ps = null;
         QueryPreparation q = new QueryPreparation();
         q.parameters = new ArrayList<Object>(Arrays.asList(params));
-        q.sqlText = this.parent.getAdapter().adaptSql(rawQuery);
+        q.sqlText = sql;
         this.parent.getAdapter().beforeUpdate(_cnx, q);
 
         try
@@ -186,11 +307,11 @@ public class DbConn implements Closeable
 
             ps = _cnx.prepareStatement(q.sqlText, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
             toClose.add(ps);
-            int i = 0;
-            for (Object prm : q.parameters)
+            if (fetchSize > 0)
             {
-                addParameter(prm, ++i, ps);
+                ps.setFetchSize(fetchSize);
             }
+            addParameters(q, ps);
 
             return ps.executeQuery();
         }
@@ -211,25 +332,61 @@ public class DbConn implements Closeable
 
     public ResultSet runSelect(boolean for_update, String query_key, Object... params)
     {
-        PreparedStatement ps = null;
+        StatementCache.CachedStatement cs = null;
         QueryPreparation qp = adapterPreparation(query_key, for_update, params);
         try
         {
-            ps = prepare(qp);
-            toClose.add(ps);
+            cs = prepareCached(qp);
             if (for_update)
             {
                 transac_open = true;
             }
-            return ps.executeQuery();
+            ResultSet rs = cs.ps.executeQuery();
+
+            // The statement goes back to the cache when the result set is closed through this object, or with the connection.
+            cs.resultSet = rs;
+            lent.put(rs, cs);
+            return rs;
         }
         catch (SQLException e)
         {
+            release(cs, false);
             throw new DatabaseException(qp.sqlText, e);
         }
-        finally
+    }
+
+    /**
+     * Runs a query which locks the rows it returns. The locking clause is inside the SQL text itself, as it is very different between
+     * databases. Locks are held until {@link #commit()} or {@link #rollback()}.
+     *
+     * @param maxRows
+     *                      the maximum number of rows to fetch. Some databases only lock rows when they are actually fetched, so this is not
+     *                      only an optimization.
+     * @param query_key
+     *                      the query to run.
+     * @param params
+     *                      the query parameters.
+     * @return an open result set. It is closed with the connection.
+     */
+    public ResultSet runSelectLocking(int maxRows, String query_key, Object... params)
+    {
+        PreparedStatement ps = null;
+        QueryPreparation qp = adapterPreparation(query_key, false, params);
+        try
+        {
+            ps = prepare(qp);
+            toClose.add(ps);
+            transac_open = true;
+            ps.setMaxRows(maxRows);
+            if (maxRows <= 1000)
+            {
+                ps.setFetchSize(maxRows);
+            }
+            return ps.executeQuery();
+        }
+        catch (SQLException e)
         {
-            // closeQuietly(ps);
+            throw new DatabaseException(qp.sqlText, e);
         }
     }
 
@@ -317,6 +474,10 @@ public class DbConn implements Closeable
                 {
                     res = (T) (Float) rs.getFloat(column);
                 }
+                else if (clazz.equals(Double.class))
+                {
+                    res = (T) (Double) rs.getDouble(column);
+                }
                 else
                 {
                     throw new DatabaseException("unsupported single query return type " + clazz.getCanonicalName());
@@ -384,6 +545,10 @@ public class DbConn implements Closeable
                 {
                     res = (T) (Float) rs.getFloat(column);
                 }
+                else if (clazz.equals(Double.class))
+                {
+                    res = (T) (Double) rs.getDouble(column);
+                }
                 else
                 {
                     throw new DatabaseException("unsupported single query return type " + clazz.getCanonicalName());
@@ -418,8 +583,14 @@ public class DbConn implements Closeable
             {
                 // Ignore.
             }
+            metadataTransactionEnded();
         }
 
+        for (StatementCache.CachedStatement cs : lent.values())
+        {
+            giveBack(cs);
+        }
+        lent.clear();
         for (Statement s : toClose)
         {
             DbHelper.closeQuietly(s);
@@ -445,11 +616,19 @@ public class DbConn implements Closeable
      * Close utility method.
      *
      * @param ps
-     *               statement to close through a result set.
+     *               statement to close through a result set. If the statement is cached, it is kept open for the next query.
      */
     public void closeQuietly(ResultSet ps)
     {
-        DbHelper.closeQuietly(ps);
+        StatementCache.CachedStatement cs = ps == null ? null : lent.remove(ps);
+        if (cs != null)
+        {
+            giveBack(cs);
+        }
+        else
+        {
+            DbHelper.closeQuietly(ps);
+        }
     }
 
     /**
@@ -503,23 +682,98 @@ public class DbConn implements Closeable
         }
 
         // Add parameters
-        int i = 0;
-        for (Object prm : q.parameters)
+        try
+        {
+            addParameters(q, ps);
+        }
+        catch (RuntimeException e)
         {
-            addParameter(prm, ++i, ps);
+            DbHelper.closeQuietly(ps);
+            throw e;
         }
 
         return ps;
     }
 
-    private void addParameter(Object value, int position, PreparedStatement s)
+    /**
+     * Same as {@link #prepare(QueryPreparation)}, but the statement is taken from the statement cache of the connection when possible. It
+     * must be given back with {@link #release(StatementCache.CachedStatement, boolean)}.
+     */
+    private StatementCache.CachedStatement prepareCached(QueryPreparation q)
+    {
+        StatementCache.CachedStatement res = null;
+        if (statements != null && q.queryKey != null)
+        {
+            res = statements.take(q);
+        }
+        if (res == null)
+        {
+            return new StatementCache.CachedStatement(q, prepare(q));
+        }
+
+        jqmlogger.debug("Running {} : {} with {} parameters (cached statement).", q.queryKey, q.sqlText, q.parameters.size());
+        try
+        {
+            addParameters(q, res.ps);
+        }
+        catch (RuntimeException e)
+        {
+            DbHelper.closeQuietly(res.ps);
+            throw e;
+        }
+        return res;
+    }
+
+    /**
+     * Puts back a statement in the cache, or closes it if it should not be reused (after an error...).
+     */
+    private void release(StatementCache.CachedStatement cs, boolean reusable)
+    {
+        if (cs == null)
+        {
+            return;
+        }
+        if (reusable && statements != null)
+        {
+            statements.release(cs);
+        }
+        else
+        {
+            DbHelper.closeQuietly(cs.ps);
+        }
+    }
+
+    private void giveBack(StatementCache.CachedStatement cs)
+    {
+        boolean reusable = true;
+        try
+        {
+            cs.resultSet.close();
+        }
+        catch (SQLException e)
+        {
+            reusable = false;
+        }
+        cs.resultSet = null;
+        release(cs, reusable);
+    }
+
+    private void addParameters(QueryPreparation q, PreparedStatement ps)
+    {
+        int i = 0;
+        for (Object prm : q.parameters)
+        {
+            addParameter(q, prm, ++i, ps);
+        }
+    }
+
+    private void addParameter(QueryPreparation q, Object value, int position, PreparedStatement s)
     {
-        // TODO: cache meta call and use setObject.
         try
         {
             if (value == null)
             {
-                parent.getAdapter().setNullParameter(position, s);
+                parent.getAdapter().setNullParameter(q, position, s);
             }
             else if (Integer.class == value.getClass())
                 s.setInt(position, (Integer) value);
@@ -604,8 +858,56 @@ public class DbConn implements Closeable
         }
     }
 
-    public List<JobInstance> poll(Queue queue, int nbSlots)
+    public List<JobInstance> poll(Queue queue, int deploymentParameterId, int nbSlots)
+    {
+        return this.parent.getAdapter().poll(this, queue, deploymentParameterId, nbSlots);
+    }
+
+    /**
+     * See {@link DbAdapter#isPollLocking()}.
+     */
+    public boolean isPollLocking()
+    {
+        return this.parent.getAdapter().isPollLocking();
+    }
+
+    /**
+     * See {@link DbAdapter#notifyQueue(DbConn, int)}.
+     */
+    public void notifyQueue(int queueId)
+    {
+        this.parent.getAdapter().notifyQueue(this, queueId);
+    }
+
+    /**
+     * See {@link DbAdapter#isQueueNotificationCapable()}.
+     */
+    public boolean isQueueNotificationCapable()
+    {
+        return this.parent.getAdapter().isQueueNotificationCapable();
+    }
+
+    /**
+     * See {@link DbAdapter#listenQueueNotifications(Connection)}.
+     */
+    public void listenQueueNotifications()
+    {
+        this.parent.getAdapter().listenQueueNotifications(_cnx);
+    }
+
+    /**
+     * See {@link DbAdapter#unlistenQueueNotifications(Connection)}.
+     */
+    public void unlistenQueueNotifications()
+    {
+        this.parent.getAdapter().unlistenQueueNotifications(_cnx);
+    }
+
+    /**
+     * See {@link DbAdapter#waitForQueueNotifications(Connection, int)}.
+     */
+    public List<Integer> waitForQueueNotifications(int timeoutMs)
     {
-        return this.parent.getAdapter().poll(this, queue, nbSlots);
+        return this.parent.getAdapter().waitForQueueNotifications(_cnx, timeoutMs);
     }
 }
@@ -49,6 +49,16 @@ class DbImplBase
         queries.put("node_select_by_key", queries.get("node_select_all") + " WHERE NAME=?");
         queries.put("node_select_by_id", queries.get("node_select_all") + " WHERE ID=?");
         queries.put("node_select_connectdata_by_key", "SELECT DNS, PORT FROM __T__NODE WHERE NAME=?");
+        queries.put("node_select_heartbeat_by_id", "SELECT ID, REPO_DELIVERABLE, DNS, ENABLED, JMX_REGISTRY_PORT, JMX_SERVER_PORT, "
+                + "LOAD_API_ADMIN, LOAD_API_CLIENT, LOAD_API_SIMPLE, NAME, PORT, REPO_JOB_DEF, ROOT_LOG_LEVEL, STOP, REPO_TMP, LAST_SEEN_ALIVE, "
+                + "(SELECT COUNT(1) FROM __T__QUEUE_NODE_MAPPING dp WHERE dp.NODE=n.ID), "
+                + "(SELECT SUM(dp.ID) FROM __T__QUEUE_NODE_MAPPING dp WHERE dp.NODE=n.ID), "
+                + "(SELECT MAX(dp.LAST_MODIFIED) FROM __T__QUEUE_NODE_MAPPING dp WHERE dp.NODE=n.ID), "
+                + "(SELECT gp.VALUE FROM __T__GLOBAL_PARAMETER gp WHERE gp.KEYNAME='strictPollingPeriod'), "
+                + "(SELECT MAX(r.LAST_MODIFIED) FROM __T__JNDI_OBJECT_RESOURCE r), "
+                + "(SELECT MAX(p.LAST_MODIFIED) FROM __T__JNDI_OR_PARAMETER p), "
+                + "(SELECT COUNT(1) FROM __T__JOB_INSTANCE ji WHERE ji.NODE=n.ID AND ji.STATUS='RUNNING' AND ji.INSTRUCTION <> 'RUN') "
+                + "FROM __T__NODE n WHERE n.ID=?");
         
         // QUEUE
         queries.put("q_insert", "INSERT INTO __T__QUEUE(ID, DEFAULT_QUEUE, DESCRIPTION, NAME) VALUES(JQM_PK.nextval, ?, ?, ?)");
@@ -70,9 +80,9 @@ class DbImplBase
         queries.put("dp_delete_for_node", "DELETE FROM __T__QUEUE_NODE_MAPPING WHERE NODE=?");
         queries.put("dp_delete_for_queue", "DELETE FROM __T__QUEUE_NODE_MAPPING WHERE QUEUE=?");
         queries.put("dp_delete_by_id", "DELETE FROM __T__QUEUE_NODE_MAPPING WHERE ID=?");
-        queries.put("dp_update_interval_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET POLLING_INTERVAL=? WHERE ID=?");
-        queries.put("dp_update_enable_by_queue_id", "UPDATE __T__QUEUE_NODE_MAPPING SET ENABLED=? WHERE QUEUE=?");
-        queries.put("dp_update_threads_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET MAX_THREAD=? WHERE ID=?");
+        queries.put("dp_update_interval_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET POLLING_INTERVAL=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("dp_update_enable_by_queue_id", "UPDATE __T__QUEUE_NODE_MAPPING SET ENABLED=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE QUEUE=?");
+        queries.put("dp_update_threads_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET MAX_THREAD=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
         queries.put("dp_update_changed_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET ENABLED=?, LAST_MODIFIED=CURRENT_TIMESTAMP, MAX_THREAD=?, POLLING_INTERVAL=?, NODE=?, QUEUE=? WHERE ID=? AND NOT "
                 + "(ENABLED=? AND MAX_THREAD=? AND POLLING_INTERVAL=? AND NODE=? AND QUEUE=?)");
         queries.put("dp_select_by_id", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE FROM __T__QUEUE_NODE_MAPPING WHERE ID=?");
@@ -187,12 +197,14 @@ class DbImplBase
         queries.put("jj_update_run_by_id", "UPDATE __T__JOB_INSTANCE SET DATE_START=CURRENT_TIMESTAMP, STATUS='RUNNING' WHERE ID=? AND (STATUS='ATTRIBUTED' OR STATUS='RUNNING')");
         queries.put("debug_jj_update_node_by_id", "UPDATE __T__JOB_INSTANCE SET NODE=? WHERE ID=?");
         queries.put("debug_jj_update_status_by_id", "UPDATE __T__JOB_INSTANCE SET STATUS=? WHERE ID=?");
-        queries.put("ji_select_current_pos", "SELECT COUNT(ji) FROM __T__JOB_INSTANCE ji WHERE ji.INTERNAL_POSITION < ? AND ji.status = 'SUBMITTED' AND QUEUE=?");
+        queries.put("ji_select_current_pos", "SELECT COUNT(1) FROM __T__JOB_INSTANCE ji WHERE ji.INTERNAL_POSITION < ? AND ji.status = 'SUBMITTED' AND QUEUE=?");
         queries.put("ji_select_count_all", "SELECT COUNT(1) FROM __T__JOB_INSTANCE");
         queries.put("ji_select_count_running", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE STATUS='RUNNING'");
         queries.put("ji_select_count_by_jd", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE JOBDEF=?");
         queries.put("ji_select_count_by_node", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE NODE=?");
         queries.put("ji_select_count_by_queue", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE QUEUE=?");
+        queries.put("ji_select_id_by_id_list", "SELECT ID FROM __T__JOB_INSTANCE WHERE ID IN(UNNEST(?))");
+        queries.put("ji_select_parent_by_parent_list", "SELECT DISTINCT PARENT FROM __T__JOB_INSTANCE WHERE PARENT IN(UNNEST(?))");
         queries.put("ji_select_all", "SELECT ji.ID, ji.DATE_ATTRIBUTION, ji.DATE_ENQUEUE, ji.EMAIL, ji.DATE_START, ji.APPLICATION, ji.KEYWORD1, ji.KEYWORD2, "
                 + "ji.KEYWORD3, ji.MODULE, ji.INTERNAL_POSITION, ji.PARENT, ji.PROGRESS, ji.SESSION_KEY, ji.STATUS, ji.USERNAME, ji.JOBDEF, ji.NODE, ji.QUEUE, ji.HIGHLANDER, ji.FROM_SCHEDULE, ji.PRIORITY, ji.INSTRUCTION, ji.DATE_NOT_BEFORE, "
                 + "q.ID AS Q_ID, q.DEFAULT_QUEUE, q.DESCRIPTION AS Q_DESCRIPTION, q.NAME AS Q_NAME, "
@@ -208,7 +220,17 @@ class DbImplBase
         queries.put("ji_select_by_node", queries.get("ji_select_all") + " WHERE ji.NODE=?");
         queries.put("ji_select_existing_highlander", "SELECT ID FROM __T__JOB_INSTANCE WHERE JOBDEF=? AND STATUS='SUBMITTED'");
         queries.put("ji_select_existing_highlander_2", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE JOBDEF=? AND STATUS IN('ATTRIBUTED', 'RUNNING')");
+
+        // HIGHLANDER CLAIMS (not named jd_ on purpose, as they are not metadata changes)
+        queries.put("highlander_update_claim", "UPDATE __T__JOB_DEFINITION SET HIGHLANDER_JI=? WHERE ID=? AND HIGHLANDER_JI IS NULL");
+        queries.put("highlander_update_takeover", "UPDATE __T__JOB_DEFINITION SET HIGHLANDER_JI=? WHERE ID=? AND HIGHLANDER_JI=?");
+        queries.put("highlander_update_release", "UPDATE __T__JOB_DEFINITION SET HIGHLANDER_JI=NULL WHERE ID=? AND HIGHLANDER_JI=?");
+        queries.put("highlander_select_claim", "SELECT jd.HIGHLANDER_JI, (SELECT COUNT(1) FROM __T__JOB_INSTANCE ji WHERE ji.ID=jd.HIGHLANDER_JI "
+                + "AND ji.STATUS IN('ATTRIBUTED', 'RUNNING')) FROM __T__JOB_DEFINITION jd WHERE jd.ID=?");
         queries.put("ji_select_changequeuepos_by_id", "SELECT QUEUE, INTERNAL_POSITION FROM __T__JOB_INSTANCE WHERE ID=? AND STATUS='SUBMITTED'");
+        queries.put("ji_select_waiting_positions_by_queue", "SELECT INTERNAL_POSITION FROM __T__JOB_INSTANCE WHERE QUEUE=? AND STATUS='SUBMITTED' ORDER BY INTERNAL_POSITION");
+        queries.put("ji_select_waiting_ids_by_queue", "SELECT ID FROM __T__JOB_INSTANCE WHERE QUEUE=? AND STATUS='SUBMITTED' ORDER BY INTERNAL_POSITION");
+        queries.put("ji_select_waiting_max_position_by_queue", "SELECT MAX(INTERNAL_POSITION) FROM __T__JOB_INSTANCE WHERE QUEUE=? AND STATUS='SUBMITTED'");
         queries.put("ji_select_instruction_by_id", "SELECT INSTRUCTION FROM __T__JOB_INSTANCE WHERE ID=?");
         queries.put("ji_select_priority_by_id", "SELECT PRIORITY FROM __T__JOB_INSTANCE WHERE ID=?");
         queries.put("ji_select_execution_date_by_id", "SELECT DATE_START FROM __T__JOB_INSTANCE WHERE ID=?");
@@ -216,8 +238,10 @@ class DbImplBase
         queries.put("ji_select_instructions_by_node", "SELECT ji.ID, ji.INSTRUCTION FROM __T__JOB_INSTANCE ji WHERE ji.STATUS='RUNNING' AND ji.INSTRUCTION <> 'RUN' AND ji.NODE=?");
         
         queries.put("ji_update_delayed", "UPDATE __T__JOB_INSTANCE SET STATUS='SUBMITTED' WHERE STATUS='SCHEDULED' AND DATE_NOT_BEFORE <= CURRENT_TIMESTAMP");
-        queries.put("ji_select_poll",queries.get("ji_select_all") + " WHERE ji.QUEUE = ? AND ji.STATUS='SUBMITTED' ORDER BY ji.PRIORITY DESC, ji.INTERNAL_POSITION");
+        queries.put("ji_select_poll",queries.get("ji_select_all") + " WHERE ji.QUEUE = ? AND ji.STATUS='SUBMITTED' "
+                + "AND EXISTS (SELECT 1 FROM __T__QUEUE_NODE_MAPPING dp WHERE dp.ID = ? AND dp.ENABLED = true) ORDER BY ji.PRIORITY DESC, ji.INTERNAL_POSITION");
         queries.put("ji_update_status_by_id", "UPDATE __T__JOB_INSTANCE SET STATUS='ATTRIBUTED', NODE=? WHERE STATUS='SUBMITTED' AND ID=?");
+        queries.put("ji_update_status_by_id_list", "UPDATE __T__JOB_INSTANCE SET STATUS='ATTRIBUTED', NODE=? WHERE STATUS='SUBMITTED' AND ID IN(UNNEST(?))");
         
         // HISTORY
         queries.put("history_insert_with_end_date", "INSERT INTO __T__HISTORY(ID, JD_APPLICATION, JD_KEY, DATE_ATTRIBUTION, EMAIL, "
@@ -238,19 +262,25 @@ class DbImplBase
         queries.put("history_select_reenqueue_by_id", "SELECT JD_APPLICATION, JD_KEY, EMAIL, INSTANCE_KEYWORD1, INSTANCE_KEYWORD2, INSTANCE_KEYWORD3, INSTANCE_MODULE, PARENT, SESSION_KEY, USERNAME, STATUS FROM __T__HISTORY WHERE ID=?");
         queries.put("history_select_cnx_data_by_id", "SELECT DNS||':'||PORT AS HOST FROM __T__HISTORY h LEFT JOIN __T__NODE n ON h.NODE = n.ID WHERE h.ID=?");
         queries.put("history_select_state_by_id", "SELECT STATUS FROM __T__HISTORY WHERE ID=?");
+        queries.put("history_select_ids_for_retention", "SELECT ID FROM __T__HISTORY WHERE DATE_END < ?");
+        queries.put("history_select_all_by_id_list", "SELECT * FROM __T__HISTORY WHERE ID IN(UNNEST(?))");
+        queries.put("history_delete_by_id_list", "DELETE FROM __T__HISTORY WHERE ID IN(UNNEST(?))");
         
         // DELIVERABLE
         queries.put("deliverable_insert",  "INSERT INTO __T__DELIVERABLE(ID, FILE_FAMILY, PATH, JOB_INSTANCE, ORIGINAL_FILE_NAME, RANDOM_ID) VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?)");
         queries.put("deliverable_delete_all", "DELETE FROM __T__DELIVERABLE");
+        queries.put("deliverable_delete_by_ji_list", queries.get("deliverable_delete_all") + " WHERE JOB_INSTANCE IN(UNNEST(?))");
         queries.put("deliverable_select_all",  "SELECT ID, FILE_FAMILY, PATH, JOB_INSTANCE, ORIGINAL_FILE_NAME, RANDOM_ID FROM __T__DELIVERABLE");
         queries.put("deliverable_select_by_id", queries.get("deliverable_select_all") +  " WHERE ID=?");
         queries.put("deliverable_select_by_randomid", queries.get("deliverable_select_all") +  " WHERE RANDOM_ID=?");
         queries.put("deliverable_select_all_for_ji", queries.get("deliverable_select_all") +  " WHERE JOB_INSTANCE=?");
+        queries.put("deliverable_select_by_ji_list", queries.get("deliverable_select_all") +  " WHERE JOB_INSTANCE IN(UNNEST(?))");
         
         // RUNTIME PRM
         queries.put("jiprm_insert", "INSERT INTO __T__JOB_INSTANCE_PARAMETER(ID, JOB_INSTANCE, KEYNAME, VALUE) VALUES(JQM_PK.nextval, ?, ?, ?)");
         queries.put("jiprm_delete_all", "DELETE FROM __T__JOB_INSTANCE_PARAMETER ");
         queries.put("jiprm_delete_by_ji",queries.get("jiprm_delete_all") + " WHERE JOB_INSTANCE=?");
+        queries.put("jiprm_delete_by_ji_list",queries.get("jiprm_delete_all") + " WHERE JOB_INSTANCE IN(UNNEST(?))");
         queries.put("jiprm_select_by_ji", "SELECT ID, JOB_INSTANCE, KEYNAME, VALUE FROM __T__JOB_INSTANCE_PARAMETER WHERE JOB_INSTANCE=?");
         queries.put("jiprm_select_by_ji_list", "SELECT ID, JOB_INSTANCE, KEYNAME, VALUE FROM __T__JOB_INSTANCE_PARAMETER WHERE JOB_INSTANCE IN(UNNEST(?))");
         
@@ -258,6 +288,7 @@ class DbImplBase
         queries.put("message_insert",  "INSERT INTO __T__MESSAGE(ID, JOB_INSTANCE, TEXT_MESSAGE) VALUES(JQM_PK.nextval, ?, ?)");
         queries.put("message_delete_all", "DELETE FROM __T__MESSAGE");
         queries.put("message_delete_by_ji",queries.get("message_delete_all") + " WHERE JOB_INSTANCE=?");
+        queries.put("message_delete_by_ji_list",queries.get("message_delete_all") + " WHERE JOB_INSTANCE IN(UNNEST(?))");
         queries.put("message_select_all", "SELECT ID, JOB_INSTANCE, TEXT_MESSAGE FROM __T__MESSAGE");
         queries.put("message_select_by_ji_list", queries.get("message_select_all") + " WHERE JOB_INSTANCE IN(UNNEST(?))");
         queries.put("message_select_count_all", "SELECT COUNT(1) FROM __T__MESSAGE");
@@ -338,6 +369,19 @@ class DbImplBase
         // WITNESS
         queries.put("w_insert", "INSERT INTO __T__WITNESS(ID, KEYNAME, NODE, LATEST_CONTACT) VALUES(JQM_PK.nextval, 'SCHEDULER', ?, CURRENT_TIMESTAMP)");
         queries.put("w_update_take", "UPDATE __T__WITNESS SET NODE=?, LATEST_CONTACT=CURRENT_TIMESTAMP WHERE KEYNAME='SCHEDULER' AND (LATEST_CONTACT IS NULL OR NODE IS NULL OR NODE=? OR (NODE<>? AND LATEST_CONTACT < (CURRENT_TIMESTAMP - ? SECOND)))");
+        queries.put("w_insert_retention", queries.get("w_insert").replace("'SCHEDULER'", "'RETENTION'"));
+        queries.put("w_update_take_retention", queries.get("w_update_take").replace("KEYNAME='SCHEDULER'", "KEYNAME='RETENTION'"));
+
+        // CLUSTER RESOURCE MANAGER TOKENS
+        queries.put("rmt_insert", "INSERT INTO __T__RM_TOKEN(ID, RM_KEY, TOKEN_NAME, NODE, LATEST_CONTACT) VALUES(JQM_PK.nextval, ?, ?, NULL, NULL)");
+        queries.put("rmt_delete_by_id", "DELETE FROM __T__RM_TOKEN WHERE ID=? AND (NODE IS NULL OR NODE=?)");
+        queries.put("rmt_select_by_key", "SELECT ID, TOKEN_NAME, NODE FROM __T__RM_TOKEN WHERE RM_KEY=? ORDER BY ID");
+        queries.put("rmt_select_free", "SELECT ID, TOKEN_NAME FROM __T__RM_TOKEN WHERE RM_KEY=? AND (NODE IS NULL OR LATEST_CONTACT IS NULL OR LATEST_CONTACT < (CURRENT_TIMESTAMP - ? SECOND)) ORDER BY ID");
+        queries.put("rmt_select_id_by_node", "SELECT ID FROM __T__RM_TOKEN WHERE RM_KEY=? AND NODE=?");
+        queries.put("rmt_update_take", "UPDATE __T__RM_TOKEN SET NODE=?, LATEST_CONTACT=CURRENT_TIMESTAMP WHERE ID=? AND (NODE IS NULL OR LATEST_CONTACT IS NULL OR LATEST_CONTACT < (CURRENT_TIMESTAMP - ? SECOND))");
+        queries.put("rmt_update_renew", "UPDATE __T__RM_TOKEN SET LATEST_CONTACT=CURRENT_TIMESTAMP WHERE RM_KEY=? AND NODE=?");
+        queries.put("rmt_update_release_node", "UPDATE __T__RM_TOKEN SET NODE=NULL, LATEST_CONTACT=NULL WHERE RM_KEY=? AND NODE=?");
+        queries.put("rmt_update_release_by_id_list", "UPDATE __T__RM_TOKEN SET NODE=NULL, LATEST_CONTACT=NULL WHERE NODE=? AND ID IN(UNNEST(?))");
     }
    
 }
@@ -100,7 +100,7 @@ public class DbImplDb2 extends DbAdapter
     }
 
     @Override
-    public void setNullParameter(int position, PreparedStatement s) throws SQLException
+    public void setNullParameter(QueryPreparation q, int position, PreparedStatement s) throws SQLException
     {
         // Absolutely stupid: set to null regardless of type.
         s.setObject(position, null);
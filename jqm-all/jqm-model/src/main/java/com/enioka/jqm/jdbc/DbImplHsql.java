@@ -35,7 +35,7 @@ public class DbImplHsql extends DbAdapter
     }
 
     @Override
-    public void setNullParameter(int position, PreparedStatement s) throws SQLException
+    public void setNullParameter(QueryPreparation q, int position, PreparedStatement s) throws SQLException
     {
         // Absolutely stupid: set to null regardless of type.
         s.setObject(position, null);
@@ -52,8 +52,8 @@ public class DbImplHsql extends DbAdapter
     }
 
     @Override
-    public List<JobInstance> poll(DbConn cnx, Queue queue, int headSize)
+    public List<JobInstance> poll(DbConn cnx, Queue queue, int deploymentParameterId, int headSize)
     {
-        return JobInstance.select(cnx, "ji_select_poll", queue.getId(), headSize);
+        return JobInstance.select(cnx, "ji_select_poll", queue.getId(), deploymentParameterId, headSize);
     }
 }
@@ -17,6 +17,7 @@ import com.enioka.jqm.model.Queue;
 public class DbImplMySql extends DbAdapter
 {
     private String sequenceSql, sequenceSqlRetrieval;
+    private boolean skipLockedPolling = false;
 
     @Override
     public void prepare(Properties p, Connection cnx)
@@ -24,8 +25,21 @@ public class DbImplMySql extends DbAdapter
         super.prepare(p, cnx);
 
         // We do NOT want to use paginateQuery on each poll query as we want polling to be as painless as possible, so we pre-paginate it.
+        queries.put("ji_select_poll_lock", queries.get("ji_select_poll") + " LIMIT ? FOR UPDATE OF ji SKIP LOCKED");
         queries.put("ji_select_poll", queries.get("ji_select_poll") + " LIMIT ?");
 
+        // SKIP LOCKED and FOR UPDATE OF only exist in MySQL 8. MariaDB has no FOR UPDATE OF.
+        try
+        {
+            DatabaseMetaData meta = cnx.getMetaData();
+            skipLockedPolling = isPollLockingAllowed(p) && meta.getDatabaseProductName().contains("MySQL")
+                    && meta.getDatabaseMajorVersion() >= 8;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException("could not read database version", e);
+        }
+
         sequenceSqlRetrieval = adaptSql("SELECT next FROM __T__JQM_SEQUENCE WHERE name = ?");
         sequenceSql = adaptSql("UPDATE __T__JQM_SEQUENCE SET next = next + 1 WHERE name = ?");
     }
@@ -153,7 +167,7 @@ public class DbImplMySql extends DbAdapter
     }
 
     @Override
-    public void setNullParameter(int position, PreparedStatement s) throws SQLException
+    public void setNullParameter(QueryPreparation q, int position, PreparedStatement s) throws SQLException
     {
         // Absolutely stupid: set to null regardless of type.
         s.setObject(position, null);
@@ -170,8 +184,18 @@ public class DbImplMySql extends DbAdapter
     }
 
     @Override
-    public List<JobInstance> poll(DbConn cnx, Queue queue, int headSize)
+    public List<JobInstance> poll(DbConn cnx, Queue queue, int deploymentParameterId, int headSize)
+    {
+        if (skipLockedPolling)
+        {
+            return JobInstance.selectLocking(cnx, headSize, "ji_select_poll_lock", queue.getId(), deploymentParameterId, headSize);
+        }
+        return JobInstance.select(cnx, "ji_select_poll", queue.getId(), deploymentParameterId, headSize);
+    }
+
+    @Override
+    public boolean isPollLocking()
     {
-        return JobInstance.select(cnx, "ji_select_poll", queue.getId(), headSize);
+        return skipLockedPolling;
     }
 }
@@ -13,6 +13,8 @@ import com.enioka.jqm.model.Queue;
 
 public class DbImplOracle extends DbAdapter
 {
+    private boolean skipLockedPolling = false;
+
     @Override
     public boolean compatibleWith(DatabaseMetaData product) throws SQLException
     {
@@ -28,11 +30,22 @@ public class DbImplOracle extends DbAdapter
         System.setProperty("oracle.jdbc.Trace", "false");
 
         // See poll method for everything which is wrong with Oracle and queues.
+        queries.put("ji_select_poll_lock", queries.get("ji_select_poll") + " FOR UPDATE OF ji.ID SKIP LOCKED");
         queries.put("ji_select_poll",
                 String.format("SELECT /*+ FIRST_ROWS */ a.* FROM (%s) a WHERE ROWNUM < ?", queries.get("ji_select_poll")));
 
         // Sad: Oracle needs this inside the SQL text in addition to standard JDBC flags...
         queries.put("jd_select_by_id_lock", queries.get("jd_select_by_id_lock") + " FOR UPDATE");
+
+        // SKIP LOCKED is documented since 11g.
+        try
+        {
+            skipLockedPolling = isPollLockingAllowed(p) && cnx.getMetaData().getDatabaseMajorVersion() >= 11;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException("could not read database version", e);
+        }
     }
 
     @Override
@@ -105,7 +118,7 @@ public class DbImplOracle extends DbAdapter
     }
 
     @Override
-    public void setNullParameter(int position, PreparedStatement s) throws SQLException
+    public void setNullParameter(QueryPreparation q, int position, PreparedStatement s) throws SQLException
     {
         // Absolutely stupid: set to null regardless of type.
         s.setObject(position, null);
@@ -125,10 +138,22 @@ public class DbImplOracle extends DbAdapter
     // We may want to evaluate that framework one day. For now, we actually cannot use a message broker since we use many filters like
     // the Highlander filter. So it will have to wait for a new H handling mode.
     // There is no - to our knowledge - way of polling a table in a single UPDATE on this db.
+    // Since 11g, we can however use SKIP LOCKED. It cannot be combined with ROWNUM, but Oracle only locks rows when they are fetched - so
+    // limiting the number of fetched rows is enough to only lock the head of the queue.
+
+    @Override
+    public List<JobInstance> poll(DbConn cnx, Queue queue, int deploymentParameterId, int headSize)
+    {
+        if (skipLockedPolling)
+        {
+            return JobInstance.selectLocking(cnx, headSize, "ji_select_poll_lock", queue.getId(), deploymentParameterId);
+        }
+        return JobInstance.select(cnx, "ji_select_poll", queue.getId(), deploymentParameterId, headSize);
+    }
 
     @Override
-    public List<JobInstance> poll(DbConn cnx, Queue queue, int headSize)
+    public boolean isPollLocking()
     {
-        return JobInstance.select(cnx, "ji_select_poll", queue.getId(), headSize);
+        return skipLockedPolling;
     }
 }
@@ -1,17 +1,66 @@
 package com.enioka.jqm.jdbc;
 
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.ParameterMetaData;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.Queue;
 
 public class DbImplPg extends DbAdapter
 {
+    private boolean skipLockedPolling = false;
+    private String notificationChannel = null;
+    private Class<?> pgConnectionClass = null;
+    private Method getNotifications = null;
+    private Method getNotificationParameter = null;
+
+    /**
+     * The SQL types of the parameters of each query, needed to bind null values. Asking them to the driver may need a round trip to the
+     * server, so it is done only once per query key.
+     */
+    private final ConcurrentMap<String, int[]> parameterTypes = new ConcurrentHashMap<String, int[]>();
+
     public DbImplPg()
     {
         this.IDS[0] = "id";
     }
 
+    @Override
+    public void prepare(Properties p, Connection cnx)
+    {
+        super.prepare(p, cnx);
+        parameterTypes.clear();
+
+        // SKIP LOCKED exists since 9.5. Only the JOB_INSTANCE rows are locked, not the joined tables.
+        queries.put("ji_select_poll_lock", queries.get("ji_select_poll") + " LIMIT ? FOR UPDATE OF ji SKIP LOCKED");
+
+        // LISTEN/NOTIFY. The channel is prefixed like the tables, as different JQM clusters may share a database.
+        queries.put("q_notify", "SELECT pg_notify(?, ?)");
+        notificationChannel = this.tablePrefix + "jqm_queue";
+        try
+        {
+            DatabaseMetaData meta = cnx.getMetaData();
+            skipLockedPolling = isPollLockingAllowed(p) && (meta.getDatabaseMajorVersion() > 9
+                    || (meta.getDatabaseMajorVersion() == 9 && meta.getDatabaseMinorVersion() >= 5));
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException("could not read database version", e);
+        }
+    }
+
     @Override
     public String adaptSql(String sql)
     {
@@ -29,9 +78,30 @@ public class DbImplPg extends DbAdapter
     }
 
     @Override
-    public void setNullParameter(int position, PreparedStatement s) throws SQLException
+    public void setNullParameter(QueryPreparation q, int position, PreparedStatement s) throws SQLException
     {
-        s.setNull(position, s.getParameterMetaData().getParameterType(position));
+        int[] types = q.queryKey == null ? null : parameterTypes.get(q.queryKey);
+        if (types == null)
+        {
+            ParameterMetaData meta = s.getParameterMetaData();
+            types = new int[meta.getParameterCount()];
+            for (int i = 0; i < types.length; i++)
+            {
+                types[i] = meta.getParameterType(i + 1);
+            }
+            if (q.queryKey != null)
+            {
+                parameterTypes.put(q.queryKey, types);
+            }
+        }
+
+        if (position > types.length)
+        {
+            // Should not happen - query text does not depend on parameters on this database.
+            s.setNull(position, s.getParameterMetaData().getParameterType(position));
+            return;
+        }
+        s.setNull(position, types[position - 1]);
     }
 
     @Override
@@ -43,4 +113,148 @@ public class DbImplPg extends DbAdapter
         prms.add(start);
         return sql;
     }
+
+    @Override
+    public List<JobInstance> poll(DbConn cnx, Queue queue, int deploymentParameterId, int headSize)
+    {
+        if (skipLockedPolling)
+        {
+            return JobInstance.selectLocking(cnx, headSize, "ji_select_poll_lock", queue.getId(), deploymentParameterId, headSize);
+        }
+        return super.poll(cnx, queue, deploymentParameterId, headSize);
+    }
+
+    @Override
+    public boolean isPollLocking()
+    {
+        return skipLockedPolling;
+    }
+
+    @Override
+    public void notifyQueue(DbConn cnx, int queueId)
+    {
+        cnx.closeQuietly(cnx.runSelect("q_notify", notificationChannel, "" + queueId));
+    }
+
+    @Override
+    public boolean isQueueNotificationCapable()
+    {
+        return true;
+    }
+
+    @Override
+    public void listenQueueNotifications(Connection cnx)
+    {
+        // Fail at once if the notifications cannot be read on this connection, not on the first wait.
+        try
+        {
+            unwrapPg(cnx);
+        }
+        catch (Exception e)
+        {
+            throw new DatabaseException("queue notifications need a connection from the PostgreSQL JDBC driver", e);
+        }
+        runOnChannel(cnx, "LISTEN");
+    }
+
+    @Override
+    public void unlistenQueueNotifications(Connection cnx)
+    {
+        runOnChannel(cnx, "UNLISTEN");
+    }
+
+    private void runOnChannel(Connection cnx, String order)
+    {
+        Statement s = null;
+        try
+        {
+            s = cnx.createStatement();
+            s.execute(order + " \"" + notificationChannel + "\"");
+            cnx.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException("could not " + order + " on channel " + notificationChannel, e);
+        }
+        finally
+        {
+            if (s != null)
+            {
+                try
+                {
+                    s.close();
+                }
+                catch (SQLException e)
+                {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<Integer> waitForQueueNotifications(Connection cnx, int timeoutMs)
+    {
+        List<Integer> res = new ArrayList<Integer>();
+        Object notifications;
+        try
+        {
+            Object pgCnx = unwrapPg(cnx);
+            if (getNotifications == null)
+            {
+                getNotifications = pgConnectionClass.getMethod("getNotifications", int.class);
+                getNotificationParameter = Class.forName("org.postgresql.PGNotification", false, pgConnectionClass.getClassLoader())
+                        .getMethod("getParameter");
+            }
+            notifications = getNotifications.invoke(pgCnx, timeoutMs);
+
+            for (int i = 0; notifications != null && i < Array.getLength(notifications); i++)
+            {
+                String prm = (String) getNotificationParameter.invoke(Array.get(notifications, i));
+                try
+                {
+                    res.add(Integer.parseInt(prm));
+                }
+                catch (NumberFormatException e)
+                {
+                    // Not a JQM notification - ignore it.
+                }
+            }
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new DatabaseException("the PostgreSQL JDBC driver is too old for queue notifications - 42.2 or later is needed", e);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw new DatabaseException("could not wait for queue notifications",
+                    e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+        catch (Exception e)
+        {
+            throw new DatabaseException("could not wait for queue notifications", e);
+        }
+        return res;
+    }
+
+    /**
+     * The PG driver is not a dependency of JQM, so its specific API is used through reflection. The connection is usually a proxy from a
+     * pool, so the actual driver connection is obtained through the standard JDBC unwrapping.
+     */
+    private Object unwrapPg(Connection cnx) throws SQLException, ClassNotFoundException
+    {
+        if (pgConnectionClass == null)
+        {
+            ClassLoader cl = cnx.getClass().getClassLoader();
+            try
+            {
+                pgConnectionClass = Class.forName("org.postgresql.PGConnection", false, cl);
+            }
+            catch (ClassNotFoundException e)
+            {
+                pgConnectionClass = Class.forName("org.postgresql.PGConnection", false, Thread.currentThread().getContextClassLoader());
+            }
+        }
+        return cnx.unwrap(pgConnectionClass);
+    }
 }
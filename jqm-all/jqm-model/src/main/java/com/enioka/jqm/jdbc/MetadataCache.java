@@ -0,0 +1,210 @@
+package com.enioka.jqm.jdbc;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.enioka.jqm.model.JobDef;
+import com.enioka.jqm.model.JobDefParameter;
+import com.enioka.jqm.model.ScheduledJob;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * A cache for the configuration rows which are read on each enqueue (job definitions and their parameters, queues, schedules). There is
+ * one cache per {@link Db}.<br>
+ * <br>
+ * The cache is entirely dropped:
+ * <ul>
+ * <li>when a configuration table is modified through any {@link DbConn} of the current JVM (both on update and on commit)</li>
+ * <li>after a given time (bootstrap parameter com.enioka.jqm.jdbc.metadataCacheTtlMs), which is the maximum delay before changes done by
+ * other processes are seen. A TTL of 0 (the default) disables the cache.</li>
+ * </ul>
+ * Returned objects are shared and must not be modified.
+ */
+public class MetadataCache
+{
+    private static final String[] METADATA_QUERY_PREFIXES = new String[] { "jd_", "jdprm_", "q_", "sj_", "sjprm_" };
+
+    /**
+     * Incremented each time metadata is modified inside this JVM.
+     */
+    private static AtomicLong localVersion = new AtomicLong(0);
+
+    private final long ttlMs;
+
+    private volatile long cacheVersion = -1;
+    private volatile long cacheLoadedAt = 0;
+
+    private Map<String, JobDef> jobDefByKey = new ConcurrentHashMap<String, JobDef>();
+    private Map<Integer, Map<String, String>> jobDefParameters = new ConcurrentHashMap<Integer, Map<String, String>>();
+    private Map<String, Integer> queueIdByName = new ConcurrentHashMap<String, Integer>();
+    private Map<Integer, ScheduledJob> scheduleById = new ConcurrentHashMap<Integer, ScheduledJob>();
+
+    MetadataCache(long ttlMs)
+    {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * True if the given query modifies a table cached here.
+     */
+    static boolean isMetadataQuery(String queryKey)
+    {
+        for (String prefix : METADATA_QUERY_PREFIXES)
+        {
+            if (queryKey.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Signals that cached tables were modified. Invalidates all caches inside this JVM.
+     */
+    static void metadataChanged()
+    {
+        localVersion.incrementAndGet();
+    }
+
+    /**
+     * Drops the cache if it is outdated.
+     *
+     * @return the version under which values loaded from now on can be cached.
+     */
+    private long checkValidity()
+    {
+        long version = localVersion.get();
+        long now = System.currentTimeMillis();
+        if (version != cacheVersion || now - cacheLoadedAt > ttlMs)
+        {
+            synchronized (this)
+            {
+                if (version != cacheVersion || now - cacheLoadedAt > ttlMs)
+                {
+                    jobDefByKey.clear();
+                    jobDefParameters.clear();
+                    queueIdByName.clear();
+                    scheduleById.clear();
+                    cacheLoadedAt = now;
+                    cacheVersion = version;
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * A value loaded from the database is only cached if no modification happened during its load.
+     */
+    private <K, V> void cache(Map<K, V> map, K key, V value, long version)
+    {
+        if (version == localVersion.get())
+        {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * Same as {@link JobDef#select_key(DbConn, String)}.
+     */
+    public JobDef getJobDef(DbConn cnx, String key)
+    {
+        if (ttlMs <= 0)
+        {
+            return JobDef.select_key(cnx, key);
+        }
+
+        long version = checkValidity();
+        JobDef res = jobDefByKey.get(key);
+        if (res == null)
+        {
+            res = JobDef.select_key(cnx, key);
+            cache(jobDefByKey, key, res, version);
+        }
+        return res;
+    }
+
+    /**
+     * The parameters of a job definition.
+     *
+     * @return a new map, which can be modified by the caller.
+     */
+    public Map<String, String> getJobDefParameters(DbConn cnx, int jobDefId)
+    {
+        if (ttlMs <= 0)
+        {
+            return JobDefParameter.select_map(cnx, "jdprm_select_all_for_jd", jobDefId);
+        }
+
+        long version = checkValidity();
+        Map<String, String> res = jobDefParameters.get(jobDefId);
+        if (res == null)
+        {
+            res = JobDefParameter.select_map(cnx, "jdprm_select_all_for_jd", jobDefId);
+            cache(jobDefParameters, jobDefId, res, version);
+        }
+        return new HashMap<String, String>(res);
+    }
+
+    /**
+     * The ID of a queue.
+     *
+     * @throws NoResultException
+     *                               if there is no queue with this name.
+     */
+    public Integer getQueueId(DbConn cnx, String queueName)
+    {
+        if (ttlMs <= 0)
+        {
+            return cnx.runSelectSingle("q_select_by_key", 1, Integer.class, queueName);
+        }
+
+        long version = checkValidity();
+        Integer res = queueIdByName.get(queueName);
+        if (res == null)
+        {
+            res = cnx.runSelectSingle("q_select_by_key", 1, Integer.class, queueName);
+            cache(queueIdByName, queueName, res, version);
+        }
+        return res;
+    }
+
+    /**
+     * A schedule, with its parameters.
+     *
+     * @return null if the schedule does not exist.
+     */
+    public ScheduledJob getScheduledJob(DbConn cnx, int scheduleId)
+    {
+        if (ttlMs <= 0)
+        {
+            return selectScheduledJob(cnx, scheduleId);
+        }
+
+        long version = checkValidity();
+        ScheduledJob res = scheduleById.get(scheduleId);
+        if (res == null)
+        {
+            res = selectScheduledJob(cnx, scheduleId);
+            if (res != null)
+            {
+                cache(scheduleById, scheduleId, res, version);
+            }
+        }
+        return res;
+    }
+
+    private static ScheduledJob selectScheduledJob(DbConn cnx, int scheduleId)
+    {
+        List<ScheduledJob> sjj = ScheduledJob.select(cnx, "sj_select_by_id", scheduleId);
+        if (sjj.size() > 1)
+        {
+            throw new NonUniqueResultException("Inconsistent metadata: multiple schedules with ID " + scheduleId);
+        }
+        return sjj.isEmpty() ? null : sjj.get(0);
+    }
+}
@@ -0,0 +1,123 @@
+package com.enioka.jqm.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * The prepared statements kept open on a physical connection between two checkouts from the pool, keyed on the query keys of the
+ * {@link DbAdapter}. Reusing a statement avoids a parse (and on most drivers a network round trip) on each query, and allows drivers to use
+ * server-side prepared statements (PostgreSQL does so after a few executions of the same statement).<br>
+ * <br>
+ * There is one cache per physical connection, which is only used by one {@link DbConn} at a time - this class is therefore not thread
+ * safe. A statement is removed from the cache while in use, so the same query can be run twice at the same time inside a session (the
+ * second run simply uses a new statement). The least recently used statements are closed when there are more than the given size
+ * (bootstrap parameter com.enioka.jqm.jdbc.statementCacheSize).
+ */
+class StatementCache
+{
+    private final Map<String, CachedStatement> statements;
+
+    /**
+     * A statement with what is needed to check it is the right one for a query.
+     */
+    static class CachedStatement
+    {
+        private final String queryKey;
+        private final String sqlText;
+        private final boolean forUpdate;
+        final PreparedStatement ps;
+
+        /**
+         * The result set of the last run, while the statement is used by a {@link DbConn}.
+         */
+        ResultSet resultSet;
+
+        CachedStatement(QueryPreparation q, PreparedStatement ps)
+        {
+            this.queryKey = q.queryKey;
+            this.sqlText = q.sqlText;
+            this.forUpdate = q.forUpdate;
+            this.ps = ps;
+        }
+
+        private boolean matches(QueryPreparation q)
+        {
+            return forUpdate == q.forUpdate && sqlText.equals(q.sqlText);
+        }
+    }
+
+    StatementCache(final int size)
+    {
+        this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest)
+            {
+                if (size() > size)
+                {
+                    DbHelper.closeQuietly(eldest.getValue().ps);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Takes a statement out of the cache.
+     *
+     * @return an open statement for this query, or null if none is available.
+     */
+    CachedStatement take(QueryPreparation q)
+    {
+        CachedStatement res = statements.remove(q.queryKey);
+        if (res == null)
+        {
+            return null;
+        }
+        try
+        {
+            // Query text may depend on parameters, and the pool may have closed the statement (when validating the connection...)
+            if (res.matches(q) && !res.ps.isClosed())
+            {
+                return res;
+            }
+        }
+        catch (SQLException e)
+        {
+            // Not usable - just create another one.
+        }
+        DbHelper.closeQuietly(res.ps);
+        return null;
+    }
+
+    /**
+     * Puts back a statement in the cache after use. Its result sets must be closed.
+     */
+    void release(CachedStatement s)
+    {
+        CachedStatement previous = statements.put(s.queryKey, s);
+        if (previous != null && previous.ps != s.ps)
+        {
+            DbHelper.closeQuietly(previous.ps);
+        }
+    }
+
+    /**
+     * Closes all cached statements.
+     */
+    void clear()
+    {
+        for (CachedStatement s : statements.values())
+        {
+            DbHelper.closeQuietly(s.ps);
+        }
+        statements.clear();
+    }
+}
@@ -470,6 +470,32 @@ public class JobInstance implements Serializable
         }
     }
 
+    /**
+     * Same as {@link #loadPrmCache(DbConn)} for many job instances at once, with as few queries as possible.
+     *
+     * @param instances
+     *                      the job instances to load. Can be empty.
+     */
+    public static void loadPrmCache(DbConn cnx, List<JobInstance> instances)
+    {
+        if (instances.isEmpty())
+        {
+            return;
+        }
+
+        List<Integer> ids = new ArrayList<Integer>(instances.size());
+        for (JobInstance ji : instances)
+        {
+            ids.add(ji.id);
+        }
+
+        Map<Integer, Map<String, String>> prms = RuntimeParameter.select_map_by_ji_list(cnx, ids);
+        for (JobInstance ji : instances)
+        {
+            ji.prmCache = new HashMap<String, String>(prms.get(ji.id));
+        }
+    }
+
     public void addEnvVar(String key, String value)
     {
         if (envVarCache == null)
@@ -485,12 +511,24 @@ public class JobInstance implements Serializable
     }
 
     public static List<JobInstance> select(DbConn cnx, String query_key, Object... args)
+    {
+        return map(cnx, cnx.runSelect(query_key, args));
+    }
+
+    /**
+     * Same as {@link #select(DbConn, String, Object...)} for queries locking the rows they return. See
+     * {@link DbConn#runSelectLocking(int, String, Object...)}.
+     */
+    public static List<JobInstance> selectLocking(DbConn cnx, int maxRows, String query_key, Object... args)
+    {
+        return map(cnx, cnx.runSelectLocking(maxRows, query_key, args));
+    }
+
+    private static List<JobInstance> map(DbConn cnx, ResultSet rs)
     {
         List<JobInstance> res = new ArrayList<JobInstance>();
-        ResultSet rs = null;
         try
         {
-            rs = cnx.runSelect(query_key, args);
             while (rs.next())
             {
                 JobInstance tmp = new JobInstance();
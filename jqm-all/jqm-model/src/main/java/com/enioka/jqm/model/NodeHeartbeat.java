@@ -0,0 +1,121 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.model;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Calendar;
+
+import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * Everything an engine needs to check at each loop of its internal poller, fetched with a single query: the {@link Node} itself, stamps
+ * allowing to know if its {@link DeploymentParameter}s or the JNDI resources have changed since the previous loop, the polling related
+ * {@link GlobalParameter}s and the number of job instances waiting for an {@link Instruction}.
+ */
+public class NodeHeartbeat
+{
+    private Node node;
+    private String deploymentStamp;
+    private boolean strictPollingPeriod;
+    private Calendar jndiLastModified;
+    private int pendingInstructionCount;
+
+    /**
+     * The node itself.
+     */
+    public Node getNode()
+    {
+        return node;
+    }
+
+    /**
+     * An opaque value which changes when a {@link DeploymentParameter} of the node is created, modified or removed.
+     */
+    public String getDeploymentStamp()
+    {
+        return deploymentStamp;
+    }
+
+    /**
+     * Value of the <code>strictPollingPeriod</code> global parameter.
+     */
+    public boolean isStrictPollingPeriod()
+    {
+        return strictPollingPeriod;
+    }
+
+    /**
+     * The latest modification date of all JNDI resources and their parameters. May be null.
+     */
+    public Calendar getJndiLastModified()
+    {
+        return jndiLastModified;
+    }
+
+    /**
+     * Count of the job instances running on the node which have a pending {@link Instruction}.
+     */
+    public int getPendingInstructionCount()
+    {
+        return pendingInstructionCount;
+    }
+
+    /**
+     * @return the heartbeat, or null if the node does not exist anymore.
+     */
+    public static NodeHeartbeat select(DbConn cnx, int nodeId)
+    {
+        ResultSet rs = null;
+        try
+        {
+            rs = cnx.runSelect("node_select_heartbeat_by_id", nodeId);
+            if (!rs.next())
+            {
+                return null;
+            }
+
+            NodeHeartbeat res = new NodeHeartbeat();
+            res.node = Node.map(cnx, rs, 0);
+
+            Calendar dpLastModified = cnx.getCal(rs, 19);
+            res.deploymentStamp = rs.getLong(17) + "/" + rs.getLong(18) + "/"
+                    + (dpLastModified == null ? "" : dpLastModified.getTimeInMillis());
+            res.strictPollingPeriod = Boolean.parseBoolean(rs.getString(20));
+
+            Calendar jndiLastModified = cnx.getCal(rs, 21);
+            Calendar jndiPrmLastModified = cnx.getCal(rs, 22);
+            if (jndiLastModified == null || (jndiPrmLastModified != null && jndiPrmLastModified.after(jndiLastModified)))
+            {
+                jndiLastModified = jndiPrmLastModified;
+            }
+            res.jndiLastModified = jndiLastModified;
+
+            res.pendingInstructionCount = rs.getInt(23);
+            return res;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.enioka.jqm.jdbc.DatabaseException;
@@ -37,6 +38,11 @@ public class RuntimeParameter implements Serializable
 {
     private static final long serialVersionUID = -8894511645365690426L;
 
+    /**
+     * Max number of elements inside an IN clause (500 is accepted by all supported databases).
+     */
+    private static final int IN_CLAUSE_LIMIT = 500;
+
     private Integer id;
     private String key;
     private String value;
@@ -129,6 +135,45 @@ public class RuntimeParameter implements Serializable
         return res;
     }
 
+    /**
+     * Fetches the parameters of many job instances at once. Queries are done in batches of {@link #IN_CLAUSE_LIMIT} job instances.
+     *
+     * @param jobInstanceIds
+     *                           the IDs of the job instances. Can be empty.
+     * @return a map with job instance IDs as keys. Job instances without parameters have an empty map.
+     */
+    public static Map<Integer, Map<String, String>> select_map_by_ji_list(DbConn cnx, List<Integer> jobInstanceIds)
+    {
+        Map<Integer, Map<String, String>> res = new HashMap<Integer, Map<String, String>>(jobInstanceIds.size());
+        for (Integer id : jobInstanceIds)
+        {
+            res.put(id, new HashMap<String, String>());
+        }
+
+        for (int start = 0; start < jobInstanceIds.size(); start += IN_CLAUSE_LIMIT)
+        {
+            List<Integer> batch = jobInstanceIds.subList(start, Math.min(start + IN_CLAUSE_LIMIT, jobInstanceIds.size()));
+            ResultSet rs = null;
+            try
+            {
+                rs = cnx.runSelect("jiprm_select_by_ji_list", batch);
+                while (rs.next())
+                {
+                    res.get(rs.getInt(2)).put(rs.getString(3), rs.getString(4));
+                }
+            }
+            catch (SQLException e)
+            {
+                throw new DatabaseException(e);
+            }
+            finally
+            {
+                cnx.closeQuietly(rs);
+            }
+        }
+        return res;
+    }
+
     public static void create(DbConn cnx, int jobInstanceId, String keyName, String value)
     {
         cnx.runUpdate("jiprm_insert", jobInstanceId, keyName, value);
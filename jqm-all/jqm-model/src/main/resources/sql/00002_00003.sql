@@ -0,0 +1,23 @@
+CREATE INDEX IDX_JOB_INSTANCE_6 ON __T__JOB_INSTANCE(QUEUE, STATUS, PRIORITY, INTERNAL_POSITION);
+CREATE INDEX IDX_HISTORY_1 ON __T__HISTORY(DATE_END);
+CREATE INDEX IDX_HISTORY_2 ON __T__HISTORY(QUEUE, NODE, DATE_END);
+CREATE INDEX IDX_HISTORY_3 ON __T__HISTORY(DATE_ENQUEUE);
+CREATE INDEX IDX_HISTORY_4 ON __T__HISTORY(DATE_START);
+CREATE INDEX IDX_HISTORY_5 ON __T__HISTORY(STATUS, ID);
+CREATE INDEX IDX_HISTORY_6 ON __T__HISTORY(JD_KEY, ID);
+CREATE INDEX IDX_HISTORY_7 ON __T__HISTORY(USERNAME, ID);
+CREATE INDEX IDX_HISTORY_8 ON __T__HISTORY(PARENT);
+CREATE INDEX IDX_HISTORY_9 ON __T__HISTORY(INSTANCE_KEYWORD1);
+ALTER TABLE __T__JOB_DEFINITION ADD HIGHLANDER_JI INTEGER NULL;
+
+CREATE MEMORY TABLE __T__RM_TOKEN
+(
+	ID INTEGER NOT NULL,
+	RM_KEY VARCHAR(100) NOT NULL,
+	TOKEN_NAME VARCHAR(100) NOT NULL,
+	NODE INTEGER NULL,
+	LATEST_CONTACT TIMESTAMP NULL,
+
+	CONSTRAINT PK_RM_TOKEN PRIMARY KEY(ID),
+	CONSTRAINT UK_RM_TOKEN_1 UNIQUE(RM_KEY, TOKEN_NAME)
+);
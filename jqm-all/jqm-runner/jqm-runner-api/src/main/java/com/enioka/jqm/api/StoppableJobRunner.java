@@ -0,0 +1,13 @@
+package com.enioka.jqm.api;
+
+/**
+ * Optional interface for the {@link JobRunner} instances which hold resources (background threads, caches...) that must be freed when the
+ * engine stops. Runners not implementing it are simply left alone.
+ */
+public interface StoppableJobRunner extends JobRunner
+{
+    /**
+     * Called when the engine stops, after all job instances have ended.
+     */
+    public void stop();
+}
@@ -16,6 +16,7 @@ import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.Cl;
 import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.JobDef;
+import com.enioka.jqm.model.JobDef.PathType;
 import com.enioka.jqm.model.JobInstance;
 
 import org.apache.commons.io.FilenameUtils;
@@ -52,6 +53,11 @@ class ClassloaderManager
      */
     private Map<Integer, PayloadClassLoader> persistentClassLoaders = new HashMap<Integer, PayloadClassLoader>();
 
+    /**
+     * The ready to use CLs for the default isolated mode. Null if disabled.
+     */
+    private PayloadClassLoaderPool isolatedClassLoaderPool = null;
+
     /**
      * The different runners which may be involved inside the class loaders. Simple class names.
      */
@@ -68,7 +74,7 @@ class ClassloaderManager
     ClassloaderManager(DbConn cnx)
     {
         this.mavenResolver = new LibraryResolverMaven(cnx);
-        this.fsResolver = new LibraryResolverFS(this.mavenResolver);
+        this.fsResolver = new LibraryResolverFS(this.mavenResolver, cnx);
 
         setIsolationDefault(cnx);
     }
@@ -83,6 +89,13 @@ class ClassloaderManager
             runnerClasses.add(s);
             jqmlogger.info("Detected a job instance runner named " + s);
         }
+
+        int poolSize = Integer.parseInt(GlobalParameter.getParameter(cnx, "classLoaderPoolSize", "0"));
+        if (poolSize > 0)
+        {
+            jqmlogger.info("Isolated launches will use a pool of ready class loaders for at most " + poolSize + " job definitions");
+            this.isolatedClassLoaderPool = new PayloadClassLoaderPool(poolSize);
+        }
     }
 
     PayloadClassLoader getClassloader(JobInstance ji, JobRunnerCallback cb)
@@ -93,6 +106,10 @@ class ClassloaderManager
 
         // Extract the jar actual path
         File jarFile = new File(FilenameUtils.concat(new File(ji.getNode().getRepo()).getAbsolutePath(), jd.getJarPath()));
+        URL jarUrl = jarFile.toURI().toURL();
+
+        // Resolve the libraries
+        final URL[] classpath = getClasspath(ji, cb);
 
         // The parent class loader is normally the CL with EXT on its CL. But if no lib load, user current one (happens for external
         // payloads)
@@ -189,6 +206,25 @@ class ClassloaderManager
                     sharedJarClassLoader.put(jd.getJarPath(), jobClassLoader);
                 }
             }
+            else if (isolatedClassLoaderPool != null && jd.getPathType() != PathType.MEMORY)
+            {
+                // Standard case, with a pool: the CL may have been created beforehand, but has never been used.
+                String poolKey = PayloadClassLoaderPool.getKey(jd.getId(), jarUrl, classpath);
+                PayloadClassLoader pooled = isolatedClassLoaderPool.take(poolKey, parent, jarUrl, classpath);
+                if (pooled != null)
+                {
+                    jqmlogger.debug("Using a pooled isolated transient CL with default parameters");
+                    jobClassLoader = pooled;
+                }
+                else
+                {
+                    jqmlogger.debug("Using an isolated transient CL with default parameters");
+                    jobClassLoader = new PayloadClassLoader(parent);
+                    jobClassLoader.mayBeShared(false);
+                    jobClassLoader.recordDefinedClasses();
+                }
+                jobClassLoader.setPoolKey(poolKey);
+            }
             else
             {
                 // Standard case: all launches are independent. We create a transient CL.
@@ -198,11 +234,9 @@ class ClassloaderManager
             }
         }
 
-        // Resolve the libraries and add them to the classpath
-        final URL[] classpath = getClasspath(ji, cb);
-
+        // Add the libraries to the classpath.
         // Remember to also add the jar file itself... as CL can be shared, there is no telling if it already present or not.
-        jobClassLoader.extendUrls(jarFile.toURI().toURL(), classpath);
+        jobClassLoader.extendUrls(jarUrl, classpath);
 
         // Some debug display
         jqmlogger.trace("CL URLs:");
@@ -214,6 +248,35 @@ class ClassloaderManager
         return jobClassLoader;
     }
 
+    /**
+     * Must be called at the end of each launch, before the CL is closed.
+     *
+     * @return true if the CL was never used and has been kept for a later launch. It must not be closed in that case.
+     */
+    boolean releaseClassloader(PayloadClassLoader cl)
+    {
+        return isolatedClassLoaderPool != null && cl.getPoolKey() != null && isolatedClassLoaderPool.release(cl.getPoolKey(), cl);
+    }
+
+    /**
+     * The pool of ready to use CLs for the default isolated mode. Null if disabled.
+     */
+    PayloadClassLoaderPool getIsolatedClassLoaderPool()
+    {
+        return isolatedClassLoaderPool;
+    }
+
+    /**
+     * Frees the resources held by the manager itself (not the CLs currently in use).
+     */
+    void stop()
+    {
+        if (isolatedClassLoaderPool != null)
+        {
+            isolatedClassLoaderPool.stop();
+        }
+    }
+
     /**
      * Returns all the URL that should be inside the classpath. This includes the jar itself if any.
      * 
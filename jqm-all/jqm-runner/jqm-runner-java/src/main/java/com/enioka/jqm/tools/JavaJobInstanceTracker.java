@@ -143,6 +143,9 @@ class JavaJobInstanceTracker implements JobInstanceTracker, JavaJobInstanceTrack
     @Override
     public void wrap()
     {
+        // Pooled CLs which were not used at all may be kept for the next launch.
+        boolean kept = this.jobClassLoader != null && this.clm.releaseClassloader(this.jobClassLoader);
+
         // Restore and clean class loaders (if needed, as CLs may be persistent)
         if (this.classLoaderToRestoreAtEnd != null)
         {
@@ -153,6 +156,10 @@ class JavaJobInstanceTracker implements JobInstanceTracker, JavaJobInstanceTrack
             Thread.currentThread().setContextClassLoader(classLoaderToRestoreAtEnd);
             jqmlogger.trace("Class Loader was correctly restored");
         }
+        else if (this.jobClassLoader != null && !kept && this.jobClassLoader.getPoolKey() != null)
+        {
+            this.jobClassLoader.tryCloseUnused();
+        }
 
         // Unregister MBean
         if (engineCallback != null && engineCallback.isJmxEnabled())
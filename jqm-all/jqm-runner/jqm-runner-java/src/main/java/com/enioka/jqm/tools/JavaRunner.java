@@ -2,8 +2,8 @@ package com.enioka.jqm.tools;
 
 import com.enioka.jqm.api.JobInstanceTracker;
 import com.enioka.jqm.api.JobManager;
-import com.enioka.jqm.api.JobRunner;
 import com.enioka.jqm.api.JobRunnerCallback;
+import com.enioka.jqm.api.StoppableJobRunner;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.JobDef.PathType;
 import com.enioka.jqm.model.JobInstance;
@@ -12,7 +12,7 @@ import com.enioka.jqm.model.JobInstance;
  * Being in Java, JQM can have a special relationship with jobs coded in Java. This runner provides the capacity to run classes with
  * advanced CL handling inside the engine process. It itself has multiple plugins allowing it to load different types of classes.
  */
-class JavaRunner implements JobRunner
+class JavaRunner implements StoppableJobRunner
 {
     private ClassloaderManager classloaderManager;
 
@@ -33,4 +33,15 @@ class JavaRunner implements JobRunner
     {
         return new JavaJobInstanceTracker(toRun, cb, classloaderManager, engineApi);
     }
+
+    ClassloaderManager getClassloaderManager()
+    {
+        return classloaderManager;
+    }
+
+    @Override
+    public void stop()
+    {
+        classloaderManager.stop();
+    }
 }
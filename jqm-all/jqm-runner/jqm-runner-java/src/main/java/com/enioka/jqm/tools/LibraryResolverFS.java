@@ -17,14 +17,15 @@ package com.enioka.jqm.tools;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -36,32 +37,45 @@ import org.jboss.shrinkwrap.resolver.api.maven.ConfigurableMavenResolverSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.JobDef;
 import com.enioka.jqm.model.Node;
 
 /**
  * The cache is responsible for resolving the dependencies of a payload (from a pom, from a lib directory, ...). As the resolution is
  * costly, it is only done the first time and cached afterwards. <br>
- * Cache invalidation is done by analyzing the last modification date of the payload jar and of the lib directory (if any) on each call.<br>
+ * Cache invalidation is done by analyzing the last modification date of the payload jar and of the lib directory (if any). This is done
+ * at most once every <code>libCacheCheckPeriodMs</code> (global parameter) for each application.<br>
+ * Classpaths resolved from a pom are also stored inside the temporary directory of the node, so as not to resolve them again after a
+ * restart - unless they contain SNAPSHOT dependencies, which may have been deployed again since.<br>
  * There is one library cache per engine.<br>
- * This object is thread-safe.
+ * This object is thread-safe. Resolutions only lock the directory of the resolved jar, so a long resolution does not prevent other
+ * applications from starting.
  */
 class LibraryResolverFS
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(LibraryResolverFS.class);
 
+    private static final String PERSISTED_CACHE_DIR = "libcache";
+
     private static class JobDefLibrary
     {
         URL[] urls;
-        Date loadTime;
+        long loadTime;
+        String jarPath;
+        volatile long lastCheck;
     }
 
-    private Map<String, JobDefLibrary> cache = new HashMap<String, LibraryResolverFS.JobDefLibrary>();
+    private ConcurrentMap<String, JobDefLibrary> cache = new ConcurrentHashMap<String, LibraryResolverFS.JobDefLibrary>();
+    private ConcurrentMap<String, Object> directoryLocks = new ConcurrentHashMap<String, Object>();
     private LibraryResolverMaven mavenResolver;
+    private long checkPeriodMs;
 
-    LibraryResolverFS(LibraryResolverMaven mavenResolver)
+    LibraryResolverFS(LibraryResolverMaven mavenResolver, DbConn cnx)
     {
         this.mavenResolver = mavenResolver;
+        this.checkPeriodMs = Long.parseLong(GlobalParameter.getParameter(cnx, "libCacheCheckPeriodMs", "1000"));
     }
 
     /**
@@ -74,36 +88,63 @@ class LibraryResolverFS
      *                a DbConn that will be used only if not in cache, to fetch the Maven repository list from the database.
      * @throws JqmPayloadException
      */
-    synchronized URL[] getLibraries(Node n, JobDef jd) throws JqmPayloadException
+    URL[] getLibraries(Node n, JobDef jd) throws JqmPayloadException
     {
-        if (shouldLoad(n, jd))
+        File jarFile = new File(FilenameUtils.concat(new File(n.getRepo()).getAbsolutePath(), jd.getJarPath()));
+        String jarPath = jarFile.getAbsolutePath();
+
+        // Fast path: recently checked, no lock.
+        JobDefLibrary libs = cache.get(jd.getApplicationName());
+        if (libs != null && jarPath.equals(libs.jarPath) && System.currentTimeMillis() - libs.lastCheck < checkPeriodMs)
+        {
+            return libs.urls;
+        }
+
+        // Applications in the same directory share the (extracted) pom and lib files, so they cannot be resolved at the same time.
+        synchronized (getDirectoryLock(jarFile.getParentFile().getAbsolutePath()))
         {
-            loadCache(n, jd);
+            libs = cache.get(jd.getApplicationName());
+            if (shouldLoad(libs, jd, jarFile))
+            {
+                URL[] urls = loadCache(n, jd);
+
+                libs = new JobDefLibrary();
+                libs.urls = urls;
+                libs.jarPath = jarPath;
+                libs.loadTime = System.currentTimeMillis(); // after the resolution, which may have modified the jar directory itself.
+                cache.put(jd.getApplicationName(), libs);
+            }
+            libs.lastCheck = System.currentTimeMillis();
+            return libs.urls;
         }
-        return cache.get(jd.getApplicationName()).urls;
+    }
+
+    private Object getDirectoryLock(String path)
+    {
+        Object lock = new Object();
+        Object existing = directoryLocks.putIfAbsent(path, lock);
+        return existing != null ? existing : lock;
     }
 
     /**
      * Returns true if the libraries should be loaded in cache. Two cases: never loaded and should be reloaded (jar is more recent than
      * cache)
      */
-    private boolean shouldLoad(Node node, JobDef jd)
+    private boolean shouldLoad(JobDefLibrary libs, JobDef jd, File jarFile)
     {
-        if (!cache.containsKey(jd.getApplicationName()))
+        if (libs == null)
         {
             return true;
         }
         // If here: cache exists.
-        JobDefLibrary libs = cache.get(jd.getApplicationName());
 
         // Is cache stale?
-        Date lastLoaded = libs.loadTime;
-        File jarFile = new File(FilenameUtils.concat(new File(node.getRepo()).getAbsolutePath(), jd.getJarPath()));
+        long lastLoaded = libs.loadTime;
         File jarDir = jarFile.getParentFile();
         File libDir = new File(FilenameUtils.concat(jarDir.getAbsolutePath(), "lib"));
 
-        if (lastLoaded.before(new Date(jarFile.lastModified())) || lastLoaded.before(new Date(jarDir.lastModified()))
-                || lastLoaded.before(new Date(libDir.lastModified())))
+        if (!jarFile.getAbsolutePath().equals(libs.jarPath) || lastLoaded < jarFile.lastModified() || lastLoaded < jarDir.lastModified()
+                || lastLoaded < libDir.lastModified())
         {
             jqmlogger.info("The cache for application " + jd.getApplicationName() + " will be reloaded");
             return true;
@@ -113,7 +154,7 @@ class LibraryResolverFS
         return false;
     }
 
-    private void loadCache(Node node, JobDef jd) throws JqmPayloadException
+    private URL[] loadCache(Node node, JobDef jd) throws JqmPayloadException
     {
         jqmlogger.debug("Resolving classpath for job definition " + jd.getApplicationName());
 
@@ -130,6 +171,14 @@ class LibraryResolverFS
             throw new JqmPayloadException("File " + jarFile.getAbsolutePath() + " cannot be read");
         }
 
+        // A classpath resolved from a pom during a previous run may still be valid.
+        URL[] persisted = readPersistedClasspath(node, jarFile, pomFile, libDir);
+        if (persisted != null)
+        {
+            jqmlogger.debug("Using the classpath resolved during a previous run for " + jarFile.getAbsolutePath());
+            return persisted;
+        }
+
         // POM file should be deleted if it comes from the jar file. Otherwise, it would stay into place and modifications to the internal
         // pom would be ignored.
         boolean pomFromJar = false;
@@ -231,9 +280,7 @@ class LibraryResolverFS
                     throw new JqmPayloadException("Could not handle internal lib directory", e);
                 }
 
-                // Put in cache
-                putInCache(libUrls, jd.getApplicationName());
-                return;
+                return libUrls;
             }
         }
 
@@ -260,15 +307,15 @@ class LibraryResolverFS
             // Extract results
             URL[] tmp = mavenResolver.extractMavenResults(depFiles);
 
-            // Put in cache
-            putInCache(tmp, jd.getApplicationName());
-
             // Cleanup
             if (pomFromJar && !pomFile.delete())
             {
                 jqmlogger.warn("Could not delete the temp pom file extracted from the jar.");
             }
-            return;
+
+            // Keep the result for the next runs
+            persistClasspath(node, jarFile, pomFromJar ? null : pomFile, tmp);
+            return tmp;
         }
 
         // 4: if lib, use lib... (lib has priority over pom)
@@ -290,22 +337,141 @@ class LibraryResolverFS
                 }
             }
 
-            // Put in cache
-            putInCache(tmp, jd.getApplicationName());
-            return;
+            return tmp;
         }
 
         throw new JqmPayloadException(
                 "There is no lib dir or no pom.xml inside the directory containing the jar or inside the jar. The jar cannot be launched.");
     }
 
-    private void putInCache(URL[] urls, String applicationName)
+    private File getPersistedClasspathFile(Node node, File jarFile)
+    {
+        if (node.getTmpDirectory() == null)
+        {
+            return null;
+        }
+        String name = "classpath_" + Integer.toHexString(jarFile.getAbsolutePath().hashCode()) + ".properties";
+        return new File(FilenameUtils.concat(FilenameUtils.concat(node.getTmpDirectory(), PERSISTED_CACHE_DIR), name));
+    }
+
+    /**
+     * Stores a classpath resolved from a pom, along with what is needed to check it is still valid.
+     *
+     * @param pomFile
+     *                    null if the pom came from inside the jar
+     */
+    private void persistClasspath(Node node, File jarFile, File pomFile, URL[] urls)
+    {
+        File f = getPersistedClasspathFile(node, jarFile);
+        if (f == null)
+        {
+            return;
+        }
+        if (hasSnapshot(urls))
+        {
+            // Resolved again on each restart, so that the Maven update policy applies.
+            jqmlogger.debug("Classpath of " + jarFile.getAbsolutePath() + " contains SNAPSHOT dependencies and is not stored");
+            FileUtils.deleteQuietly(f);
+            return;
+        }
+
+        Properties p = new Properties();
+        p.setProperty("jar", jarFile.getAbsolutePath());
+        p.setProperty("jarModified", "" + jarFile.lastModified());
+        p.setProperty("pomModified", pomFile == null ? "-1" : "" + pomFile.lastModified());
+        p.setProperty("resolver", mavenResolver.getConfigurationSignature());
+        p.setProperty("count", "" + urls.length);
+        for (int i = 0; i < urls.length; i++)
+        {
+            p.setProperty("url." + i, urls[i].toExternalForm());
+        }
+
+        FileOutputStream os = null;
+        try
+        {
+            if (!f.getParentFile().isDirectory() && !f.getParentFile().mkdirs())
+            {
+                throw new JqmPayloadException("could not create directory " + f.getParentFile().getAbsolutePath());
+            }
+            os = new FileOutputStream(f);
+            p.store(os, "Classpath resolved by JQM - can be safely deleted");
+        }
+        catch (Exception e)
+        {
+            // Not an issue - resolution will simply happen again on next restart.
+            jqmlogger.warn("Could not store resolved classpath inside " + f.getAbsolutePath(), e);
+            FileUtils.deleteQuietly(f);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * @return the classpath stored by {@link #persistClasspath(Node, File, File, URL[])} if it is still valid, null otherwise.
+     */
+    private URL[] readPersistedClasspath(Node node, File jarFile, File pomFile, File libDir)
     {
-        JobDefLibrary jdl = new JobDefLibrary();
-        jdl.loadTime = new Date();
-        jdl.urls = urls;
+        File f = getPersistedClasspathFile(node, jarFile);
+        if (f == null || !f.isFile() || libDir.exists())
+        {
+            return null;
+        }
+
+        Properties p = new Properties();
+        InputStream is = null;
+        try
+        {
+            is = new FileInputStream(f);
+            p.load(is);
+
+            long pomModified = Long.parseLong(p.getProperty("pomModified"));
+            if (!jarFile.getAbsolutePath().equals(p.getProperty("jar"))
+                    || jarFile.lastModified() != Long.parseLong(p.getProperty("jarModified"))
+                    || !mavenResolver.getConfigurationSignature().equals(p.getProperty("resolver"))
+                    || (pomModified == -1 && pomFile.exists()) || (pomModified != -1 && pomFile.lastModified() != pomModified))
+            {
+                return null;
+            }
 
-        this.cache.put(applicationName, jdl);
+            URL[] res = new URL[Integer.parseInt(p.getProperty("count"))];
+            for (int i = 0; i < res.length; i++)
+            {
+                res[i] = new URL(p.getProperty("url." + i));
+                if (!new File(res[i].toURI()).exists())
+                {
+                    // Local Maven repository was purged.
+                    return null;
+                }
+            }
+            return res;
+        }
+        catch (Exception e)
+        {
+            jqmlogger.debug("Invalid resolved classpath file " + f.getAbsolutePath() + " - it will be ignored", e);
+            return null;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Inside a Maven repository, SNAPSHOT files are stored inside a directory named after their version, even when the file name itself
+     * is timestamped.
+     */
+    private static boolean hasSnapshot(URL... urls)
+    {
+        for (URL url : urls)
+        {
+            if (url.toExternalForm().contains("-SNAPSHOT"))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static void closeQuietly(ZipFile zf)
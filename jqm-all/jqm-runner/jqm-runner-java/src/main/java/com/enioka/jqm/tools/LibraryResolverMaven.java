@@ -4,6 +4,7 @@ import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.enioka.jqm.jdbc.DbConn;
@@ -37,6 +38,14 @@ class LibraryResolverMaven
         mavenSettingsFilePath = GlobalParameter.getParameter(cnx, "mavenSettingsFile", null);
     }
 
+    /**
+     * A string which changes when the resolver configuration changes - results obtained with another configuration should not be reused.
+     */
+    String getConfigurationSignature()
+    {
+        return Arrays.toString(mavenRepos) + ";" + mavenSettingsClPath + ";" + mavenSettingsFilePath;
+    }
+
     URL[] resolve(JobInstance ji) throws JqmPayloadException
     {
         ConfigurableMavenResolverSystem resolver = getMavenResolver();
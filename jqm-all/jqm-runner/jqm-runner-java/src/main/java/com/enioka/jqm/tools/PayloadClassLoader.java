@@ -25,10 +25,14 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -40,17 +44,50 @@ import com.enioka.jqm.model.JobInstance;
 
 /**
  * The {@link URLClassLoader} that will load everything related to a payload (the payload jar and all its dependencies).<br>
- * It is also responsible for launching the payload (be it a Runnable, a main function, etc).
+ * It is also responsible for launching the payload (be it a Runnable, a main function, etc).<br>
+ * <br>
+ * As it may be shared by many job instances running at the same time, it is parallel capable (on Java 7+): loading a class only locks this
+ * class name, not the whole class loader.
  */
 @SuppressWarnings({ "unchecked", "rawtypes" })
 class PayloadClassLoader extends URLClassLoader
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(PayloadClassLoader.class);
 
+    static
+    {
+        // Java 7+ API, called by reflection to keep Java 6 compatibility. As this is a caller sensitive method, registers this class.
+        try
+        {
+            Method m = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+            m.invoke(null);
+        }
+        catch (Exception e)
+        {
+            jqmlogger.debug("Payload class loaders cannot be registered as parallel capable on this JVM");
+        }
+    }
+
     private boolean childFirstClassLoader = false;
 
     private ArrayList<Pattern> hiddenJavaClassesPatterns = new ArrayList<Pattern>();
 
+    /**
+     * All hidden class patterns as a single regular expression. Null if no hidden classes.
+     */
+    private volatile Pattern hiddenJavaClassesPattern = null;
+
+    /**
+     * One lock per class name, so that a class is never defined twice by concurrent threads.
+     */
+    private final ConcurrentMap<String, Object> loadingLocks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Names of the classes which are known not to be inside the URLs of this class loader - avoids to search the jars (and throw an
+     * exception) each time a parent class is needed in child first mode. Cleared when URLs are added.
+     */
+    private final Set<String> notFoundLocally = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     private boolean tracing = false;
 
     private String referenceJobDefName = null;
@@ -59,6 +96,21 @@ class PayloadClassLoader extends URLClassLoader
 
     private boolean mayBeShared = false;
 
+    /**
+     * Names of the classes defined by this class loader (not by its parents). Null if not recorded.
+     */
+    private volatile Set<String> definedClasses = null;
+
+    /**
+     * True once {@link #launchJar(JobInstance, Map, ClassloaderManager, EngineApiProxy)} has been called - payload code may have run.
+     */
+    private volatile boolean launched = false;
+
+    /**
+     * Key of this CL inside the isolated CL pool, if created for it.
+     */
+    private String poolKey = null;
+
     PayloadClassLoader(ClassLoader parent)
     {
         super(new URL[0], parent);
@@ -66,15 +118,32 @@ class PayloadClassLoader extends URLClassLoader
 
     void extendUrls(URL jarUrl, URL[] libs)
     {
-        super.addURL(jarUrl);
+        // Shared class loaders are extended on each launch, usually with the same URLs.
+        List<URL> existing = Arrays.asList(getURLs());
+        boolean added = false;
+
+        if (!existing.contains(jarUrl))
+        {
+            super.addURL(jarUrl);
+            added = true;
+        }
 
         if (libs != null)
         {
             for (URL url : libs)
             {
-                super.addURL(url);
+                if (!existing.contains(url))
+                {
+                    super.addURL(url);
+                    added = true;
+                }
             }
         }
+
+        if (added)
+        {
+            notFoundLocally.clear();
+        }
     }
 
     /**
@@ -92,6 +161,8 @@ class PayloadClassLoader extends URLClassLoader
      */
     void launchJar(JobInstance job, Map<String, String> parameters, ClassloaderManager clm, EngineApiProxy h) throws JobRunnerException
     {
+        launched = true;
+
         // 1 - Create the proxy.
         Object proxy = null;
         Class injInt;
@@ -241,19 +312,74 @@ class PayloadClassLoader extends URLClassLoader
 
     private Class<?> loadFromParentCL(String name) throws ClassNotFoundException
     {
-        for (Pattern pattern : hiddenJavaClassesPatterns)
+        Pattern hidden = hiddenJavaClassesPattern;
+        if (hidden != null && hidden.matcher(name).matches())
         {
-            Matcher matcher = pattern.matcher(name);
-            if (matcher.matches())
+            jqmlogger.debug("Class " + name + " will not be loaded by parent CL because it matches hiddenJavaClasses parameter");
+            // Invoke findClass in order to find the class.
+            synchronized (getClassLoadingLock(name))
             {
-                jqmlogger.debug("Class " + name + " will not be loaded by parent CL because it matches hiddenJavaClasses parameter");
-                // Invoke findClass in order to find the class.
-                return super.findClass(name);
+                Class<?> c = findLoadedClass(name);
+                if (c != null)
+                {
+                    return c;
+                }
+                c = findLocalClass(name);
+                if (c == null)
+                {
+                    throw new ClassNotFoundException(name);
+                }
+                return c;
             }
         }
         return loadClass(name, false);
     }
 
+    /**
+     * Overrides the Java 7+ ClassLoader method (no annotation as it does not exist in Java 6), so that the lock used by
+     * {@link ClassLoader#loadClass(String, boolean)} is the same as the one used by the child first logic.
+     */
+    protected Object getClassLoadingLock(String name)
+    {
+        Object lock = new Object();
+        Object existing = loadingLocks.putIfAbsent(name, lock);
+        return existing != null ? existing : lock;
+    }
+
+    /**
+     * Looks for a class inside the URLs of this class loader only. Must be called with the class name lock held.
+     *
+     * @return null if not found.
+     */
+    private Class<?> findLocalClass(String name)
+    {
+        if (notFoundLocally.contains(name))
+        {
+            return null;
+        }
+        try
+        {
+            return findClass(name);
+        }
+        catch (ClassNotFoundException e)
+        {
+            notFoundLocally.add(name);
+            return null;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException
+    {
+        Class<?> c = super.findClass(name);
+        Set<String> defined = definedClasses;
+        if (defined != null)
+        {
+            defined.add(name);
+        }
+        return c;
+    }
+
     @Override
     public Class<?> loadClass(String name) throws ClassNotFoundException
     {
@@ -272,13 +398,13 @@ class PayloadClassLoader extends URLClassLoader
             if (c == null)
             {
                 // Try to find class from URLClassLoader
-                try
-                {
-                    c = super.findClass(name);
-                }
-                catch (ClassNotFoundException e)
+                synchronized (getClassLoadingLock(name))
                 {
-                    //
+                    c = findLoadedClass(name);
+                    if (c == null)
+                    {
+                        c = findLocalClass(name);
+                    }
                 }
                 // If nothing was found, try parent class loader
                 if (c == null)
@@ -340,6 +466,14 @@ class PayloadClassLoader extends URLClassLoader
     private void addHiddenJavaClassesPattern(Pattern hiddenJavaClassesPattern)
     {
         this.hiddenJavaClassesPatterns.add(hiddenJavaClassesPattern);
+
+        // Each class loaded through the parent is checked against all patterns - do it in a single match.
+        StringBuilder sb = new StringBuilder();
+        for (Pattern p : this.hiddenJavaClassesPatterns)
+        {
+            sb.append(sb.length() == 0 ? "" : "|").append("(?:").append(p.pattern()).append(")");
+        }
+        this.hiddenJavaClassesPattern = Pattern.compile(sb.toString());
     }
 
     public boolean isTracing()
@@ -372,6 +506,38 @@ class PayloadClassLoader extends URLClassLoader
         this.mayBeShared = val;
     }
 
+    /**
+     * Starts recording the names of the classes defined by this class loader - see {@link #getDefinedClasses()}.
+     */
+    void recordDefinedClasses()
+    {
+        this.definedClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * @return the names of the classes defined by this class loader since {@link #recordDefinedClasses()} was called.
+     */
+    Collection<String> getDefinedClasses()
+    {
+        Set<String> defined = definedClasses;
+        return defined == null ? new ArrayList<String>() : new ArrayList<String>(defined);
+    }
+
+    boolean wasLaunched()
+    {
+        return launched;
+    }
+
+    void setPoolKey(String poolKey)
+    {
+        this.poolKey = poolKey;
+    }
+
+    String getPoolKey()
+    {
+        return poolKey;
+    }
+
     /**
      * Hack - in Java 7, CL.Close was introduced but is not present in earlier versions. Yet it is highly useful on Windows as it frees file
      * handlers.<br>
@@ -386,32 +552,40 @@ class PayloadClassLoader extends URLClassLoader
             ClassLoaderLeakCleaner.cleanJdbc(Thread.currentThread());
 
             // Then try to call CL.close()
-            Method m = null;
-            try
-            {
-                m = this.getClass().getMethod("close");
-            }
-            catch (NoSuchMethodException e)
-            {
-                jqmlogger.trace("CL cannot be closed");
-                return;
-            }
-            catch (SecurityException e)
-            {
-                jqmlogger.error("Cannot access CL.close", e);
-                return;
-            }
+            tryCloseUnused();
+        }
+    }
 
-            try
-            {
-                m.invoke(this);
-            }
-            catch (Exception e)
-            {
-                jqmlogger.error("Cannot close CL", e);
-                return;
-            }
-            jqmlogger.debug("CL was closed");
+    /**
+     * Same as {@link #tryClose()}, without the leak cleaning - for class loaders which have never been used to launch anything.
+     */
+    void tryCloseUnused()
+    {
+        Method m = null;
+        try
+        {
+            m = this.getClass().getMethod("close");
+        }
+        catch (NoSuchMethodException e)
+        {
+            jqmlogger.trace("CL cannot be closed");
+            return;
+        }
+        catch (SecurityException e)
+        {
+            jqmlogger.error("Cannot access CL.close", e);
+            return;
+        }
+
+        try
+        {
+            m.invoke(this);
+        }
+        catch (Exception e)
+        {
+            jqmlogger.error("Cannot close CL", e);
+            return;
         }
+        jqmlogger.debug("CL was closed");
     }
 }
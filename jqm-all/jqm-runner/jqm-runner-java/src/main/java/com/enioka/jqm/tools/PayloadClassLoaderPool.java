@@ -0,0 +1,343 @@
+package com.enioka.jqm.tools;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of ready to use {@link PayloadClassLoader} for isolated launches (the default mode, in which each launch has its own class loader).
+ * <br>
+ * <br>
+ * Pooled class loaders are built in the background: the jars are opened, and the classes the previous launches of the same job definition
+ * have defined are defined again (but not initialized - no static initializer is run, so the payload cannot see any difference with a new
+ * class loader). A launch then only has to take one, instead of paying for the class loading on its own thread.<br>
+ * <br>
+ * Isolation is kept: a class loader is given to a single launch, and is only put back inside the pool if it was never used to launch
+ * anything (the launch was aborted before the payload started). Otherwise it is closed as usual at the end of the launch, and a new one is
+ * built in the background for the next launch.<br>
+ * <br>
+ * There is at most one ready class loader per key (job definition, jar and classpath, with the modification dates and sizes of the files),
+ * and at most a given number of keys - the least recently used are evicted (and their class loaders closed). A ready class loader keeps its
+ * files open: the class loaders of files which have changed are closed on the next launch.
+ */
+class PayloadClassLoaderPool
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(PayloadClassLoaderPool.class);
+
+    private final Map<String, Entry> entries;
+
+    private final ThreadPoolExecutor builder;
+
+    private boolean stopped = false;
+
+    private static final String STAMP_SEPARATOR = "#";
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * What is needed to build class loaders for a key, and the class loader ready to be used if any.
+     */
+    private static class Entry
+    {
+        private final ClassLoader parent;
+        private final URL jarUrl;
+        private final URL[] libs;
+
+        /**
+         * The names of the classes defined by the latest launches.
+         */
+        private Collection<String> warmClasses = new ArrayList<String>();
+
+        private PayloadClassLoader ready = null;
+        private boolean building = false;
+
+        private Entry(ClassLoader parent, URL jarUrl, URL[] libs)
+        {
+            this.parent = parent;
+            this.jarUrl = jarUrl;
+            this.libs = libs;
+        }
+    }
+
+    PayloadClassLoaderPool(final int size)
+    {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                if (size() > size)
+                {
+                    discard(eldest.getValue().ready);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        this.builder = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "JQM class loader pool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.builder.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The pool key of a launch. It ends with the modification dates and sizes of the files, so that a redeployed jar or library is never
+     * used through a class loader prepared before the redeployment.
+     */
+    static String getKey(int jdId, URL jarUrl, URL[] libs)
+    {
+        List<String> classpath = new ArrayList<String>(libs.length);
+        List<Long> stamps = new ArrayList<Long>(2 * libs.length + 2);
+        addStamp(jarUrl, stamps);
+        for (URL url : libs)
+        {
+            classpath.add(url.toString()); // Not URL.hashCode, which may need DNS resolution.
+            addStamp(url, stamps);
+        }
+        return jdId + ";" + jarUrl + ";" + classpath.hashCode() + STAMP_SEPARATOR + stamps.hashCode();
+    }
+
+    private static void addStamp(URL url, List<Long> stamps)
+    {
+        if (!"file".equals(url.getProtocol()))
+        {
+            return;
+        }
+        try
+        {
+            File f = new File(url.toURI());
+            stamps.add(f.lastModified());
+            stamps.add(f.length());
+        }
+        catch (Exception e)
+        {
+            // Not a plain file - not checked.
+        }
+    }
+
+    /**
+     * Takes the ready class loader of a key, and asks for the next one to be built (once a launch has told which classes it needs).
+     *
+     * @return null if there is no class loader ready. The caller should then build one itself, and give it to {@link #release}.
+     */
+    synchronized PayloadClassLoader take(String key, ClassLoader parent, URL jarUrl, URL[] libs)
+    {
+        Entry e = entries.get(key);
+        if (e == null || e.parent != parent)
+        {
+            if (e != null)
+            {
+                discard(e.ready);
+            }
+            discardStale(key);
+            e = new Entry(parent, jarUrl, libs);
+            entries.put(key, e);
+        }
+
+        PayloadClassLoader res = e.ready;
+        e.ready = null;
+        if (res != null)
+        {
+            hitCount.incrementAndGet();
+            jqmlogger.debug("Using a pooled isolated CL for key {}", key);
+        }
+        else
+        {
+            missCount.incrementAndGet();
+        }
+        if (!e.warmClasses.isEmpty())
+        {
+            // Otherwise wait for the end of the first launch to know what to load.
+            build(key, e);
+        }
+        return res;
+    }
+
+    /**
+     * Called at the end of each launch done with a class loader from {@link #take} or created for the key. Unused class loaders are put
+     * back inside the pool, others are only used to know which classes to define in the next class loaders.
+     *
+     * @return true if the pool has kept the class loader (it must not be closed by the caller).
+     */
+    synchronized boolean release(String key, PayloadClassLoader cl)
+    {
+        Entry e = entries.get(key);
+        if (e == null || e.parent != cl.getParent())
+        {
+            return false;
+        }
+
+        if (cl.wasLaunched())
+        {
+            e.warmClasses = cl.getDefinedClasses();
+            build(key, e);
+            return false;
+        }
+
+        // Provably clean: nothing was ever run inside this class loader.
+        if (e.ready == null && !stopped)
+        {
+            e.ready = cl;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes all the ready class loaders. The pool cannot be used afterwards.
+     */
+    synchronized void stop()
+    {
+        jqmlogger.info("Class loader pool is stopping - {} launches have used a prepared class loader, {} have not", hitCount.get(),
+                missCount.get());
+        stopped = true;
+        builder.shutdownNow();
+        for (Entry e : entries.values())
+        {
+            discard(e.ready);
+        }
+        entries.clear();
+    }
+
+    /**
+     * Removes the entries of the same launch with other file stamps: their files were redeployed, and their class loaders would keep the
+     * old files open (which prevents their replacement on some OS).
+     */
+    private void discardStale(String key)
+    {
+        String prefix = key.substring(0, key.lastIndexOf(STAMP_SEPARATOR) + 1);
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, Entry> stale = it.next();
+            if (stale.getKey().startsWith(prefix) && !stale.getKey().equals(key))
+            {
+                jqmlogger.debug("Files have changed - discarding pooled isolated CL for key {}", stale.getKey());
+                discard(stale.getValue().ready);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Number of launches which have used a ready class loader from this pool.
+     */
+    long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * Number of launches which have found no ready class loader inside this pool.
+     */
+    long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Number of keys with a class loader ready to be taken.
+     */
+    synchronized int getReadyCount()
+    {
+        int res = 0;
+        for (Entry e : entries.values())
+        {
+            if (e.ready != null)
+            {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    private void build(final String key, final Entry e)
+    {
+        if (e.ready != null || e.building || stopped)
+        {
+            return;
+        }
+        e.building = true;
+        final Collection<String> warmClasses = e.warmClasses;
+
+        builder.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PayloadClassLoader cl = null;
+                try
+                {
+                    cl = new PayloadClassLoader(e.parent);
+                    cl.mayBeShared(false);
+                    cl.recordDefinedClasses();
+                    cl.extendUrls(e.jarUrl, e.libs);
+
+                    for (String name : warmClasses)
+                    {
+                        try
+                        {
+                            // Definition only - loadClass does not initialize the class.
+                            cl.loadClass(name);
+                        }
+                        catch (Throwable t)
+                        {
+                            // The launch will fail on it (or not need it) by itself.
+                        }
+                    }
+                }
+                catch (RuntimeException ex)
+                {
+                    jqmlogger.warn("Could not build a class loader for the pool - launches will use new class loaders", ex);
+                    discard(cl);
+                    cl = null;
+                }
+
+                synchronized (PayloadClassLoaderPool.this)
+                {
+                    e.building = false;
+                    // The entry may have been evicted or replaced meanwhile.
+                    if (cl != null && e.ready == null && !stopped && entries.get(key) == e)
+                    {
+                        e.ready = cl;
+                        jqmlogger.debug("Pooled isolated CL ready for key {} with {} classes", key, warmClasses.size());
+                        return;
+                    }
+                }
+                discard(cl);
+            }
+        });
+    }
+
+    private static void discard(PayloadClassLoader cl)
+    {
+        if (cl != null)
+        {
+            cl.tryCloseUnused();
+        }
+    }
+}
@@ -24,6 +24,7 @@ public class EngineCallback implements JqmEngineHandler
     private String nodePrms = null;
     private Calendar latestJettyRestart = Calendar.getInstance();
     private boolean oneLogPerLaunch = false;
+    private JobLogWriter logWriter = null;
 
     @Override
     public void onConfigurationChanged(Node node)
@@ -76,11 +77,21 @@ public class EngineCallback implements JqmEngineHandler
         if ("true".equals(gp1) || "both".equals(gp1))
         {
             oneLogPerLaunch = true;
+            int bufferSize = Integer.parseInt(GlobalParameter.getParameter(cnx, "logBufferSize", "65536"));
+            int flushPeriod = Integer.parseInt(GlobalParameter.getParameter(cnx, "logFlushPeriodMs", "1000"));
+            JobLogSink.OverflowPolicy policy = JobLogSink.OverflowPolicy
+                    .parse(GlobalParameter.getParameter(cnx, "logBufferOverflowPolicy", "flush"));
+
+            this.logWriter = new JobLogWriter(flushPeriod);
+            (new Thread(this.logWriter)).start();
+
             RollingFileAppender a = (RollingFileAppender) Logger.getRootLogger().getAppender("rollingfile");
-            MultiplexPrintStream s = new MultiplexPrintStream(System.out, FilenameUtils.getFullPath(a.getFile()), "both".equals(gp1));
+            MultiplexPrintStream s = new MultiplexPrintStream(System.out, FilenameUtils.getFullPath(a.getFile()), "both".equals(gp1),
+                    logWriter, bufferSize, policy);
             System.setOut(s);
             ((ConsoleAppender) Logger.getRootLogger().getAppender("consoleAppender")).setWriter(new OutputStreamWriter(s));
-            s = new MultiplexPrintStream(System.err, FilenameUtils.getFullPath(a.getFile()), "both".equals(gp1));
+            s = new MultiplexPrintStream(System.err, FilenameUtils.getFullPath(a.getFile()), "both".equals(gp1), logWriter, bufferSize,
+                    policy);
             System.setErr(s);
         }
 
@@ -107,6 +118,10 @@ public class EngineCallback implements JqmEngineHandler
         {
             this.scanner.stop();
         }
+        if (this.logWriter != null)
+        {
+            this.logWriter.stop();
+        }
     }
 
     @Override
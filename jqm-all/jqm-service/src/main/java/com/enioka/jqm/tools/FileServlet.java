@@ -0,0 +1,86 @@
+package com.enioka.jqm.tools;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+
+/**
+ * Sends the body of the log and deliverable files served by the simple web service. The web service checks the request, sets the headers
+ * and forwards here with the file and the part of it to send as request attributes. It has no mapping, so it can only be reached through
+ * this forward.<br>
+ * The part is memory-mapped and handed to Jetty as a direct buffer, so the connector writes it to the socket from the page cache without
+ * any copy in the JVM heap - this is also how Jetty sends static files. Mapping is not used on Windows, as a mapped file cannot be deleted
+ * before the mapping is garbage collected, and the purge of old logs would fail.
+ */
+class FileServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    // Also used by the web service, which cannot see this class.
+    static final String NAME = "JqmFileServlet";
+    static final String ATTR_PATH = "com.enioka.jqm.file.path";
+    static final String ATTR_START = "com.enioka.jqm.file.start";
+    static final String ATTR_COUNT = "com.enioka.jqm.file.count";
+
+    private static final boolean CAN_MAP = !System.getProperty("os.name").toLowerCase().startsWith("win");
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    {
+        String path = (String) request.getAttribute(ATTR_PATH);
+        Long start = (Long) request.getAttribute(ATTR_START);
+        Long count = (Long) request.getAttribute(ATTR_COUNT);
+        if (path == null || start == null || count == null)
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try
+        {
+            FileChannel in = raf.getChannel();
+            ServletOutputStream os = response.getOutputStream();
+
+            // The file may have been truncated since its size was read: never map beyond its end.
+            long available = Math.max(0, Math.min(count, in.size() - start));
+            if (CAN_MAP && os instanceof AbstractHttpConnection.Output && available == count && count <= Integer.MAX_VALUE)
+            {
+                ByteBuffer mapped = in.map(MapMode.READ_ONLY, start, count);
+                ((AbstractHttpConnection.Output) os).sendContent(new DirectNIOBuffer(mapped, true));
+                return;
+            }
+
+            WritableByteChannel out = Channels.newChannel(os);
+            long position = start;
+            long remaining = available;
+            while (remaining > 0)
+            {
+                long sent = in.transferTo(position, remaining, out);
+                if (sent <= 0)
+                {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}
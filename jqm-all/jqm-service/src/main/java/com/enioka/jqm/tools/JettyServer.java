@@ -31,6 +31,7 @@ import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.server.ssl.SslSocketConnector;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.webapp.Configuration;
 import org.eclipse.jetty.webapp.FragmentConfiguration;
@@ -45,7 +46,7 @@ import com.enioka.jqm.model.Node;
 import com.enioka.jqm.pki.JdbcCa;
 
 /**
- * Every engine has an embedded Jetty engine that serves the different web service APIs.
+ * Every engine has an embedded Jetty engine that serves the different web service APIs (and optionally the engine metrics).
  */
 class JettyServer
 {
@@ -90,6 +91,7 @@ class JettyServer
         String pfxPassword = GlobalParameter.getParameter(cnx, "pfxPassword", "SuperPassword");
 
         server = new Server();
+        h = new HandlerCollection();
 
         SslContextFactory scf = null;
         if (useSsl)
@@ -173,7 +175,7 @@ class JettyServer
         server.setHandler(h);
 
         // Load the webapp context
-        loadWar();
+        loadWar(Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "enableWsApiMetrics", "false")));
 
         // Start the server
         jqmlogger.trace("Starting Jetty (port " + node.getPort() + ")");
@@ -243,7 +245,7 @@ class JettyServer
         }
     }
 
-    private void loadWar()
+    private void loadWar(boolean withMetrics)
     {
         File war = new File("./webapp/jqm-ws.war");
         if (!war.exists() || !war.isFile())
@@ -280,6 +282,16 @@ class JettyServer
         webAppContext.setConfigurations(new Configuration[] { new WebInfConfiguration(), new WebXmlConfiguration(),
                 new MetaInfConfiguration(), new FragmentConfiguration(), new AnnotationConfiguration() });
 
+        // Metrics are served inside the web application, behind its security filter (if enabled) like every web service.
+        if (withMetrics)
+        {
+            jqmlogger.info("Engine metrics will be available on " + MetricsServlet.PATH);
+            webAppContext.addServlet(new ServletHolder(new MetricsServlet()), MetricsServlet.PATH);
+        }
+
+        // Log and deliverable files are sent by Jetty itself. Not mapped: only reachable by a forward from the web services.
+        webAppContext.getServletHandler().addServlet(new ServletHolder(FileServlet.NAME, new FileServlet()));
+
         h.addHandler(webAppContext);
     }
 }
@@ -0,0 +1,222 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The log file of one output stream (stdout or stderr) of one job instance. Written bytes are stored inside a bounded memory buffer, which
+ * is emptied into the file by the {@link JobLogWriter} thread - so the payload threads almost never do any IO when printing.<br>
+ * What happens when the buffer is full depends on the {@link OverflowPolicy}.
+ */
+class JobLogSink
+{
+    private static Logger alljobslogger = Logger.getLogger("alljobslogger");
+    private static String ls = System.getProperty("line.separator");
+
+    /**
+     * What to do when a payload writes faster than the log writer can empty the buffer.
+     */
+    enum OverflowPolicy
+    {
+        /** The writing thread empties the buffer into the file itself. No log is lost, but the payload is slowed down. **/
+        FLUSH,
+        /** New bytes are discarded (and their count is written in the file). The payload is never slowed down. **/
+        DROP;
+
+        static OverflowPolicy parse(String value)
+        {
+            return "drop".equalsIgnoreCase(value) ? DROP : FLUSH;
+        }
+    }
+
+    private final JobLogWriter writer;
+    private final OverflowPolicy policy;
+    private final boolean alsoWriteToCommonLog;
+
+    // Guarded by this.
+    private byte[] buffer;
+    private int count = 0;
+    private long dropped = 0;
+    private boolean signalled = false;
+    private boolean closed = false;
+
+    // Guarded by fileLock.
+    private final Object fileLock = new Object();
+    private OutputStream file;
+    private byte[] spare;
+
+    JobLogSink(File path, JobLogWriter writer, int bufferSize, OverflowPolicy policy, boolean alsoWriteToCommonLog) throws IOException
+    {
+        this.writer = writer;
+        this.policy = policy;
+        this.alsoWriteToCommonLog = alsoWriteToCommonLog;
+        this.buffer = new byte[bufferSize];
+        this.spare = new byte[bufferSize];
+        this.file = new FileOutputStream(path, true);
+    }
+
+    void write(byte[] b, int off, int len)
+    {
+        boolean mustDrain = false;
+        boolean mustSignal = false;
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            if (count + len <= buffer.length)
+            {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+                if (!signalled && count > buffer.length / 2)
+                {
+                    signalled = true;
+                    mustSignal = true;
+                }
+            }
+            else if (policy == OverflowPolicy.DROP)
+            {
+                int fit = buffer.length - count;
+                System.arraycopy(b, off, buffer, count, fit);
+                count += fit;
+                dropped += len - fit;
+                mustSignal = !signalled;
+                signalled = true;
+            }
+            else
+            {
+                mustDrain = true;
+            }
+        }
+
+        if (mustDrain)
+        {
+            synchronized (fileLock)
+            {
+                drain();
+                if (len > buffer.length)
+                {
+                    // Too big for the buffer anyway.
+                    writeToFile(b, off, len);
+                    return;
+                }
+            }
+            write(b, off, len);
+        }
+        else if (mustSignal)
+        {
+            if (!writer.signal())
+            {
+                // No writer running (engine stopping) - do not keep logs in memory.
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Writes the content of the buffer to the file. Called by the log writer, and by the payload threads when the buffer overflows.
+     */
+    void drain()
+    {
+        synchronized (fileLock)
+        {
+            if (file == null)
+            {
+                return;
+            }
+
+            byte[] toWrite;
+            int len;
+            long lost;
+            synchronized (this)
+            {
+                if (count == 0 && dropped == 0)
+                {
+                    return;
+                }
+                toWrite = buffer;
+                len = count;
+                lost = dropped;
+                buffer = spare;
+                count = 0;
+                dropped = 0;
+                signalled = false;
+            }
+
+            writeToFile(toWrite, 0, len);
+            if (lost > 0)
+            {
+                byte[] msg = (ls + "[JQM: " + lost + " bytes of log were dropped as the log buffer was full]" + ls).getBytes();
+                writeToFile(msg, 0, msg.length);
+            }
+            spare = toWrite;
+        }
+    }
+
+    private void writeToFile(byte[] b, int off, int len)
+    {
+        if (len == 0 || file == null)
+        {
+            return;
+        }
+        try
+        {
+            file.write(b, off, len);
+        }
+        catch (IOException e)
+        {
+            // don't log exceptions, it could trigger a StackOverflow
+        }
+        if (alsoWriteToCommonLog)
+        {
+            alljobslogger.info(new String(b, off, len));
+        }
+    }
+
+    /**
+     * Writes everything still in memory to the file and closes it. Further writes are ignored.
+     */
+    void close()
+    {
+        synchronized (fileLock)
+        {
+            synchronized (this)
+            {
+                closed = true;
+            }
+            drain();
+            if (file != null)
+            {
+                try
+                {
+                    file.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing to do.
+                }
+                file = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The background thread writing the memory buffers of the job instance log files ({@link JobLogSink}) to disk. Buffers are written every
+ * <code>logFlushPeriodMs</code>, or sooner when they are half full.
+ */
+class JobLogWriter implements Runnable
+{
+    private static Logger jqmlogger = Logger.getLogger(JobLogWriter.class);
+
+    private final Set<JobLogSink> sinks = Collections.newSetFromMap(new ConcurrentHashMap<JobLogSink, Boolean>());
+    private final int periodMs;
+
+    private final Object signal = new Object();
+    private boolean signalled = false;
+    private volatile boolean run = true;
+    private volatile Thread localThread = null;
+
+    JobLogWriter(int periodMs)
+    {
+        this.periodMs = periodMs;
+    }
+
+    void register(JobLogSink sink)
+    {
+        sinks.add(sink);
+    }
+
+    void unregister(JobLogSink sink)
+    {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Asks for an early write of the buffers.
+     *
+     * @return false if the writer is not running - the caller should write its buffer itself.
+     */
+    boolean signal()
+    {
+        if (!run || localThread == null)
+        {
+            return false;
+        }
+        synchronized (signal)
+        {
+            signalled = true;
+            signal.notify();
+        }
+        return true;
+    }
+
+    /**
+     * Stops the writer after a last write of all buffers. Blocking.
+     */
+    void stop()
+    {
+        Thread t = localThread;
+        run = false;
+        synchronized (signal)
+        {
+            signal.notify();
+        }
+        if (t != null)
+        {
+            try
+            {
+                t.join(10000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        localThread = Thread.currentThread();
+        localThread.setName("LOG_WRITER;writing;");
+        jqmlogger.debug("Start of the job instance log writer");
+
+        while (true)
+        {
+            synchronized (signal)
+            {
+                if (!signalled && run)
+                {
+                    try
+                    {
+                        signal.wait(periodMs);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        run = false;
+                    }
+                }
+                signalled = false;
+            }
+
+            for (JobLogSink sink : sinks)
+            {
+                sink.drain();
+            }
+
+            if (!run)
+            {
+                break;
+            }
+        }
+
+        localThread = null;
+        jqmlogger.debug("End of the job instance log writer");
+    }
+}
@@ -0,0 +1,30 @@
+package com.enioka.jqm.tools;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the engine {@link Metrics} in the Prometheus text format on GET /metrics. It is added to the web services application, so that the
+ * requests go through the same authentication and permission checks as the web services.
+ */
+class MetricsServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    static final String PATH = "/metrics";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        Writer w = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+        Metrics.write(w);
+    }
+}
@@ -15,18 +15,10 @@
  */
 package com.enioka.jqm.tools;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.Writer;
-import java.nio.Buffer;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
@@ -35,29 +27,35 @@ import com.enioka.jqm.model.GlobalParameter;
 
 /**
  * The goal of this Stream is to provide a replacement for stdout/err in which every running job instance has its own personal flow. This is
- * basically flow multiplexing, with the multiplexing key being the caller Thread object. Used by default, can be disabled with a
- * {@link GlobalParameter}. <br>
+ * basically flow multiplexing, with the multiplexing key being the caller Thread (through a thread local, not the thread name). Used by
+ * default, can be disabled with a {@link GlobalParameter}. <br>
+ * Job instance output does not go directly to disk: it is stored in a per job instance memory buffer ({@link JobLogSink}) which is written
+ * by a background {@link JobLogWriter}. The buffer is fully written when the job instance ends.<br>
  * Should a payload create a new thread, its stdout would go to the global log as the multiplexing key is the Thread. But is not a big deal
  * as creating threads inside an app server is not a good idea anyway.
  */
 class MultiplexPrintStream extends PrintStream
 {
     private static Logger jqmlogger = Logger.getLogger(MultiplexPrintStream.class);
-    private static Logger alljobslogger = Logger.getLogger("alljobslogger");
-    private static String ls = System.getProperty("line.separator");
+    private static byte[] ls = System.getProperty("line.separator").getBytes();
 
-    private BufferedWriter original = null;
-    private boolean useCommonLogFile = false;
+    private final boolean useCommonLogFile;
+    private final JobLogWriter writer;
+    private final int bufferSize;
+    private final JobLogSink.OverflowPolicy policy;
 
-    private Map<String, BufferedWriter> writers = new HashMap<String, BufferedWriter>();
+    private final ThreadLocal<JobLogSink> sinks = new ThreadLocal<JobLogSink>();
     String rootLogDir;
 
-    MultiplexPrintStream(OutputStream out, String rootLogDir, boolean alsoWriteToCommonLog)
+    MultiplexPrintStream(OutputStream out, String rootLogDir, boolean alsoWriteToCommonLog, JobLogWriter writer, int bufferSize,
+            JobLogSink.OverflowPolicy policy)
     {
         super(out);
         this.useCommonLogFile = alsoWriteToCommonLog;
-        this.original = new BufferedWriter(new OutputStreamWriter(out));
         this.rootLogDir = rootLogDir;
+        this.writer = writer;
+        this.bufferSize = bufferSize;
+        this.policy = policy;
 
         File d = new File(this.rootLogDir);
         if (!d.isDirectory() && !d.mkdir())
@@ -66,23 +64,15 @@ class MultiplexPrintStream extends PrintStream
         }
     }
 
-    private BufferedWriter getWriter()
-    {
-        BufferedWriter res = writers.get(Thread.currentThread().getName());
-        if (res == null)
-        {
-            return this.original;
-        }
-        return res;
-    }
-
     void registerThread(String fileName)
     {
         try
         {
             unregisterThread();
-            Writer w = new FileWriter(FilenameUtils.concat(rootLogDir, fileName), true);
-            writers.put(Thread.currentThread().getName(), new BufferedWriter(w));
+            JobLogSink sink = new JobLogSink(new File(FilenameUtils.concat(rootLogDir, fileName)), writer, bufferSize, policy,
+                    useCommonLogFile);
+            writer.register(sink);
+            sinks.set(sink);
         }
         catch (IOException e)
         {
@@ -91,30 +81,42 @@ class MultiplexPrintStream extends PrintStream
         }
     }
 
+    /**
+     * Writes all the pending output of the current thread to its file, and stops redirecting it.
+     */
     void unregisterThread()
     {
-        try
+        JobLogSink sink = sinks.get();
+        if (sink != null)
         {
-            BufferedWriter bf = getWriter();
-            if (bf != original)
-            {
-                bf.close();
-                this.writers.remove(Thread.currentThread().getName());
-            }
-        }
-        catch (IOException e)
-        {
-            // A PrintStream is supposed to never throw IOException
-            jqmlogger.warn("could not close log file", e);
+            sinks.remove();
+            writer.unregister(sink);
+            sink.close();
         }
     }
 
-    /** Check to make sure that the stream has not been closed */
-    private void ensureOpen() throws IOException
+    private void write(String s, boolean newLine)
     {
-        if (out == null)
+        byte[] b = s.getBytes();
+        JobLogSink sink = sinks.get();
+        if (sink != null)
         {
-            throw new IOException("Stream closed");
+            sink.write(b, 0, b.length);
+            if (newLine)
+            {
+                sink.write(ls, 0, ls.length);
+            }
+            return;
+        }
+
+        synchronized (this)
+        {
+            writeOriginal(b, 0, b.length);
+            if (newLine)
+            {
+                writeOriginal(ls, 0, ls.length);
+            }
+            flushOriginal();
         }
     }
 
@@ -123,39 +125,68 @@ class MultiplexPrintStream extends PrintStream
         write(s, false);
     }
 
-    private void write(String s, boolean newLine)
+    private void writeOriginal(byte[] buf, int off, int len)
     {
-        BufferedWriter textOut = getWriter();
         try
         {
-            ensureOpen();
-            textOut.write(s);
-            if (newLine)
+            if (out == null)
             {
-                textOut.newLine();
+                throw new IOException("Stream closed");
             }
-            textOut.flush();
+            out.write(buf, off, len);
+        }
+        catch (IOException x)
+        {
+            // don't log exceptions, it could trigger a StackOverflow
+        }
+    }
 
-            if (useCommonLogFile && textOut != original)
+    private void flushOriginal()
+    {
+        try
+        {
+            if (out != null)
             {
-                alljobslogger.info(s + (newLine ? ls : ""));
+                out.flush();
             }
         }
-        catch (InterruptedIOException x)
-        {
-            Thread.currentThread().interrupt();
-        }
         catch (IOException x)
         {
             // don't log exceptions, it could trigger a StackOverflow
         }
     }
 
-    // TODO: write something that's not a performance hog...
     @Override
     public void write(byte[] buf, int off, int len)
     {
-        write(new String(buf, off, len));
+        JobLogSink sink = sinks.get();
+        if (sink != null)
+        {
+            sink.write(buf, off, len);
+            return;
+        }
+
+        synchronized (this)
+        {
+            writeOriginal(buf, off, len);
+            flushOriginal();
+        }
+    }
+
+    @Override
+    public void write(int b)
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void flush()
+    {
+        // Job instance output is flushed by the log writer. Other output is never buffered here.
+        if (sinks.get() == null)
+        {
+            flushOriginal();
+        }
     }
 
     // ///////////////////////////////////////////////////////////////////
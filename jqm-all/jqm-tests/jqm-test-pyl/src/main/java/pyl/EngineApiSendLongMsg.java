@@ -0,0 +1,23 @@
+package pyl;
+
+import com.enioka.jqm.api.JobManager;
+
+public class EngineApiSendLongMsg implements Runnable
+{
+    JobManager jm;
+
+    @Override
+    public void run()
+    {
+        StringBuilder sb = new StringBuilder(2000);
+        for (int i = 0; i < 2000; i++)
+        {
+            sb.append('a');
+        }
+
+        jm.sendMsg("short1");
+        jm.sendMsg(sb.toString()); // Too long for the database column.
+        jm.sendMsg("short2");
+        jm.sendProgress(10);
+    }
+}
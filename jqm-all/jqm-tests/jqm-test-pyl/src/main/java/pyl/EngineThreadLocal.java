@@ -0,0 +1,35 @@
+package pyl;
+
+import java.util.Properties;
+
+import com.enioka.jqm.api.JobManager;
+
+/**
+ * Reports its thread and what a thread local set by a previous launch contains. The thread local itself is kept in the system properties
+ * so that it is shared by all launches, whatever their class loader.
+ */
+public class EngineThreadLocal implements Runnable
+{
+    JobManager jm;
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void run()
+    {
+        Properties props = System.getProperties();
+        ThreadLocal<String> tl;
+        synchronized (props)
+        {
+            tl = (ThreadLocal<String>) props.get("jqm.test.threadlocal");
+            if (tl == null)
+            {
+                tl = new ThreadLocal<String>();
+                props.put("jqm.test.threadlocal", tl);
+            }
+        }
+
+        jm.sendMsg("thread " + Thread.currentThread().getId());
+        jm.sendMsg("value " + tl.get());
+        tl.set("set by " + jm.jobInstanceID());
+    }
+}
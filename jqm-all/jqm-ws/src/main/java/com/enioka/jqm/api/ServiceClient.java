@@ -15,7 +15,12 @@
  */
 package com.enioka.jqm.api;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 
@@ -28,9 +33,16 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 
+import org.eclipse.persistence.jaxb.JAXBContextFactory;
+import org.eclipse.persistence.jaxb.MarshallerProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +57,8 @@ public class ServiceClient implements JqmClient
 
     private @Context HttpServletResponse res;
 
+    private static JAXBContext jobInstanceContext = null;
+
     // Not directly mapped: returning an integer would be weird. See enqueue_object.
     public int enqueue(JobRequest jd)
     {
@@ -62,6 +76,29 @@ public class ServiceClient implements JqmClient
         return getJi(jd, i);
     }
 
+    // Not directly mapped: returning integers would be weird. See enqueueObjects.
+    @Override
+    public List<Integer> enqueue(List<JobRequest> jobRequests)
+    {
+        throw new NotSupportedException();
+    }
+
+    @POST
+    @Path("ji/batch")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public List<JobInstance> enqueueObjects(List<JobRequest> jobRequests)
+    {
+        List<Integer> ids = JqmClientFactory.getClient().enqueue(jobRequests);
+
+        List<JobInstance> res = new ArrayList<JobInstance>(ids.size());
+        for (int i = 0; i < ids.size(); i++)
+        {
+            res.add(getJi(jobRequests.get(i), ids.get(i)));
+        }
+        return res;
+    }
+
     // Not exposed. Client side work.
     @Override
     public int enqueue(String applicationName, String userName)
@@ -288,6 +325,101 @@ public class ServiceClient implements JqmClient
         return query;
     }
 
+    // Not exposed directly - see getJobsQueryStream.
+    @Override
+    public void getJobs(Query query, JobInstanceHandler handler)
+    {
+        JqmClientFactory.getClient().getJobs(query, handler);
+    }
+
+    /**
+     * Same as {@link #getJobsQuery(Query)} but for big results: a JSON array of job instances, written (chunked) while the database is
+     * read. The total result count is not computed.
+     */
+    @Path("ji/query/stream")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public StreamingOutput getJobsQueryStream(final Query query)
+    {
+        return new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream os) throws IOException, WebApplicationException
+            {
+                final Writer w = new OutputStreamWriter(os, "UTF-8");
+                final Marshaller m;
+                try
+                {
+                    m = getJobInstanceContext().createMarshaller();
+                    m.setProperty(MarshallerProperties.MEDIA_TYPE, MediaType.APPLICATION_JSON);
+                    m.setProperty(MarshallerProperties.JSON_INCLUDE_ROOT, false);
+                    m.setProperty(MarshallerProperties.JSON_WRAPPER_AS_ARRAY_NAME, true);
+                }
+                catch (JAXBException e)
+                {
+                    throw new IOException("could not create JSON marshaller", e);
+                }
+
+                w.write("[");
+                JqmClientFactory.getClient().getJobs(query, new JobInstanceHandler()
+                {
+                    private int count = 0;
+
+                    @Override
+                    public void onJobInstance(JobInstance instance)
+                    {
+                        try
+                        {
+                            if (count > 0)
+                            {
+                                w.write(",");
+                            }
+                            m.marshal(instance, w);
+                            if (++count % 100 == 0)
+                            {
+                                w.flush();
+                            }
+                        }
+                        catch (Exception e)
+                        {
+                            throw new JqmClientException("could not write job instance " + instance.getId(), e);
+                        }
+                    }
+                });
+                w.write("]");
+                w.flush();
+            }
+        };
+    }
+
+    /**
+     * Sets the download file name from the hint given by the node serving the file (if any).
+     */
+    private InputStream withNameHint(InputStream fs)
+    {
+        String nameHint = null;
+        if (fs instanceof SelfDestructFileStream)
+        {
+            nameHint = ((SelfDestructFileStream) fs).nameHint;
+        }
+        else if (fs instanceof RemoteFileStream)
+        {
+            nameHint = ((RemoteFileStream) fs).nameHint;
+        }
+        res.setHeader("Content-Disposition", "attachment; filename=" + nameHint);
+        return fs;
+    }
+
+    private static synchronized JAXBContext getJobInstanceContext() throws JAXBException
+    {
+        if (jobInstanceContext == null)
+        {
+            jobInstanceContext = JAXBContextFactory.createContext(new Class[] { JobInstance.class }, null);
+        }
+        return jobInstanceContext;
+    }
+
     @Override
     @Path("ji/{jobId}/messages")
     @GET
@@ -329,9 +461,7 @@ public class ServiceClient implements JqmClient
     @POST
     public InputStream getDeliverableContent(Deliverable file)
     {
-        SelfDestructFileStream fs = (SelfDestructFileStream) JqmClientFactory.getClient().getDeliverableContent(file);
-        res.setHeader("Content-Disposition", "attachment; filename=" + fs.nameHint);
-        return fs;
+        return withNameHint(JqmClientFactory.getClient().getDeliverableContent(file));
     }
 
     @Override
@@ -340,9 +470,7 @@ public class ServiceClient implements JqmClient
     @GET
     public InputStream getDeliverableContent(@PathParam("id") int delId)
     {
-        SelfDestructFileStream fs = (SelfDestructFileStream) JqmClientFactory.getClient().getDeliverableContent(delId);
-        res.setHeader("Content-Disposition", "attachment; filename=" + fs.nameHint);
-        return fs;
+        return withNameHint(JqmClientFactory.getClient().getDeliverableContent(delId));
     }
 
     @Override
@@ -351,9 +479,7 @@ public class ServiceClient implements JqmClient
     @GET
     public InputStream getJobLogStdErr(@PathParam("jobId") int jobId)
     {
-        SelfDestructFileStream fs = (SelfDestructFileStream) JqmClientFactory.getClient().getJobLogStdErr(jobId);
-        res.setHeader("Content-Disposition", "attachment; filename=" + fs.nameHint);
-        return fs;
+        return withNameHint(JqmClientFactory.getClient().getJobLogStdErr(jobId));
     }
 
     @Override
@@ -362,9 +488,7 @@ public class ServiceClient implements JqmClient
     @GET
     public InputStream getJobLogStdOut(@PathParam("jobId") int jobId)
     {
-        SelfDestructFileStream fs = (SelfDestructFileStream) JqmClientFactory.getClient().getJobLogStdOut(jobId);
-        res.setHeader("Content-Disposition", "attachment; filename=" + fs.nameHint);
-        return fs;
+        return withNameHint(JqmClientFactory.getClient().getJobLogStdOut(jobId));
     }
 
     @Override
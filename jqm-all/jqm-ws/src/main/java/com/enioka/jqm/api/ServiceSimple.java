@@ -15,13 +15,24 @@
  */
 package com.enioka.jqm.api;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
@@ -29,7 +40,9 @@ import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
+import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.FormParam;
@@ -39,9 +52,14 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
@@ -65,8 +83,17 @@ public class ServiceSimple
 {
     private static Logger log = LoggerFactory.getLogger(ServiceSimple.class);
 
-    private @Context HttpServletResponse res;
+    // The engine servlet which sends files, and its parameters. It is not visible from here, so its names are repeated.
+    private static final String FILE_SERVLET = "JqmFileServlet";
+    private static final String FILE_PATH_ATTRIBUTE = "com.enioka.jqm.file.path";
+    private static final String FILE_START_ATTRIBUTE = "com.enioka.jqm.file.start";
+    private static final String FILE_COUNT_ATTRIBUTE = "com.enioka.jqm.file.count";
+
     private @Context SecurityContext security;
+    private @Context Request request;
+    private @Context HttpHeaders headers;
+    private @Context HttpServletRequest servletRequest;
+    private @Context HttpServletResponse servletResponse;
     private Node n = null;
     @Context
     private ServletContext context;
@@ -120,25 +147,23 @@ public class ServiceSimple
     @GET
     @Path("stdout")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public InputStream getLogOut(@QueryParam("id") int id)
+    public Response getLogOut(@QueryParam("id") int id)
     {
-        res.setHeader("Content-Disposition", "attachment; filename=" + id + ".stdout.txt");
-        return getFile(FilenameUtils.concat("./logs", StringUtils.leftPad("" + id, 10, "0") + ".stdout.log"));
+        return getFile(FilenameUtils.concat("./logs", StringUtils.leftPad("" + id, 10, "0") + ".stdout.log"), id + ".stdout.txt", true);
     }
 
     @GET
     @Path("stderr")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public InputStream getLogErr(@QueryParam("id") int id)
+    public Response getLogErr(@QueryParam("id") int id)
     {
-        res.setHeader("Content-Disposition", "attachment; filename=" + id + ".stderr.txt");
-        return getFile(FilenameUtils.concat("./logs", StringUtils.leftPad("" + id, 10, "0") + ".stderr.log"));
+        return getFile(FilenameUtils.concat("./logs", StringUtils.leftPad("" + id, 10, "0") + ".stderr.log"), id + ".stderr.txt", true);
     }
 
     @GET
     @Path("file")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public InputStream getDeliverableStream(@QueryParam("id") String randomId)
+    public Response getDeliverableStream(@QueryParam("id") String randomId)
     {
         if (n == null)
         {
@@ -172,27 +197,211 @@ public class ServiceSimple
         }
 
         String ext = FilenameUtils.getExtension(d.getOriginalFileName());
-        res.setHeader("Content-Disposition", "attachment; filename=" + d.getFileFamily() + "." + d.getId() + "." + ext);
-        return getFile(FilenameUtils.concat(n.getDlRepo(), d.getFilePath()));
+        return getFile(FilenameUtils.concat(n.getDlRepo(), d.getFilePath()), d.getFileFamily() + "." + d.getId() + "." + ext, false);
     }
 
-    public InputStream getFile(String path)
+    /**
+     * Sends a file, or only the part of it given by a single <code>Range: bytes=</code> header (so a growing log can be tailed by asking
+     * for the bytes after the previous size). <code>If-Modified-Since</code> is honoured. Compressible files are gzipped if the client
+     * accepts it and asked for the whole file.<br>
+     * On a JQM node, uncompressed content is sent by the engine's own file servlet, which hands the file to Jetty without copying it
+     * through the JVM. Compressed content, or content served by another container, is streamed by a {@link FileRangeOutput}.
+     */
+    private Response getFile(String path, String fileName, boolean compressible)
     {
+        log.debug("file retrieval service called by user " + getUserName() + " for file " + path);
+        File f = new File(path);
+        if (!f.isFile())
+        {
+            throw new ErrorDto("Could not find the desired file", 8, new FileNotFoundException(path), Status.NO_CONTENT);
+        }
+
+        // Read the size only once - the file may be growing.
+        long length = f.length();
+        Date lastModified = new Date(f.lastModified() / 1000 * 1000); // HTTP dates are in seconds.
+        ResponseBuilder rb = request.evaluatePreconditions(lastModified);
+        if (rb != null)
+        {
+            return rb.build();
+        }
+
+        long start = 0;
+        long end = length - 1;
+        boolean partial = false;
+        String range = headers.getHeaderString("Range");
+        if (range != null && range.startsWith("bytes=") && !range.contains(","))
+        {
+            String[] bounds = range.substring("bytes=".length()).trim().split("-", -1);
+            try
+            {
+                if (bounds.length == 2 && bounds[0].isEmpty())
+                {
+                    // Suffix: the last bytes of the file
+                    start = Math.max(0, length - Long.parseLong(bounds[1]));
+                    partial = true;
+                }
+                else if (bounds.length == 2)
+                {
+                    start = Long.parseLong(bounds[0]);
+                    if (!bounds[1].isEmpty())
+                    {
+                        end = Math.min(end, Long.parseLong(bounds[1]));
+                    }
+                    partial = true;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                // Invalid ranges are simply ignored: the whole file is sent.
+                start = 0;
+                end = length - 1;
+                partial = false;
+            }
+
+            if (partial && (start >= length || start > end))
+            {
+                return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE).header("Content-Range", "bytes */" + length)
+                        .lastModified(lastModified).build();
+            }
+        }
+
+        boolean gzip = compressible && !partial && acceptsGzip();
+        rb = Response.status(partial ? Status.PARTIAL_CONTENT : Status.OK);
+        rb.lastModified(lastModified).header("Accept-Ranges", "bytes").header("Content-Disposition", "attachment; filename=" + fileName);
+        if (partial)
+        {
+            rb.header("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        if (compressible)
+        {
+            rb.header("Vary", "Accept-Encoding");
+        }
+        if (gzip)
+        {
+            rb.header("Content-Encoding", "gzip");
+        }
+        else
+        {
+            rb.header("Content-Length", end - start + 1);
+        }
+
+        RequestDispatcher sender = gzip ? null : context.getNamedDispatcher(FILE_SERVLET);
+        if (sender == null)
+        {
+            return rb.entity(new FileRangeOutput(f, start, end - start + 1, gzip)).build();
+        }
+        return forwardFile(sender, rb.build(), f, start, end - start + 1);
+    }
+
+    /**
+     * Sends the given part of a file through the engine's file servlet, with the status and headers of the given response.
+     *
+     * @return null, as the response has already been sent.
+     */
+    private Response forwardFile(RequestDispatcher sender, Response r, File f, long start, long count)
+    {
+        servletResponse.setStatus(r.getStatus());
+        servletResponse.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        for (Map.Entry<String, List<String>> h : r.getStringHeaders().entrySet())
+        {
+            for (String value : h.getValue())
+            {
+                servletResponse.addHeader(h.getKey(), value);
+            }
+        }
+
+        servletRequest.setAttribute(FILE_PATH_ATTRIBUTE, f.getPath());
+        servletRequest.setAttribute(FILE_START_ATTRIBUTE, start);
+        servletRequest.setAttribute(FILE_COUNT_ATTRIBUTE, count);
         try
         {
-            log.debug("file retrieval service called by user " + getUserName() + " for file " + path);
-            return new FileInputStream(path);
+            sender.forward(servletRequest, servletResponse);
         }
-        catch (FileNotFoundException e)
+        catch (Exception e)
         {
-            throw new ErrorDto("Could not find the desired file", 8, e, Status.NO_CONTENT);
+            throw new ErrorDto("Could not send the desired file", 8, e, Status.INTERNAL_SERVER_ERROR);
+        }
+        return null;
+    }
+
+    private boolean acceptsGzip()
+    {
+        String accept = headers.getHeaderString("Accept-Encoding");
+        if (accept == null)
+        {
+            return false;
+        }
+        for (String coding : accept.split(","))
+        {
+            String[] segments = coding.split(";");
+            if ("gzip".equalsIgnoreCase(segments[0].trim()))
+            {
+                return segments.length == 1 || !segments[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a part of a file with {@link FileChannel#transferTo(long, long, WritableByteChannel)} to a channel over the response stream,
+     * optionally gzipped. The target is not a socket, so this is a copy through a small buffer - but the file is never entirely loaded in
+     * memory. Only used when the engine's file servlet cannot send the file.
+     */
+    private static class FileRangeOutput implements StreamingOutput
+    {
+        private final File file;
+        private final long start;
+        private final long count;
+        private final boolean gzip;
+
+        private FileRangeOutput(File file, long start, long count, boolean gzip)
+        {
+            this.file = file;
+            this.start = start;
+            this.count = count;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException
+        {
+            FileInputStream fis = new FileInputStream(file);
+            try
+            {
+                FileChannel in = fis.getChannel();
+                OutputStream os = gzip ? new GZIPOutputStream(output, 65536) : output;
+                WritableByteChannel out = Channels.newChannel(os);
+
+                long position = start;
+                long remaining = count;
+                while (remaining > 0)
+                {
+                    long sent = in.transferTo(position, remaining, out);
+                    if (sent <= 0)
+                    {
+                        // File was truncated in the meantime.
+                        break;
+                    }
+                    position += sent;
+                    remaining -= sent;
+                }
+
+                if (gzip)
+                {
+                    ((GZIPOutputStream) os).finish();
+                }
+            }
+            finally
+            {
+                fis.close();
+            }
         }
     }
 
     @GET
     @Path("enginelog")
     @Produces(MediaType.TEXT_PLAIN)
-    public String getEngineLog(@QueryParam("latest") int latest)
+    public Response getEngineLog(@QueryParam("latest") int latest)
     {
         if (n == null)
         {
@@ -204,32 +413,58 @@ public class ServiceSimple
         {
             latest = 10000;
         }
+        final int maxLines = latest;
 
-        ReversedLinesFileReader r = null;
+        final ReversedLinesFileReader r;
         try
         {
             File f = new File(FilenameUtils.concat("./logs/", "jqm-" + context.getInitParameter("jqmnode") + ".log"));
             r = new ReversedLinesFileReader(f);
-            StringBuilder sb = new StringBuilder(latest);
-            String buf = r.readLine();
-            int i = 1;
-            while (buf != null && i <= latest)
-            {
-                sb.append(buf);
-                sb.append(System.getProperty("line.separator"));
-                i++;
-                buf = r.readLine();
-            }
-            return sb.toString();
         }
         catch (Exception e)
         {
             throw new ErrorDto("Could not return the desired file", 8, e, Status.NO_CONTENT);
         }
-        finally
+
+        // Lines are written as they are read instead of being accumulated in memory.
+        final boolean gzip = acceptsGzip();
+        ResponseBuilder rb = Response.ok(new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream output) throws IOException
+            {
+                try
+                {
+                    OutputStream os = gzip ? new GZIPOutputStream(output) : output;
+                    Writer w = new BufferedWriter(new OutputStreamWriter(os, Charset.defaultCharset()));
+                    String ls = System.getProperty("line.separator");
+                    String buf = r.readLine();
+                    int i = 1;
+                    while (buf != null && i <= maxLines)
+                    {
+                        w.write(buf);
+                        w.write(ls);
+                        i++;
+                        buf = r.readLine();
+                    }
+                    w.flush();
+                    if (gzip)
+                    {
+                        ((GZIPOutputStream) os).finish();
+                    }
+                }
+                finally
+                {
+                    IOUtils.closeQuietly(r);
+                }
+            }
+        });
+        rb.header("Vary", "Accept-Encoding");
+        if (gzip)
         {
-            IOUtils.closeQuietly(r);
+            rb.header("Content-Encoding", "gzip");
         }
+        return rb.build();
     }
 
     private String getUserName()